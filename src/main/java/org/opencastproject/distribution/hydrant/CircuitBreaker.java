@@ -0,0 +1,164 @@
+/**
+ *  Copyright 2009, 2010 The Regents of the University of California
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hydrant;
+
+/**
+ * A circuit breaker guarding the requests to hydrant.
+ * <p>
+ * The breaker opens once a number of consecutive requests have failed. While open, requests are refused without being
+ * sent. After the reset timeout, a single trial request is let through (half open): if it succeeds the breaker closes
+ * again, otherwise it stays open for another reset timeout.
+ */
+public class CircuitBreaker {
+
+  /** The states of the circuit breaker */
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  };
+
+  /** Number of consecutive failures that open the breaker */
+  private final int failureThreshold;
+
+  /** Time in milliseconds the breaker stays open before a trial request is allowed */
+  private final long resetTimeout;
+
+  /** The current state */
+  private State state = State.CLOSED;
+
+  /** The number of consecutive failures */
+  private int consecutiveFailures = 0;
+
+  /** The time the breaker opened, in milliseconds since the epoch */
+  private long openedAt = 0;
+
+  /** Whether the trial request of the half open state is under way */
+  private boolean trialInProgress = false;
+
+  /**
+   * Creates a closed circuit breaker.
+   *
+   * @param failureThreshold
+   *          the number of consecutive failures that open the breaker
+   * @param resetTimeout
+   *          the time in milliseconds the breaker stays open
+   */
+  public CircuitBreaker(int failureThreshold, long resetTimeout) {
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.resetTimeout = resetTimeout;
+  }
+
+  /**
+   * Returns whether a request may be sent right now. Callers that are allowed to send a request must report its outcome
+   * through {@link #recordSuccess()} or {@link #recordFailure()}.
+   *
+   * @return <code>true</code> if the request may be sent
+   */
+  public synchronized boolean allowRequest() {
+    switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (System.currentTimeMillis() - openedAt < resetTimeout)
+          return false;
+        state = State.HALF_OPEN;
+        trialInProgress = true;
+        return true;
+      default:
+        if (trialInProgress)
+          return false;
+        trialInProgress = true;
+        return true;
+    }
+  }
+
+  /**
+   * Records a successful request, which closes the breaker.
+   */
+  public synchronized void recordSuccess() {
+    state = State.CLOSED;
+    consecutiveFailures = 0;
+    trialInProgress = false;
+  }
+
+  /**
+   * Records a failed request, which opens the breaker if the failure threshold has been reached or the trial request of
+   * the half open state failed.
+   */
+  public synchronized void recordFailure() {
+    consecutiveFailures++;
+    trialInProgress = false;
+    if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+      state = State.OPEN;
+      openedAt = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Returns whether requests are currently refused.
+   *
+   * @return <code>true</code> if the breaker is open and the reset timeout has not yet passed
+   */
+  public synchronized boolean isOpen() {
+    return state == State.OPEN && System.currentTimeMillis() - openedAt < resetTimeout;
+  }
+
+  /**
+   * Returns the current state.
+   *
+   * @return the state
+   */
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * Returns the number of consecutive failures.
+   *
+   * @return the number of failures
+   */
+  public synchronized int getConsecutiveFailures() {
+    return consecutiveFailures;
+  }
+
+  /**
+   * Returns the time the breaker opened last.
+   *
+   * @return the time in milliseconds since the epoch, or <code>0</code> if the breaker never opened
+   */
+  public synchronized long getOpenedAt() {
+    return openedAt;
+  }
+
+  /**
+   * Returns the number of consecutive failures that open the breaker.
+   *
+   * @return the failure threshold
+   */
+  public int getFailureThreshold() {
+    return failureThreshold;
+  }
+
+  /**
+   * Returns the time the breaker stays open.
+   *
+   * @return the reset timeout in milliseconds
+   */
+  public long getResetTimeout() {
+    return resetTimeout;
+  }
+
+}
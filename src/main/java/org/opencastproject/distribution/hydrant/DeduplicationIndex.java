@@ -0,0 +1,332 @@
+/**
+ *  Copyright 2009, 2010 The Regents of the University of California
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hydrant;
+
+import org.opencastproject.util.FileSupport;
+
+import org.projectbamboo.util.fedora.Digests;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Remembers which derivatives have already been created in hydrant, so that distributing the same stream to the same
+ * master object again does not create a duplicate derivative.
+ * <p>
+ * Entries are keyed by the master object's pid, the element's checksum and the stream url. Each entry is stored in a
+ * file of its own below the index directory, named after the hash of its key. A bounded, least recently used in-memory
+ * cache sits in front of the files.
+ * <p>
+ * Since a derivative may be shared by the elements of several mediapackages, every entry also records the elements
+ * that refer to it. A shared derivative is only deleted from hydrant once the last of these elements is retracted.
+ */
+class DeduplicationIndex {
+
+  /** Property holding the entry's key, used to detect hash collisions */
+  private static final String KEY_PROPERTY = "key";
+
+  /** Property holding the derivative identifier */
+  private static final String DERIVATIVE_PROPERTY = "derivative";
+
+  /** Prefix of the properties naming the elements that refer to the derivative */
+  private static final String REFERENCE_PREFIX = "reference.";
+
+  /** Number of locks used to serialize access to the entries */
+  private static final int LOCK_COUNT = 64;
+
+  /** The directory containing the index files */
+  private final File directory;
+
+  /** Locks protecting the entries, selected by key */
+  private final Object[] locks = new Object[LOCK_COUNT];
+
+  /** The in-memory cache of recently used entries */
+  private final Map<String, Properties> cache;
+
+  /**
+   * Creates an index that stores its entries below the given directory.
+   *
+   * @param directory
+   *          the index directory
+   * @param cacheSize
+   *          the maximum number of entries kept in memory
+   */
+  DeduplicationIndex(File directory, final int cacheSize) {
+    this.directory = directory;
+    for (int i = 0; i < LOCK_COUNT; i++) {
+      locks[i] = new Object();
+    }
+    this.cache = new LinkedHashMap<String, Properties>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Properties> eldest) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  /**
+   * Builds the key identifying a derivative.
+   *
+   * @param masterPid
+   *          the pid of the master object
+   * @param checksum
+   *          the element's checksum, may be <code>null</code>
+   * @param streamUrl
+   *          the stream url
+   * @return the key
+   */
+  static String getKey(String masterPid, String checksum, String streamUrl) {
+    return masterPid + "\n" + (checksum != null ? checksum : "") + "\n" + streamUrl;
+  }
+
+  /**
+   * Builds the reference of an element to a derivative.
+   *
+   * @param mediaPackageId
+   *          the identifier of the element's mediapackage
+   * @param elementId
+   *          the element identifier
+   * @return the reference
+   */
+  static String getReference(String mediaPackageId, String elementId) {
+    return mediaPackageId + "/" + elementId;
+  }
+
+  /**
+   * Returns the derivative that has been created for the key and records that the element refers to it.
+   *
+   * @param key
+   *          the key
+   * @param reference
+   *          the reference of the element that is distributed
+   * @return the derivative identifier or <code>null</code> if there is none
+   * @throws IOException
+   *           if reading or updating the index fails
+   */
+  String acquire(String key, String reference) throws IOException {
+    synchronized (getLock(key)) {
+      Properties entry = load(key);
+      if (entry == null)
+        return null;
+      if (entry.setProperty(REFERENCE_PREFIX + reference, "") == null)
+        store(key, entry);
+      return entry.getProperty(DERIVATIVE_PROPERTY);
+    }
+  }
+
+  /**
+   * Records the derivative that has been created for the key, referred to by the element. If another derivative has
+   * been recorded for the key in the meantime, that one is kept and the new derivative is not shared.
+   *
+   * @param key
+   *          the key
+   * @param derivativeId
+   *          the derivative identifier
+   * @param reference
+   *          the reference of the element that has been distributed
+   * @throws IOException
+   *           if updating the index fails
+   */
+  void put(String key, String derivativeId, String reference) throws IOException {
+    synchronized (getLock(key)) {
+      Properties entry = load(key);
+      if (entry == null) {
+        entry = new Properties();
+        entry.setProperty(KEY_PROPERTY, key);
+        entry.setProperty(DERIVATIVE_PROPERTY, derivativeId);
+      } else if (!derivativeId.equals(entry.getProperty(DERIVATIVE_PROPERTY))) {
+        return;
+      }
+      entry.setProperty(REFERENCE_PREFIX + reference, "");
+      store(key, entry);
+    }
+  }
+
+  /**
+   * Records that the element no longer refers to the derivative and returns whether the derivative may be deleted,
+   * which is the case unless other elements still refer to it. Entries without references, which were created before
+   * references were recorded, are given up by the first element that releases them.
+   *
+   * @param key
+   *          the key, may be <code>null</code> if it is unknown
+   * @param derivativeId
+   *          the derivative identifier
+   * @param reference
+   *          the reference of the element that is retracted
+   * @return <code>true</code> if no other element refers to the derivative
+   * @throws IOException
+   *           if updating the index fails
+   */
+  boolean release(String key, String derivativeId, String reference) throws IOException {
+    if (key == null)
+      return true;
+    synchronized (getLock(key)) {
+      Properties entry = load(key);
+      if (entry == null || !derivativeId.equals(entry.getProperty(DERIVATIVE_PROPERTY)))
+        return true;
+      entry.remove(REFERENCE_PREFIX + reference);
+      if (getReferences(entry).isEmpty()) {
+        remove(key);
+        return true;
+      }
+      store(key, entry);
+      return false;
+    }
+  }
+
+  /**
+   * Returns the references to the derivative of the key.
+   *
+   * @param key
+   *          the key
+   * @return the references, which are empty if there is no entry for the key
+   * @throws IOException
+   *           if reading the index fails
+   */
+  Set<String> getReferences(String key) throws IOException {
+    synchronized (getLock(key)) {
+      Properties entry = load(key);
+      return entry != null ? getReferences(entry) : new HashSet<String>();
+    }
+  }
+
+  /**
+   * Returns the references recorded in the entry.
+   */
+  private static Set<String> getReferences(Properties entry) {
+    Set<String> references = new HashSet<String>();
+    for (String name : entry.stringPropertyNames()) {
+      if (name.startsWith(REFERENCE_PREFIX))
+        references.add(name.substring(REFERENCE_PREFIX.length()));
+    }
+    return references;
+  }
+
+  /**
+   * Returns the lock protecting the entry for the key.
+   */
+  private Object getLock(String key) {
+    return locks[(key.hashCode() & Integer.MAX_VALUE) % LOCK_COUNT];
+  }
+
+  /**
+   * Returns the entry for the key from the cache or its file. Must be called while holding the key's lock.
+   *
+   * @return the entry or <code>null</code> if there is none
+   */
+  private Properties load(String key) throws IOException {
+    synchronized (cache) {
+      Properties entry = cache.get(key);
+      if (entry != null)
+        return entry;
+    }
+
+    File file = getFile(key);
+    if (!file.isFile())
+      return null;
+    Properties entry = new Properties();
+    InputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      entry.load(in);
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+    if (!key.equals(entry.getProperty(KEY_PROPERTY)) || entry.getProperty(DERIVATIVE_PROPERTY) == null)
+      return null;
+
+    synchronized (cache) {
+      cache.put(key, entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Writes the entry to its file. If that fails, the entry is dropped from the cache so that it is read again from the
+   * file. Must be called while holding the key's lock.
+   */
+  private void store(String key, Properties entry) throws IOException {
+    boolean stored = false;
+    try {
+      write(key, entry);
+      stored = true;
+    } finally {
+      synchronized (cache) {
+        if (stored)
+          cache.put(key, entry);
+        else
+          cache.remove(key);
+      }
+    }
+  }
+
+  /**
+   * Writes the entry to its file, replacing the file atomically.
+   */
+  private void write(String key, Properties entry) throws IOException {
+    File file = getFile(key);
+    File parent = file.getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs())
+      throw new IOException("Unable to create directory " + parent);
+
+    File tempFile = new File(parent, file.getName() + ".tmp");
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(tempFile);
+      entry.store(out, null);
+    } finally {
+      IOUtils.closeQuietly(out);
+    }
+    if (!tempFile.renameTo(file)) {
+      FileSupport.delete(file);
+      if (!tempFile.renameTo(file))
+        throw new IOException("Unable to write index file " + file);
+    }
+  }
+
+  /**
+   * Removes the entry for the key. Must be called while holding the key's lock.
+   */
+  private void remove(String key) {
+    synchronized (cache) {
+      cache.remove(key);
+    }
+    FileSupport.delete(getFile(key));
+  }
+
+  /**
+   * Returns the file that stores the entry for the key. Files are spread over 256 subdirectories.
+   */
+  private File getFile(String key) {
+    String hash = Digests.digest("SHA-1", key);
+    return new File(new File(directory, hash.substring(0, 2)), hash);
+  }
+
+}
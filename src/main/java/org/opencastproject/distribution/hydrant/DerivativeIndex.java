@@ -0,0 +1,310 @@
+/**
+ *  Copyright 2009, 2010 The Regents of the University of California
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hydrant;
+
+import org.opencastproject.util.FileSupport;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Keeps track of the hydrant derivatives that have been created for the elements of a mediapackage, so that they can
+ * be deleted again on retraction.
+ * <p>
+ * The derivative ids of a mediapackage are stored in a properties file in the mediapackage's distribution directory,
+ * keyed by element identifier, together with the key of the derivative in the {@link DeduplicationIndex}. The indexes
+ * of recently used mediapackages are kept in memory and every change is written through to the file, so that looking
+ * up derivatives only reads the file the first time a mediapackage is seen.
+ */
+class DerivativeIndex {
+
+  /** Name of the index file inside a mediapackage's distribution directory */
+  static final String INDEX_FILE_NAME = "derivatives.properties";
+
+  /** Separates the derivative identifier from the deduplication key in the index entries */
+  private static final char KEY_SEPARATOR = '\n';
+
+  /** Number of locks used to serialize access to the index files */
+  private static final int LOCK_COUNT = 64;
+
+  /** Default number of mediapackage indexes kept in memory */
+  static final int DEFAULT_CACHE_SIZE = 1000;
+
+  /** The directory that contains the mediapackage directories */
+  private final File rootDirectory;
+
+  /** Locks protecting the index files, selected by mediapackage identifier */
+  private final Object[] locks = new Object[LOCK_COUNT];
+
+  /** The indexes of the most recently used mediapackages, in access order */
+  private final Map<String, Properties> cache;
+
+  /**
+   * Creates an index that keeps its files below the given directory.
+   *
+   * @param rootDirectory
+   *          the distribution directory
+   */
+  DerivativeIndex(File rootDirectory) {
+    this(rootDirectory, DEFAULT_CACHE_SIZE);
+  }
+
+  /**
+   * Creates an index that keeps its files below the given directory and the indexes of up to
+   * <code>cacheSize</code> mediapackages in memory.
+   *
+   * @param rootDirectory
+   *          the distribution directory
+   * @param cacheSize
+   *          the number of mediapackage indexes kept in memory
+   */
+  DerivativeIndex(File rootDirectory, final int cacheSize) {
+    this.rootDirectory = rootDirectory;
+    for (int i = 0; i < LOCK_COUNT; i++) {
+      locks[i] = new Object();
+    }
+    this.cache = new LinkedHashMap<String, Properties>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Properties> eldest) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  /**
+   * Returns the identifier of the derivative that was created for the element.
+   *
+   * @param mediaPackageId
+   *          the mediapackage identifier
+   * @param elementId
+   *          the element identifier
+   * @return the derivative identifier or <code>null</code> if the element has not been distributed
+   * @throws IOException
+   *           if reading the index fails
+   */
+  String get(String mediaPackageId, String elementId) throws IOException {
+    synchronized (getLock(mediaPackageId)) {
+      return getDerivativeId(load(mediaPackageId).getProperty(elementId));
+    }
+  }
+
+  /**
+   * Returns the key in the deduplication index of the derivative that was created for the element.
+   *
+   * @param mediaPackageId
+   *          the mediapackage identifier
+   * @param elementId
+   *          the element identifier
+   * @return the deduplication key or <code>null</code> if the element has not been distributed or the key is unknown
+   * @throws IOException
+   *           if reading the index fails
+   */
+  String getDeduplicationKey(String mediaPackageId, String elementId) throws IOException {
+    synchronized (getLock(mediaPackageId)) {
+      String value = load(mediaPackageId).getProperty(elementId);
+      if (value == null || value.indexOf(KEY_SEPARATOR) < 0)
+        return null;
+      return value.substring(value.indexOf(KEY_SEPARATOR) + 1);
+    }
+  }
+
+  /**
+   * Returns the derivatives of all distributed elements of the mediapackage.
+   *
+   * @param mediaPackageId
+   *          the mediapackage identifier
+   * @return the derivative identifiers, keyed by element identifier
+   * @throws IOException
+   *           if reading the index fails
+   */
+  Map<String, String> getAll(String mediaPackageId) throws IOException {
+    Map<String, String> derivatives = new HashMap<String, String>();
+    synchronized (getLock(mediaPackageId)) {
+      Properties index = load(mediaPackageId);
+      for (String elementId : index.stringPropertyNames()) {
+        derivatives.put(elementId, getDerivativeId(index.getProperty(elementId)));
+      }
+    }
+    return derivatives;
+  }
+
+  /**
+   * Records the derivative that has been created for the element.
+   *
+   * @param mediaPackageId
+   *          the mediapackage identifier
+   * @param elementId
+   *          the element identifier
+   * @param derivativeId
+   *          the hydrant derivative identifier
+   * @param deduplicationKey
+   *          the key of the derivative in the deduplication index, may be <code>null</code>
+   * @throws IOException
+   *           if updating the index fails
+   */
+  void put(String mediaPackageId, String elementId, String derivativeId, String deduplicationKey)
+          throws IOException {
+    String value = deduplicationKey != null ? derivativeId + KEY_SEPARATOR + deduplicationKey : derivativeId;
+    synchronized (getLock(mediaPackageId)) {
+      Properties index = load(mediaPackageId);
+      if (!value.equals(index.setProperty(elementId, value)))
+        store(mediaPackageId, index);
+    }
+  }
+
+  /**
+   * Removes the element's derivative from the index.
+   *
+   * @param mediaPackageId
+   *          the mediapackage identifier
+   * @param elementId
+   *          the element identifier
+   * @throws IOException
+   *           if updating the index fails
+   */
+  void remove(String mediaPackageId, String elementId) throws IOException {
+    synchronized (getLock(mediaPackageId)) {
+      Properties index = load(mediaPackageId);
+      if (index.remove(elementId) != null)
+        store(mediaPackageId, index);
+    }
+  }
+
+  /**
+   * Returns the derivative identifier of an index entry, which may be followed by the deduplication key.
+   */
+  private static String getDerivativeId(String value) {
+    if (value == null || value.indexOf(KEY_SEPARATOR) < 0)
+      return value;
+    return value.substring(0, value.indexOf(KEY_SEPARATOR));
+  }
+
+  /**
+   * Returns the lock protecting the index file of the given mediapackage.
+   */
+  private Object getLock(String mediaPackageId) {
+    return locks[(mediaPackageId.hashCode() & Integer.MAX_VALUE) % LOCK_COUNT];
+  }
+
+  /**
+   * Returns the index file of the given mediapackage.
+   */
+  private File getIndexFile(String mediaPackageId) {
+    return new File(new File(rootDirectory, mediaPackageId), INDEX_FILE_NAME);
+  }
+
+  /**
+   * Returns the index of the mediapackage, reading it from its file unless it is still in memory. Must be called while
+   * holding the mediapackage's lock.
+   */
+  private Properties load(String mediaPackageId) throws IOException {
+    synchronized (cache) {
+      Properties index = cache.get(mediaPackageId);
+      if (index != null)
+        return index;
+    }
+    Properties index = read(mediaPackageId);
+    synchronized (cache) {
+      cache.put(mediaPackageId, index);
+    }
+    return index;
+  }
+
+  /**
+   * Reads the index of the mediapackage from its file. Must be called while holding the mediapackage's lock.
+   */
+  private Properties read(String mediaPackageId) throws IOException {
+    Properties index = new Properties();
+    File indexFile = getIndexFile(mediaPackageId);
+    if (!indexFile.isFile())
+      return index;
+    InputStream in = null;
+    try {
+      in = new FileInputStream(indexFile);
+      index.load(in);
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+    return index;
+  }
+
+  /**
+   * Writes the changed index of the mediapackage to its file. If that fails, the index is dropped from memory so that
+   * it is read again from the file, which still has the previous state. Must be called while holding the
+   * mediapackage's lock.
+   */
+  private void store(String mediaPackageId, Properties index) throws IOException {
+    boolean stored = false;
+    try {
+      write(mediaPackageId, index);
+      stored = true;
+    } finally {
+      if (!stored) {
+        synchronized (cache) {
+          cache.remove(mediaPackageId);
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the index of the mediapackage, removing the file and the mediapackage directory once the index is empty.
+   * Must be called while holding the mediapackage's lock.
+   */
+  private void write(String mediaPackageId, Properties index) throws IOException {
+    File indexFile = getIndexFile(mediaPackageId);
+    File mediaPackageDir = indexFile.getParentFile();
+    if (index.isEmpty()) {
+      FileSupport.delete(indexFile);
+      String[] remaining = mediaPackageDir.list();
+      if (remaining != null && remaining.length == 0)
+        FileSupport.delete(mediaPackageDir);
+      return;
+    }
+
+    if (!mediaPackageDir.isDirectory() && !mediaPackageDir.mkdirs())
+      throw new IOException("Unable to create directory " + mediaPackageDir);
+
+    // Write to a temporary file first so that a crash never leaves a truncated index behind
+    File tempFile = new File(mediaPackageDir, INDEX_FILE_NAME + ".tmp");
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(tempFile);
+      index.store(out, "Hydrant derivatives of mediapackage " + mediaPackageId);
+    } finally {
+      IOUtils.closeQuietly(out);
+    }
+    if (!tempFile.renameTo(indexFile)) {
+      FileSupport.delete(indexFile);
+      if (!tempFile.renameTo(indexFile))
+        throw new IOException("Unable to write index file " + indexFile);
+    }
+  }
+
+}
@@ -26,8 +26,10 @@ import org.opencastproject.mediapackage.MediaPackageElementParser;
 import org.opencastproject.mediapackage.MediaPackageException;
 import org.opencastproject.mediapackage.MediaPackageParser;
 import org.opencastproject.mediapackage.Track;
+import org.opencastproject.security.api.Organization;
 import org.opencastproject.security.api.OrganizationDirectoryService;
 import org.opencastproject.security.api.SecurityService;
+import org.opencastproject.security.api.User;
 import org.opencastproject.security.api.UserDirectoryService;
 import org.opencastproject.serviceregistry.api.ServiceRegistry;
 import org.opencastproject.serviceregistry.api.ServiceRegistryException;
@@ -37,7 +39,12 @@ import org.opencastproject.util.PathSupport;
 import org.opencastproject.util.UrlSupport;
 import org.opencastproject.workspace.api.Workspace;
 
+import org.projectbamboo.util.fedora.OperationStatistics;
+import org.projectbamboo.util.fedora.RequestStatistics;
+
 import org.apache.commons.httpclient.Credentials;
+import org.apache.commons.httpclient.DefaultHttpMethodRetryHandler;
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpMethod;
@@ -46,6 +53,8 @@ import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.NameValuePair;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.params.HttpMethodParams;
 import org.apache.commons.httpclient.methods.DeleteMethod;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
@@ -53,6 +62,7 @@ import org.apache.commons.httpclient.methods.PutMethod;
 import org.apache.commons.httpclient.methods.multipart.StringPart;
 import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
 import org.apache.commons.httpclient.methods.multipart.Part;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang.StringUtils;
@@ -66,7 +76,20 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Distributes media to the local media delivery directory.
@@ -81,7 +104,7 @@ public class HydrantDistributionService extends AbstractJobProducer implements D
 
   /** List of available operations on jobs */
   private enum Operation {
-    Distribute, Retract
+    Distribute, DistributeBatch, Retract, RetractAll
   };
 
   /** The workspace reference */
@@ -111,6 +134,109 @@ public class HydrantDistributionService extends AbstractJobProducer implements D
   /** The admin password for hydrant */
   protected String hydrantAdminPassword = null;
 
+  /** Pattern used to find the derivative identifier in hydrant's response to the creation of a derivative */
+  private static final Pattern DERIVATIVE_ID_PATTERN = Pattern.compile("\"(?:pid|id)\"\\s*:\\s*\"?([^\",}\\s]+)");
+
+  /** The index of derivatives that have been created in hydrant */
+  protected DerivativeIndex derivativeIndex = null;
+
+  /** Whether jobs carry only the data needed for distribution rather than the whole mediapackage */
+  protected boolean compactJobPayload = true;
+
+  /** Default number of parsed mediapackages kept in memory */
+  public static final int DEFAULT_MEDIAPACKAGE_CACHE_SIZE = 50;
+
+  /** The cache of mediapackages parsed from job arguments, only used with the legacy mediapackage job payloads */
+  protected MediaPackageCache mediaPackageCache = null;
+
+  /** Default number of deduplication index entries kept in memory */
+  public static final int DEFAULT_DEDUPLICATION_CACHE_SIZE = 1000;
+
+  /** The index used to avoid creating the same derivative twice */
+  protected DeduplicationIndex deduplicationIndex = null;
+
+  /** Default number of times a failed request to hydrant is retried */
+  public static final int DEFAULT_MAX_RETRIES = 3;
+
+  /** Default initial upper bound of the delay between retries in milliseconds */
+  public static final int DEFAULT_RETRY_DELAY = 500;
+
+  /** Default maximum delay between retries in milliseconds */
+  public static final int DEFAULT_RETRY_MAX_DELAY = 30000;
+
+  /** The <code>429 Too Many Requests</code> status, which commons-httpclient has no constant for */
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+  /** Default number of consecutive failures that open the circuit breaker */
+  public static final int DEFAULT_BREAKER_THRESHOLD = 5;
+
+  /** Default time in milliseconds the circuit breaker stays open */
+  public static final int DEFAULT_BREAKER_RESET_TIMEOUT = 30000;
+
+  /** The number of times a failed request is retried */
+  protected int maxRetries = DEFAULT_MAX_RETRIES;
+
+  /** The initial upper bound of the delay between retries */
+  protected long retryDelay = DEFAULT_RETRY_DELAY;
+
+  /** The maximum delay between retries */
+  protected long retryMaxDelay = DEFAULT_RETRY_MAX_DELAY;
+
+  /** The circuit breaker guarding the requests to hydrant */
+  protected CircuitBreaker circuitBreaker = new CircuitBreaker(DEFAULT_BREAKER_THRESHOLD,
+          DEFAULT_BREAKER_RESET_TIMEOUT);
+
+  /** Source of the jitter in the retry delays */
+  private final Random random = new Random();
+
+  /** Default maximum number of pooled connections to hydrant */
+  public static final int DEFAULT_MAX_CONNECTIONS = 20;
+
+  /** Default maximum number of pooled connections per hydrant host */
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 10;
+
+  /** Default connect timeout in milliseconds */
+  public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+  /** Default socket (read) timeout in milliseconds */
+  public static final int DEFAULT_SOCKET_TIMEOUT = 60000;
+
+  /** Default time in milliseconds after which idle pooled connections are closed */
+  public static final int DEFAULT_IDLE_TIMEOUT = 30000;
+
+  /** The connection manager backing the shared hydrant client */
+  protected MultiThreadedHttpConnectionManager connectionManager = null;
+
+  /** The http client that is shared by all requests to hydrant */
+  protected HttpClient httpClient = null;
+
+  /** The thread that evicts idle connections from the pool */
+  protected IdleConnectionTimeoutThread idleConnectionThread = null;
+
+  /** The executor used to run the hydrant requests of a batch concurrently */
+  protected ExecutorService requestExecutor = null;
+
+  /** Default number of jobs that may talk to hydrant at the same time */
+  public static final int DEFAULT_MAX_JOBS_IN_FLIGHT = 10;
+
+  /** Default number of accepted jobs that may wait for one of the in-flight slots */
+  public static final int DEFAULT_JOB_QUEUE_SIZE = 100;
+
+  /** The executor running accepted jobs, sized to the number of jobs allowed in flight */
+  protected ExecutorService jobExecutor = null;
+
+  /** Permits for accepted jobs, either in flight or queued. Limits the amount of work this node takes on. */
+  protected Semaphore jobPermits = null;
+
+  /** The total number of job permits */
+  protected int jobCapacity = 0;
+
+  /** The JMX object name prefix of the request and job statistics */
+  public static final String MBEAN_PREFIX = "org.opencastproject.distribution.hydrant:type=HydrantDistributionService";
+
+  /** Latencies and outcomes of the requests to hydrant and of the jobs, by operation */
+  protected RequestStatistics statistics = new RequestStatistics();
+
   /**
    * Creates a new instance of the hydrant distribution service.
    */
@@ -138,6 +264,165 @@ public class HydrantDistributionService extends AbstractJobProducer implements D
         logger.warn("Hydrant admin password was not set (org.opencastproject.hydrant.admin.password)");
       else
         logger.info("hydrant admin password is {}", hydrantAdminPassword);
+
+      if (distributionDirectory == null) {
+        String directory = StringUtils.trimToNull(cc.getBundleContext().getProperty(
+                "org.opencastproject.hydrant.directory"));
+        if (directory == null) {
+          String storageDir = StringUtils.trimToNull(cc.getBundleContext().getProperty(
+                  "org.opencastproject.storage.dir"));
+          if (storageDir != null)
+            directory = PathSupport.concat(storageDir, "hydrant");
+        }
+        if (directory != null)
+          distributionDirectory = new File(directory);
+      }
+    }
+
+    if (cc != null) {
+      String payload = StringUtils.trimToNull(cc.getBundleContext().getProperty("org.opencastproject.hydrant.job.payload"));
+      if (payload != null)
+        compactJobPayload = !"mediapackage".equalsIgnoreCase(payload);
+    }
+    logger.info("Hydrant distribution jobs carry {}", compactJobPayload ? "the distributed elements only"
+            : "the whole mediapackage");
+
+    // Compact jobs carry no mediapackage, so there is nothing to cache unless whole mediapackages are passed around
+    mediaPackageCache = null;
+    if (!compactJobPayload)
+      mediaPackageCache = new MediaPackageCache(getIntProperty(cc,
+              "org.opencastproject.hydrant.mediapackagecache.size", DEFAULT_MEDIAPACKAGE_CACHE_SIZE));
+
+    // The indexes are the only record of what was created in hydrant, so they must not end up in a temporary directory
+    if (distributionDirectory == null)
+      throw new IllegalStateException("Hydrant distribution directory must be set "
+              + "(org.opencastproject.hydrant.directory or org.opencastproject.storage.dir)");
+    logger.info("Hydrant distribution directory is {}", distributionDirectory);
+    derivativeIndex = new DerivativeIndex(distributionDirectory);
+    deduplicationIndex = new DeduplicationIndex(new File(distributionDirectory, "deduplication"), getIntProperty(cc,
+            "org.opencastproject.hydrant.deduplication.cachesize", DEFAULT_DEDUPLICATION_CACHE_SIZE));
+
+    // Set up the connection pool that is shared by all requests to hydrant
+    connectionManager = new MultiThreadedHttpConnectionManager();
+    HttpConnectionManagerParams params = connectionManager.getParams();
+    params.setMaxTotalConnections(getIntProperty(cc, "org.opencastproject.hydrant.http.maxconnections",
+            DEFAULT_MAX_CONNECTIONS));
+    params.setDefaultMaxConnectionsPerHost(getIntProperty(cc, "org.opencastproject.hydrant.http.maxconnectionsperhost",
+            DEFAULT_MAX_CONNECTIONS_PER_HOST));
+    params.setConnectionTimeout(getIntProperty(cc, "org.opencastproject.hydrant.http.connecttimeout",
+            DEFAULT_CONNECT_TIMEOUT));
+    params.setSoTimeout(getIntProperty(cc, "org.opencastproject.hydrant.http.sockettimeout", DEFAULT_SOCKET_TIMEOUT));
+    params.setStaleCheckingEnabled(true);
+
+    httpClient = new HttpClient(connectionManager);
+    httpClient.getParams().setAuthenticationPreemptive(true);
+    // Requests are retried by execute(), which knows which of them are safe to send again
+    httpClient.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, new DefaultHttpMethodRetryHandler(0, false));
+    if (hydrantAdminUsername != null) {
+      Credentials credentials = new UsernamePasswordCredentials(hydrantAdminUsername, hydrantAdminPassword);
+      httpClient.getState().setCredentials(getAuthScope(), credentials);
+    }
+
+    long idleTimeout = getIntProperty(cc, "org.opencastproject.hydrant.http.idletimeout", DEFAULT_IDLE_TIMEOUT);
+    idleConnectionThread = new IdleConnectionTimeoutThread();
+    idleConnectionThread.setName("hydrant-idle-connection-evictor");
+    idleConnectionThread.setConnectionTimeout(idleTimeout);
+    idleConnectionThread.setTimeoutInterval(Math.max(1000L, idleTimeout / 2));
+    idleConnectionThread.addConnectionManager(connectionManager);
+    idleConnectionThread.start();
+
+    maxRetries = getIntProperty(cc, "org.opencastproject.hydrant.retry.max", DEFAULT_MAX_RETRIES);
+    retryDelay = getIntProperty(cc, "org.opencastproject.hydrant.retry.delay", DEFAULT_RETRY_DELAY);
+    retryMaxDelay = getIntProperty(cc, "org.opencastproject.hydrant.retry.maxdelay", DEFAULT_RETRY_MAX_DELAY);
+    circuitBreaker = new CircuitBreaker(getIntProperty(cc, "org.opencastproject.hydrant.breaker.threshold",
+            DEFAULT_BREAKER_THRESHOLD), getIntProperty(cc, "org.opencastproject.hydrant.breaker.resettimeout",
+            DEFAULT_BREAKER_RESET_TIMEOUT));
+
+    // Batched requests are run concurrently, but never on more threads than there are connections to hydrant
+    requestExecutor = Executors.newFixedThreadPool(params.getDefaultMaxConnectionsPerHost(), new NamedThreadFactory(
+            "hydrant-request"));
+
+    // Jobs are run on their own bounded executor rather than on the job producer's worker threads
+    int maxJobsInFlight = getIntProperty(cc, "org.opencastproject.hydrant.jobs.maxinflight", DEFAULT_MAX_JOBS_IN_FLIGHT);
+    int jobQueueSize = getIntProperty(cc, "org.opencastproject.hydrant.jobs.queuesize", DEFAULT_JOB_QUEUE_SIZE);
+    jobExecutor = Executors.newFixedThreadPool(maxJobsInFlight, new NamedThreadFactory("hydrant-job"));
+    jobCapacity = maxJobsInFlight + jobQueueSize;
+    jobPermits = new Semaphore(jobCapacity);
+    logger.info("Hydrant distribution runs {} jobs at a time and queues up to {} more", maxJobsInFlight, jobQueueSize);
+
+    logger.info("Hydrant connection pool allows {} connections ({} per host)", params.getMaxTotalConnections(),
+            params.getDefaultMaxConnectionsPerHost());
+
+    statistics.registerMBeans(MBEAN_PREFIX);
+  }
+
+  /**
+   * OSGi deactivation callback. Stops the idle connection eviction and closes all pooled connections to hydrant.
+   * 
+   * @param cc
+   *          this component's context
+   */
+  protected void deactivate(ComponentContext cc) {
+    statistics.unregisterMBeans();
+    if (jobExecutor != null) {
+      jobExecutor.shutdownNow();
+      jobExecutor = null;
+    }
+    if (requestExecutor != null) {
+      requestExecutor.shutdownNow();
+      requestExecutor = null;
+    }
+    if (idleConnectionThread != null) {
+      idleConnectionThread.shutdown();
+      idleConnectionThread = null;
+    }
+    if (connectionManager != null) {
+      connectionManager.shutdown();
+      connectionManager = null;
+    }
+    httpClient = null;
+  }
+
+  /**
+   * Reads an integer configuration value from the bundle context, falling back to the default value if the property
+   * is either missing or malformed.
+   * 
+   * @param cc
+   *          the component context, may be <code>null</code>
+   * @param key
+   *          the property name
+   * @param defaultValue
+   *          the default value
+   * @return the configured value
+   */
+  private int getIntProperty(ComponentContext cc, String key, int defaultValue) {
+    if (cc == null)
+      return defaultValue;
+    String value = StringUtils.trimToNull(cc.getBundleContext().getProperty(key));
+    if (value == null)
+      return defaultValue;
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      logger.warn("Configuration value {}={} is not a number, using {}", new Object[] { key, value, defaultValue });
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Returns the authentication scope for the hydrant admin credentials, which is limited to the hydrant host if the
+   * hydrant url can be parsed.
+   * 
+   * @return the authentication scope
+   */
+  private AuthScope getAuthScope() {
+    if (hydrantUrl == null)
+      return AuthScope.ANY;
+    try {
+      String host = new URI(hydrantUrl).getHost();
+      return host != null ? new AuthScope(host, AuthScope.ANY_PORT) : AuthScope.ANY;
+    } catch (URISyntaxException e) {
+      return AuthScope.ANY;
     }
   }
 
@@ -155,19 +440,174 @@ public class HydrantDistributionService extends AbstractJobProducer implements D
     if (elementId == null)
       throw new MediaPackageException("Element ID must be specified");
 
+    checkConfiguration();
+
+    try {
+      return serviceRegistry.createJob(JOB_TYPE, Operation.Distribute.toString(),
+              getJobArguments(mediapackage, Arrays.asList(elementId)));
+    } catch (ServiceRegistryException e) {
+      throw new DistributionException("Unable to create a job", e);
+    }
+  }
+
+  /**
+   * Creates a single job that distributes all of the given elements of the mediapackage to hydrant. The job's payload
+   * is the list of distributed elements.
+   * 
+   * @param mediapackage
+   *          the mediapackage
+   * @param elementIds
+   *          the identifiers of the elements to distribute
+   * @return the job
+   * @throws DistributionException
+   *           if the job can't be created
+   * @throws MediaPackageException
+   *           if the mediapackage or the element identifiers are missing
+   */
+  public Job distribute(MediaPackage mediapackage, List<String> elementIds) throws DistributionException,
+          MediaPackageException {
+
+    if (mediapackage == null)
+      throw new MediaPackageException("Mediapackage must be specified");
+    if (elementIds == null || elementIds.isEmpty())
+      throw new MediaPackageException("Element IDs must be specified");
+
+    checkConfiguration();
+
+    try {
+      return serviceRegistry.createJob(JOB_TYPE, Operation.DistributeBatch.toString(),
+              getJobArguments(mediapackage, elementIds));
+    } catch (ServiceRegistryException e) {
+      throw new DistributionException("Unable to create a job", e);
+    }
+  }
+
+  /**
+   * Makes sure that hydrant's url and admin credentials are configured.
+   * 
+   * @throws IllegalStateException
+   *           if the configuration is incomplete
+   */
+  private void checkConfiguration() {
     if (StringUtils.isBlank(hydrantUrl))
       throw new IllegalStateException("Hydrant url must be set (org.opencastproject.hydrant.url)");
     if (StringUtils.isBlank(hydrantAdminUsername))
       throw new IllegalStateException("Hydrant admin username must be set (org.opencastproject.hydrant.admin.username)");
     if (StringUtils.isBlank(hydrantAdminPassword))
       throw new IllegalStateException("Hydrant admin password must be set (org.opencastproject.hydrant.admin.password)");
+  }
+
+  /**
+   * Builds the arguments of a job working on the given elements of the mediapackage.
+   * <p>
+   * With compact job payloads, the arguments are the mediapackage identifier, the pid of hydrant's master object and the
+   * xml representations of the elements, which carry the element identifier, uri, mimetype and checksum. Otherwise the
+   * arguments are the complete mediapackage followed by the element identifiers.
+   * 
+   * @param mediapackage
+   *          the mediapackage
+   * @param elementIds
+   *          the element identifiers
+   * @return the job arguments
+   * @throws DistributionException
+   *           if an element can't be serialized
+   */
+  protected List<String> getJobArguments(MediaPackage mediapackage, List<String> elementIds)
+          throws DistributionException {
+    List<String> arguments = new ArrayList<String>(elementIds.size() + 2);
+    if (!compactJobPayload) {
+      arguments.add(MediaPackageParser.getAsXml(mediapackage));
+      arguments.addAll(elementIds);
+      return arguments;
+    }
+
+    arguments.add(mediapackage.getIdentifier().compact());
+    arguments.add(StringUtils.trimToEmpty(mediapackage.getTitle()));
+    for (String elementId : elementIds) {
+      MediaPackageElement element = mediapackage.getElementById(elementId);
+      if (element == null)
+        throw new IllegalStateException("No element " + elementId + " found in mediapackage");
+      try {
+        arguments.add(MediaPackageElementParser.getAsXml(element));
+      } catch (MediaPackageException e) {
+        throw new DistributionException("Unable to serialize element " + elementId, e);
+      }
+    }
+    return arguments;
+  }
+
+  /**
+   * Distributes the elements of the mediapackage to hydrant. The requests to hydrant are run concurrently over the
+   * shared connection pool.
+   * 
+   * @param job
+   *          the associated job
+   * @param mediaPackageId
+   *          the mediapackage identifier
+   * @param masterPid
+   *          the pid of hydrant's master object
+   * @param elements
+   *          the elements
+   * @return the distributed elements
+   * @throws DistributionException
+   *           if distributing any of the elements fails
+   */
+  protected List<MediaPackageElement> distribute(final Job job, final String mediaPackageId, final String masterPid,
+          List<MediaPackageElement> elements) throws DistributionException {
+
+    if (mediaPackageId == null)
+      throw new IllegalArgumentException("Mediapackage ID must be specified");
+    if (elements == null)
+      throw new IllegalArgumentException("Elements must be specified");
+
+    List<Callable<MediaPackageElement>> tasks = new ArrayList<Callable<MediaPackageElement>>(elements.size());
+    for (final MediaPackageElement element : elements) {
+      tasks.add(new Callable<MediaPackageElement>() {
+        public MediaPackageElement call() throws DistributionException {
+          return distribute(job, mediaPackageId, masterPid, element);
+        }
+      });
+    }
 
+    List<MediaPackageElement> distributedElements = runConcurrently(tasks);
+    logger.info("Distributed {} of {} elements to hydrant", distributedElements.size(), elements.size());
+    return distributedElements;
+  }
+
+  /**
+   * Runs the tasks on the request executor and collects their non-<code>null</code> results in the order of the tasks.
+   * 
+   * @param tasks
+   *          the tasks
+   * @return the results
+   * @throws DistributionException
+   *           if any of the tasks fails
+   */
+  private <T> List<T> runConcurrently(List<Callable<T>> tasks) throws DistributionException {
+    List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+    List<T> results = new ArrayList<T>(tasks.size());
     try {
-      return serviceRegistry.createJob(JOB_TYPE, Operation.Distribute.toString(),
-              Arrays.asList(MediaPackageParser.getAsXml(mediapackage), elementId));
-    } catch (ServiceRegistryException e) {
-      throw new DistributionException("Unable to create a job", e);
+      for (Callable<T> task : tasks) {
+        futures.add(requestExecutor.submit(task));
+      }
+      for (Future<T> future : futures) {
+        T result = future.get();
+        if (result != null)
+          results.add(result);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DistributionException("Interrupted while waiting for hydrant", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof DistributionException)
+        throw (DistributionException) e.getCause();
+      throw new DistributionException(e.getCause());
+    } finally {
+      for (Future<T> future : futures) {
+        future.cancel(true);
+      }
     }
+    return results;
   }
 
   /**
@@ -184,53 +624,68 @@ public class HydrantDistributionService extends AbstractJobProducer implements D
     if (elementId == null)
       throw new IllegalArgumentException("Element ID must be specified");
 
-    String mediaPackageId = mediapackage.getIdentifier().compact();
     MediaPackageElement element = mediapackage.getElementById(elementId);
 
     // Make sure the element exists
-    if (mediapackage.getElementById(elementId) == null)
+    if (element == null)
       throw new IllegalStateException("No element " + elementId + " found in mediapackage");
-    
+
+    return distribute(job, mediapackage.getIdentifier().compact(), mediapackage.getTitle(), element);
+  }
+
+  /**
+   * Distributes the element to hydrant by creating a derivative of the master object.
+   * 
+   * @param job
+   *          the associated job
+   * @param mediaPackageId
+   *          the identifier of the element's mediapackage
+   * @param masterPid
+   *          the pid of hydrant's master object, which is the mediapackage title
+   * @param element
+   *          the element
+   * @return the distributed element or <code>null</code> if the element is not supported by hydrant
+   * @throws DistributionException
+   *           if distributing the element fails
+   */
+  protected MediaPackageElement distribute(Job job, String mediaPackageId, String masterPid,
+          MediaPackageElement element) throws DistributionException {
+
+    if (mediaPackageId == null)
+      throw new IllegalArgumentException("Mediapackage ID must be specified");
+    if (element == null)
+      throw new IllegalArgumentException("Element must be specified");
+
+    String elementId = element.getIdentifier();
     try {
       // The hydrant server only supports tracks
       if (!(element instanceof Track)) {
         return null;
       }
 
-        String parentpid = mediapackage.getTitle();
-        if (parentpid == null) {
-          throw new DistributionException("Could not find Hydrant pid in mediapackage.");
-        }
+      if (masterPid == null) {
+        throw new DistributionException("Could not find Hydrant pid in mediapackage.");
+      }
 
-        logger.trace("Found parent pid: {}", parentpid);
-
-        try{
-		String url = UrlSupport.concat(new String[] { hydrantUrl, "derivatives" });
-                MultiThreadedHttpConnectionManager mgr = new MultiThreadedHttpConnectionManager();
-                HttpClient client = new HttpClient(mgr);
-		Credentials defaultcreds = new UsernamePasswordCredentials(hydrantAdminUsername, hydrantAdminPassword);
-		client.getState().setCredentials(AuthScope.ANY, defaultcreds);
-		client.getParams().setAuthenticationPreemptive(true);
-
-                PostMethod post = new PostMethod(url);
-		post.setDoAuthentication(true);
-
-		Part[] parts = {
-                        new StringPart("stream_url", element.getURI().toString()),
-                        new StringPart("master", parentpid),
-		};
-		post.setRequestEntity(
-			new MultipartRequestEntity(parts, post.getParams())
-		);
-                int status = client.executeMethod(post);
-                logger.debug("Got status: " + status);
-                logger.trace("Got response body: " + post.getResponseBodyAsString());
-        }catch(IOException e){
-                logger.debug("Exception distributing to Hydrant: " + e.getCause());
-                throw new DistributionException("Error distributing to Hydrant instance", e);
-        }
+      logger.trace("Found parent pid: {}", masterPid);
 
-      logger.info("Distributed {} to hydrant", elementId);
+      // Don't ask hydrant to create a derivative that already exists
+      String deduplicationKey = getDeduplicationKey(masterPid, element);
+      String reference = DeduplicationIndex.getReference(mediaPackageId, elementId);
+      String derivativeId = deduplicationIndex.acquire(deduplicationKey, reference);
+      if (derivativeId != null) {
+        logger.info("{} has already been distributed to hydrant as derivative {}", elementId, derivativeId);
+        derivativeIndex.put(mediaPackageId, elementId, derivativeId, deduplicationKey);
+      } else {
+        derivativeId = createDerivative(masterPid, element);
+        if (derivativeId != null) {
+          derivativeIndex.put(mediaPackageId, elementId, derivativeId, deduplicationKey);
+          deduplicationIndex.put(deduplicationKey, derivativeId, reference);
+        } else {
+          logger.warn("Hydrant did not report the derivative created for {}, it can't be retracted", elementId);
+        }
+        logger.info("Distributed {} to hydrant", elementId);
+      }
 
       // Create a representation of the distributed file in the mediapackage
       MediaPackageElement distributedElement = (MediaPackageElement) element.clone();
@@ -269,18 +724,11 @@ public class HydrantDistributionService extends AbstractJobProducer implements D
     if (elementId == null)
       throw new IllegalArgumentException("Element ID must be specified");
 
-    if (StringUtils.isBlank(hydrantUrl))
-      throw new IllegalStateException("Hydrant url must be set (org.opencastproject.hydrant.url)");
-    if (StringUtils.isBlank(hydrantAdminUsername))
-      throw new IllegalStateException("Hydrant admin username must be set (org.opencastproject.hydrant.admin.username)");
-    if (StringUtils.isBlank(hydrantAdminPassword))
-      throw new IllegalStateException("Hydrant admin password must be set (org.opencastproject.hydrant.admin.password)");
+    checkConfiguration();
 
     try {
-      List<String> arguments = new ArrayList<String>();
-      arguments.add(MediaPackageParser.getAsXml(mediaPackage));
-      arguments.add(elementId);
-      return serviceRegistry.createJob(JOB_TYPE, Operation.Retract.toString(), arguments);
+      return serviceRegistry.createJob(JOB_TYPE, Operation.Retract.toString(),
+              getJobArguments(mediaPackage, Arrays.asList(elementId)));
     } catch (ServiceRegistryException e) {
       throw new DistributionException("Unable to create a job", e);
     }
@@ -310,61 +758,564 @@ public class HydrantDistributionService extends AbstractJobProducer implements D
     if (element == null)
       throw new IllegalStateException("No element " + elementId + " found in mediapackage");
 
-        //TODO implement this!!
-        logger.info("Nothing done...this method is not implemented yet.");
-
-	return element;
-/*
-    // Find the element that has been created as part of the distribution process
-    String mediaPackageId = mediapackage.getIdentifier().compact();
-    URI distributedURI = null;
-    MediaPackageElement distributedElement = null; 
-    try {
-      distributedURI = getDistributionUri(mediaPackageId, element);
-      for (MediaPackageElement e : mediapackage.getElements()) {
-        if (distributedURI.equals(e.getURI())) {
-          distributedElement = e;
-          break;
-        }
-      }
-    } catch (URISyntaxException e) {
-      throw new DistributionException("Retracted element produces an invalid URI", e);
-    }
+    return retract(job, mediapackage.getIdentifier().compact(), mediapackage.getTitle(), element);
+  }
 
-    // Has this element been distributed?
-    if (distributedElement == null)
-      return null;
-    
-    String mediapackageId = mediapackage.getIdentifier().compact();
-    try {
+  /**
+   * Retracts the element from hydrant by deleting the derivative that was created when it was distributed.
+   * 
+   * @param job
+   *          the associated job
+   * @param mediaPackageId
+   *          the identifier of the element's mediapackage
+   * @param masterPid
+   *          the pid of hydrant's master object, which is the mediapackage title
+   * @param element
+   *          the element
+   * @return the retracted element or <code>null</code> if the element was not retracted
+   * @throws DistributionException
+   *           if retracting the element fails
+   */
+  protected MediaPackageElement retract(Job job, String mediaPackageId, String masterPid, MediaPackageElement element)
+          throws DistributionException {
 
-      File mediapackageDir = getMediaPackageDirectory(mediapackageId);
-      File elementDir = getDistributionFile(mediapackage, element);
+    if (mediaPackageId == null)
+      throw new IllegalArgumentException("Mediapackage ID must be specified");
+    if (element == null)
+      throw new IllegalArgumentException("Element must be specified");
 
-      // Does the file exist? If not, the current element has not been distributed to this channel
-      // or has been removed otherwise
-      if (!elementDir.exists())
-        return distributedElement;
+    String elementId = element.getIdentifier();
+    try {
+      String derivativeId = derivativeIndex.get(mediaPackageId, elementId);
 
-      // Try to remove the file and - if possible - the parent folder
-      FileUtils.forceDelete(elementDir);
-      if (mediapackageDir.list().length == 0) {
-        FileSupport.delete(mediapackageDir);
+      // Has this element been distributed?
+      if (derivativeId == null) {
+        logger.debug("Element {} of mediapackage {} has not been distributed to hydrant", elementId, mediaPackageId);
+        return null;
       }
 
-      logger.info("Finished rectracting element {} of media package {}", elementId, mediapackageId);
+      releaseDerivative(mediaPackageId, masterPid, element, elementId, derivativeId);
 
-      return distributedElement;
+      logger.info("Finished retracting element {} of mediapackage {}", elementId, mediaPackageId);
+      return element;
     } catch (Exception e) {
-      logger.warn("Error retracting element " + elementId + " of mediapackage " + mediapackageId, e);
+      logger.warn("Error retracting element " + elementId + " of mediapackage " + mediaPackageId, e);
       if (e instanceof DistributionException) {
         throw (DistributionException) e;
       } else {
         throw new DistributionException(e);
       }
     }
-*/
+  }
+
+  /**
+   * Creates a single job that retracts all elements of the mediapackage that have been distributed to hydrant. The
+   * job's payload is the list of retracted elements.
+   * 
+   * @param mediapackage
+   *          the mediapackage
+   * @return the job
+   * @throws DistributionException
+   *           if the job can't be created
+   */
+  public Job retract(MediaPackage mediapackage) throws DistributionException {
+    if (mediapackage == null)
+      throw new IllegalArgumentException("Mediapackage must be specified");
+
+    checkConfiguration();
+
+    // Hydrant only knows about tracks, so with compact payloads there is no need to pass on the other elements
+    List<String> elementIds = new ArrayList<String>();
+    for (MediaPackageElement element : compactJobPayload ? mediapackage.getTracks() : mediapackage.getElements()) {
+      elementIds.add(element.getIdentifier());
+    }
+
+    try {
+      return serviceRegistry.createJob(JOB_TYPE, Operation.RetractAll.toString(),
+              getJobArguments(mediapackage, elementIds));
+    } catch (ServiceRegistryException e) {
+      throw new DistributionException("Unable to create a job", e);
+    }
+  }
+
+  /**
+   * Retracts all elements of the mediapackage that have been distributed to hydrant. The derivatives are deleted
+   * concurrently over the shared connection pool.
+   * 
+   * @param job
+   *          the associated job
+   * @param mediaPackageId
+   *          the mediapackage identifier
+   * @param masterPid
+   *          the pid of hydrant's master object
+   * @param elements
+   *          the elements of the mediapackage
+   * @return the retracted elements that are part of the given elements
+   * @throws DistributionException
+   *           if retracting any of the elements fails
+   */
+  protected List<MediaPackageElement> retract(Job job, final String mediaPackageId, final String masterPid,
+          List<MediaPackageElement> elements) throws DistributionException {
+    if (mediaPackageId == null)
+      throw new IllegalArgumentException("Mediapackage ID must be specified");
 
+    Map<String, String> derivatives = null;
+    try {
+      derivatives = derivativeIndex.getAll(mediaPackageId);
+    } catch (IOException e) {
+      throw new DistributionException("Unable to read the derivatives of mediapackage " + mediaPackageId, e);
+    }
+
+    Map<String, MediaPackageElement> elementsById = new HashMap<String, MediaPackageElement>();
+    for (MediaPackageElement element : elements) {
+      elementsById.put(element.getIdentifier(), element);
+    }
+
+    List<Callable<MediaPackageElement>> tasks = new ArrayList<Callable<MediaPackageElement>>(derivatives.size());
+    for (Map.Entry<String, String> entry : derivatives.entrySet()) {
+      final String elementId = entry.getKey();
+      final String derivativeId = entry.getValue();
+      final MediaPackageElement element = elementsById.get(elementId);
+      tasks.add(new Callable<MediaPackageElement>() {
+        public MediaPackageElement call() throws Exception {
+          releaseDerivative(mediaPackageId, masterPid, element, elementId, derivativeId);
+          return element;
+        }
+      });
+    }
+
+    List<MediaPackageElement> retractedElements = runConcurrently(tasks);
+    logger.info("Retracted {} derivatives of mediapackage {} from hydrant", tasks.size(), mediaPackageId);
+    return retractedElements;
+  }
+
+  /**
+   * Returns the key identifying the derivative of the master object for the element in the deduplication index.
+   * 
+   * @param masterPid
+   *          the pid of hydrant's master object
+   * @param element
+   *          the element
+   * @return the key
+   */
+  protected String getDeduplicationKey(String masterPid, MediaPackageElement element) {
+    String checksum = element.getChecksum() != null ? element.getChecksum().toString() : null;
+    return DeduplicationIndex.getKey(masterPid, checksum, element.getURI().toString());
+  }
+
+  /**
+   * Releases the element's reference to its derivative and deletes the derivative from hydrant, unless it is still
+   * shared with elements of other mediapackages.
+   * 
+   * @param mediaPackageId
+   *          the identifier of the element's mediapackage
+   * @param masterPid
+   *          the pid of hydrant's master object, may be <code>null</code>
+   * @param element
+   *          the retracted element, may be <code>null</code> if it is no longer part of the mediapackage
+   * @param elementId
+   *          the element identifier
+   * @param derivativeId
+   *          the identifier of the element's derivative
+   * @throws DistributionException
+   *           if deleting the derivative fails
+   * @throws IOException
+   *           if updating the indexes fails
+   */
+  private void releaseDerivative(String mediaPackageId, String masterPid, MediaPackageElement element,
+          String elementId, String derivativeId) throws DistributionException, IOException {
+    String deduplicationKey = derivativeIndex.getDeduplicationKey(mediaPackageId, elementId);
+    // Derivatives recorded before the deduplication key was kept in the derivative index
+    if (deduplicationKey == null && masterPid != null && element != null && element.getURI() != null)
+      deduplicationKey = getDeduplicationKey(masterPid, element);
+
+    String reference = DeduplicationIndex.getReference(mediaPackageId, elementId);
+    if (deduplicationIndex.release(deduplicationKey, derivativeId, reference))
+      deleteDerivative(derivativeId);
+    else
+      logger.info("Derivative {} is still in use by other mediapackages, keeping it", derivativeId);
+    derivativeIndex.remove(mediaPackageId, elementId);
+  }
+
+  /**
+   * Asks hydrant to create a derivative of the master object for the element.
+   * 
+   * @param masterPid
+   *          the pid of hydrant's master object
+   * @param element
+   *          the element
+   * @return the identifier of the derivative or <code>null</code> if hydrant's response doesn't contain it
+   * @throws DistributionException
+   *           if talking to hydrant fails
+   */
+  protected String createDerivative(final String masterPid, final MediaPackageElement element)
+          throws DistributionException {
+    final String url = UrlSupport.concat(new String[] { hydrantUrl, "derivatives" });
+    return execute(new NonIdempotentRequest<String>() {
+      public HttpMethod createMethod() {
+        PostMethod post = new PostMethod(url);
+        Part[] parts = {
+                new StringPart("stream_url", element.getURI().toString()),
+                new StringPart("master", masterPid),
+        };
+        post.setRequestEntity(new MultipartRequestEntity(parts, post.getParams()));
+        return post;
+      }
+
+      public String handleResponse(HttpMethod method, int status) throws IOException, DistributionException {
+        String body = method.getResponseBodyAsString();
+        logger.trace("Got response body: " + body);
+        if (!isSuccess(status))
+          throw new DistributionException("Hydrant refused to create a derivative of " + element + ": "
+                  + method.getStatusLine());
+        return parseDerivativeId(method, body);
+      }
+
+      public String lookup() throws DistributionException {
+        return findDerivative(masterPid, element);
+      }
+    });
+  }
+
+  /**
+   * Looks up the derivative of an element that hydrant keeps for the given master object.
+   * 
+   * @param masterPid
+   *          the pid of hydrant's master object
+   * @param element
+   *          the element
+   * @return the identifier of the derivative or <code>null</code> if there is none
+   * @throws DistributionException
+   *           if talking to hydrant fails
+   */
+  protected String findDerivative(final String masterPid, final MediaPackageElement element)
+          throws DistributionException {
+    final String url = UrlSupport.concat(new String[] { hydrantUrl, "derivatives" });
+    return execute(new HydrantRequest<String>() {
+      public HttpMethod createMethod() {
+        GetMethod get = new GetMethod(url);
+        get.setQueryString(new NameValuePair[] { new NameValuePair("master", masterPid),
+                new NameValuePair("stream_url", element.getURI().toString()) });
+        return get;
+      }
+
+      public String handleResponse(HttpMethod method, int status) throws IOException, DistributionException {
+        if (status == HttpStatus.SC_NOT_FOUND)
+          return null;
+        String body = method.getResponseBodyAsString();
+        logger.trace("Got response body: " + body);
+        if (!isSuccess(status))
+          throw new DistributionException("Unable to look up the derivative of " + element + " in hydrant: "
+                  + method.getStatusLine());
+        // An empty list of matches
+        if (StringUtils.isBlank(StringUtils.strip(body, "[] \t\r\n")))
+          return null;
+        return parseDerivativeId(method, body);
+      }
+    });
+  }
+
+  /**
+   * Asks hydrant to delete a derivative. Derivatives that no longer exist are considered deleted.
+   * 
+   * @param derivativeId
+   *          the derivative identifier
+   * @throws DistributionException
+   *           if talking to hydrant fails or hydrant refuses to delete the derivative
+   */
+  protected void deleteDerivative(final String derivativeId) throws DistributionException {
+    final String url = UrlSupport.concat(new String[] { hydrantUrl, "derivatives", derivativeId });
+    execute(new HydrantRequest<Void>() {
+      public HttpMethod createMethod() {
+        return new DeleteMethod(url);
+      }
+
+      public Void handleResponse(HttpMethod method, int status) throws DistributionException {
+        if (status == HttpStatus.SC_NOT_FOUND)
+          logger.info("Derivative {} was already gone from hydrant", derivativeId);
+        else if (!isSuccess(status))
+          throw new DistributionException("Hydrant refused to delete derivative " + derivativeId + ": "
+                  + method.getStatusLine());
+        return null;
+      }
+    });
+  }
+
+  /**
+   * A request to hydrant. A new http method is created for every attempt to send the request.
+   */
+  protected interface HydrantRequest<T> {
+
+    /**
+     * Creates the http method for the next attempt to send the request.
+     * 
+     * @return the method
+     */
+    HttpMethod createMethod();
+
+    /**
+     * Handles hydrant's final response to the request. Responses indicating a temporary problem are retried and never
+     * passed to this method, unless the retries are exhausted.
+     * 
+     * @param method
+     *          the executed method
+     * @param status
+     *          the response status
+     * @return the result of the request
+     */
+    T handleResponse(HttpMethod method, int status) throws IOException, DistributionException;
+
+  }
+
+  /**
+   * A request that hydrant may carry out more than once if it is sent again, like the creation of a derivative. It is
+   * only sent again right away if hydrant turned it away unprocessed. Otherwise, its result is looked up first.
+   */
+  protected interface NonIdempotentRequest<T> extends HydrantRequest<T> {
+
+    /**
+     * Looks up the result of an earlier attempt to send the request, which hydrant may or may not have carried out.
+     * 
+     * @return the result or <code>null</code> if the request wasn't carried out
+     */
+    T lookup() throws DistributionException;
+
+  }
+
+  /**
+   * Sends a request to hydrant, retrying with jittered exponential backoff on i/o errors and responses that indicate a
+   * temporary problem. All attempts go through the circuit breaker and fail immediately while it is open.
+   * <p>
+   * A {@link NonIdempotentRequest} is only sent again right away if it certainly had no effect, which is the case if it
+   * couldn't be sent or hydrant asked for it to be retried later. Otherwise, its result is looked up before it is sent
+   * again.
+   * 
+   * @param request
+   *          the request
+   * @return the result of the request
+   * @throws DistributionException
+   *           if the request fails
+   */
+  protected <T> T execute(HydrantRequest<T> request) throws DistributionException {
+    NonIdempotentRequest<T> nonIdempotentRequest = null;
+    if (request instanceof NonIdempotentRequest)
+      nonIdempotentRequest = (NonIdempotentRequest<T>) request;
+    boolean outcomeUnknown = false;
+
+    HttpMethod method = null;
+    int status = -1;
+    for (int attempt = 0;; attempt++) {
+      if (!circuitBreaker.allowRequest())
+        throw new DistributionException("Hydrant is unavailable, circuit breaker is " + circuitBreaker.getState());
+
+      if (outcomeUnknown) {
+        T result = nonIdempotentRequest.lookup();
+        if (result != null) {
+          logger.info("Hydrant carried out an earlier attempt of {} {}", method.getName(), method.getPath());
+          return result;
+        }
+        outcomeUnknown = false;
+      }
+
+      method = request.createMethod();
+      method.setDoAuthentication(true);
+      long retryAfter = -1;
+      boolean completed = false;
+      Exception failure = null;
+      try {
+        status = executeMethod(method);
+        logger.debug("Got status {} for {} {}", new Object[] { status, method.getName(), method.getPath() });
+        if (!isRetryable(status) || attempt >= maxRetries) {
+          // Client errors mean hydrant is up and running, so they don't count against the breaker
+          if (isRetryable(status))
+            circuitBreaker.recordFailure();
+          else
+            circuitBreaker.recordSuccess();
+          completed = true;
+        } else {
+          circuitBreaker.recordFailure();
+          retryAfter = getRetryAfter(method);
+          boolean refused = retryAfter >= 0
+                  && (status == HttpStatus.SC_SERVICE_UNAVAILABLE || status == HTTP_TOO_MANY_REQUESTS);
+          outcomeUnknown = nonIdempotentRequest != null && !refused;
+          logger.info("Hydrant responded with {} to {} {}, retrying", new Object[] { method.getStatusLine(),
+                  method.getName(), method.getPath() });
+        }
+      } catch (IOException e) {
+        circuitBreaker.recordFailure();
+        if (attempt >= maxRetries)
+          throw new DistributionException("Error talking to Hydrant instance", e);
+        failure = e;
+        outcomeUnknown = nonIdempotentRequest != null && method.isRequestSent();
+        logger.info("Error talking to hydrant ({}), retrying", e.getMessage());
+      } catch (RuntimeException e) {
+        circuitBreaker.recordFailure();
+        throw e;
+      } finally {
+        // Hand the connection back to the pool, unless the response is yet to be handled
+        if (!completed)
+          method.releaseConnection();
+      }
+      if (completed)
+        break;
+
+      try {
+        Thread.sleep(Math.max(retryAfter, getBackoff(attempt)));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new DistributionException("Interrupted while waiting to retry request to hydrant", failure);
+      }
+    }
+
+    // The response is handled outside of the retries, so that failing to read it never sends the request again
+    try {
+      return request.handleResponse(method, status);
+    } catch (IOException e) {
+      throw new DistributionException("Error reading hydrant's response to " + method.getName() + " "
+              + method.getPath(), e);
+    } finally {
+      method.releaseConnection();
+    }
+  }
+
+  /**
+   * Executes the method on the shared http client, recording its latency and outcome in the statistics of the request
+   * type.
+   * 
+   * @param method
+   *          the method
+   * @return the response status
+   * @throws IOException
+   *           if talking to hydrant fails
+   */
+  private int executeMethod(HttpMethod method) throws IOException {
+    OperationStatistics stats = statistics.getOperation(method.getName() + " derivatives");
+    long start = stats.start();
+    try {
+      int status = httpClient.executeMethod(method);
+      stats.complete(start, status);
+      return status;
+    } catch (IOException e) {
+      stats.fail(start);
+      throw e;
+    } catch (RuntimeException e) {
+      stats.fail(start);
+      throw e;
+    }
+  }
+
+  /**
+   * Returns whether the status code indicates a successful request.
+   */
+  private static boolean isSuccess(int status) {
+    return status >= 200 && status < 300;
+  }
+
+  /**
+   * Returns whether the status code indicates a temporary problem that may go away when the request is retried.
+   */
+  private static boolean isRetryable(int status) {
+    return status >= 500 || status == HttpStatus.SC_REQUEST_TIMEOUT || status == HTTP_TOO_MANY_REQUESTS;
+  }
+
+  /**
+   * Returns the delay before the next attempt to send a request, chosen at random between zero and an exponentially
+   * growing upper bound.
+   * 
+   * @param attempt
+   *          the number of the failed attempt, starting at zero
+   * @return the delay in milliseconds
+   */
+  private long getBackoff(int attempt) {
+    long bound = Math.min(retryMaxDelay, retryDelay << Math.min(attempt, 20));
+    return (long) (random.nextDouble() * bound);
+  }
+
+  /**
+   * Returns the delay requested by hydrant through the <code>Retry-After</code> header.
+   * 
+   * @return the delay in milliseconds or <code>-1</code> if hydrant didn't ask for one
+   */
+  private long getRetryAfter(HttpMethod method) {
+    Header header = method.getResponseHeader("Retry-After");
+    if (header == null)
+      return -1;
+    try {
+      return Math.min(retryMaxDelay, Long.parseLong(header.getValue().trim()) * 1000L);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns the cache of mediapackages parsed from job arguments, which only exists if jobs carry the whole
+   * mediapackage.
+   * 
+   * @return the mediapackage cache or <code>null</code>
+   */
+  public MediaPackageCache getMediaPackageCache() {
+    return mediaPackageCache;
+  }
+
+  /**
+   * Returns the statistics of the requests to hydrant and of the jobs processed by this service.
+   * 
+   * @return the statistics
+   */
+  public RequestStatistics getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * Returns the number of accepted jobs that are either running or waiting for an in-flight slot.
+   * 
+   * @return the number of pending jobs
+   */
+  public int getPendingJobs() {
+    if (jobPermits == null)
+      return 0;
+    return jobCapacity - jobPermits.availablePermits();
+  }
+
+  /**
+   * Returns the circuit breaker guarding the requests to hydrant.
+   * 
+   * @return the circuit breaker
+   */
+  public CircuitBreaker getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  /**
+   * Extracts the identifier of a newly created derivative from hydrant's response. The identifier is taken from the
+   * <code>Location</code> header if present, otherwise from an <code>id</code> or <code>pid</code> field of the
+   * response body or from the body itself, if that consists of nothing but the identifier.
+   * 
+   * @param method
+   *          the executed method
+   * @param body
+   *          the response body
+   * @return the derivative identifier or <code>null</code>
+   */
+  protected String parseDerivativeId(HttpMethod method, String body) {
+    Header location = method.getResponseHeader("Location");
+    if (location != null && StringUtils.isNotBlank(location.getValue())) {
+      String path = StringUtils.removeEnd(location.getValue().trim(), "/");
+      String id = path.substring(path.lastIndexOf('/') + 1);
+      if (id.indexOf('.') > 0)
+        id = id.substring(0, id.indexOf('.'));
+      if (StringUtils.isNotBlank(id))
+        return id;
+    }
+    body = StringUtils.trimToNull(body);
+    if (body == null)
+      return null;
+    Matcher matcher = DERIVATIVE_ID_PATTERN.matcher(body);
+    if (matcher.find())
+      return matcher.group(1);
+    if (body.length() <= 255 && !StringUtils.containsAny(body, " \t\r\n<>{}\""))
+      return body;
+    return null;
   }
 
   /**
@@ -427,18 +1378,63 @@ public class HydrantDistributionService extends AbstractJobProducer implements D
     List<String> arguments = job.getArguments();
     try {
       op = Operation.valueOf(operation);
-      MediaPackage mediapackage = MediaPackageParser.getFromXml(arguments.get(0));
-      String elementId = arguments.get(1);
-      switch (op) {
-        case Distribute:
-          MediaPackageElement distributedElement = distribute(job, mediapackage, elementId);
-          return (distributedElement != null) ? MediaPackageElementParser.getAsXml(distributedElement) : null;
-        case Retract:
-          MediaPackageElement retractedElement = retract(job, mediapackage, elementId);
-          return (retractedElement != null) ? MediaPackageElementParser.getAsXml(retractedElement) : null;
-        default:
-          throw new IllegalStateException("Don't know how to handle operation '" + operation + "'");
+      String mediaPackageId = null;
+      String masterPid = null;
+      List<MediaPackageElement> elements = new ArrayList<MediaPackageElement>();
+      if (isMediaPackageXml(arguments.get(0))) {
+        // The mediapackage may be shared with other jobs, it is read but never modified. Jobs queued before switching
+        // to compact payloads are parsed without the cache.
+        MediaPackage mediapackage = mediaPackageCache != null ? mediaPackageCache.get(arguments.get(0))
+                : MediaPackageParser.getFromXml(arguments.get(0));
+        mediaPackageId = mediapackage.getIdentifier().compact();
+        masterPid = mediapackage.getTitle();
+        for (String elementId : arguments.subList(1, arguments.size())) {
+          MediaPackageElement element = mediapackage.getElementById(elementId);
+          if (element == null)
+            throw new IllegalStateException("No element " + elementId + " found in mediapackage");
+          elements.add(element);
+        }
+        // Jobs created before RetractAll passed the element ids carry the mediapackage only
+        if (op == Operation.RetractAll && elements.isEmpty())
+          elements.addAll(Arrays.asList(mediapackage.getElements()));
+      } else {
+        mediaPackageId = arguments.get(0);
+        masterPid = StringUtils.trimToNull(arguments.get(1));
+        for (String elementXml : arguments.subList(2, arguments.size())) {
+          elements.add(MediaPackageElementParser.getFromXml(elementXml));
+        }
+      }
+
+      OperationStatistics stats = statistics.getOperation(op.toString());
+      long start = stats.start();
+      String payload = null;
+      try {
+        switch (op) {
+          case Distribute:
+            MediaPackageElement distributedElement = distribute(job, mediaPackageId, masterPid, elements.get(0));
+            payload = (distributedElement != null) ? MediaPackageElementParser.getAsXml(distributedElement) : null;
+            break;
+          case DistributeBatch:
+            List<MediaPackageElement> distributedElements = distribute(job, mediaPackageId, masterPid, elements);
+            payload = MediaPackageElementParser.getArrayAsXml(distributedElements);
+            break;
+          case Retract:
+            MediaPackageElement retractedElement = retract(job, mediaPackageId, masterPid, elements.get(0));
+            payload = (retractedElement != null) ? MediaPackageElementParser.getAsXml(retractedElement) : null;
+            break;
+          case RetractAll:
+            List<MediaPackageElement> retractedElements = retract(job, mediaPackageId, masterPid, elements);
+            payload = MediaPackageElementParser.getArrayAsXml(retractedElements);
+            break;
+          default:
+            throw new IllegalStateException("Don't know how to handle operation '" + operation + "'");
+        }
+      } catch (Exception e) {
+        stats.fail(start);
+        throw e;
       }
+      stats.succeed(start);
+      return payload;
     } catch (IllegalArgumentException e) {
       throw new ServiceRegistryException("This service can't handle operations of type '" + op + "'", e);
     } catch (IndexOutOfBoundsException e) {
@@ -448,6 +1444,192 @@ public class HydrantDistributionService extends AbstractJobProducer implements D
     }
   }
 
+  /**
+   * Returns whether the job argument is a serialized mediapackage rather than the start of a compact job payload.
+   * 
+   * @param argument
+   *          the first job argument
+   * @return <code>true</code> if the argument is mediapackage xml
+   */
+  private static boolean isMediaPackageXml(String argument) {
+    return StringUtils.stripStart(argument, null).startsWith("<");
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * Accepted jobs are handed to a bounded executor and finished from there, so the caller is released as soon as the
+   * job has been queued. If the queue is full, the job is rejected and the service registry is free to dispatch it
+   * again later or to a different node.
+   * 
+   * @see org.opencastproject.job.api.AbstractJobProducer#acceptJob(org.opencastproject.job.api.Job)
+   */
+  @Override
+  public void acceptJob(Job job) throws ServiceRegistryException {
+    if (jobExecutor == null) {
+      super.acceptJob(job);
+      return;
+    }
+
+    if (!jobPermits.tryAcquire())
+      throw new ServiceRegistryException("Hydrant distribution is at capacity, unable to accept job " + job.getId());
+
+    try {
+      job.setStatus(Job.Status.RUNNING);
+      Job runningJob = serviceRegistry.updateJob(job);
+      jobExecutor.submit(new HydrantJobRunner(runningJob, serviceRegistry.getCurrentJob()));
+    } catch (ServiceRegistryException e) {
+      jobPermits.release();
+      throw e;
+    } catch (Exception e) {
+      jobPermits.release();
+      throw new ServiceRegistryException("Unable to accept job " + job.getId(), e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.opencastproject.job.api.AbstractJobProducer#isReadyToAcceptJobs(java.lang.String)
+   */
+  @Override
+  public boolean isReadyToAcceptJobs(String operation) throws ServiceRegistryException {
+    if (jobPermits != null && jobPermits.availablePermits() == 0)
+      return false;
+    // Leave jobs with the service registry while hydrant is known to be down
+    if (circuitBreaker.isOpen())
+      return false;
+    return super.isReadyToAcceptJobs(operation);
+  }
+
+  /**
+   * Completion callback for jobs that have been processed successfully.
+   * 
+   * @param job
+   *          the job
+   * @param payload
+   *          the job's payload
+   */
+  protected void jobFinished(Job job, String payload) {
+    job.setPayload(payload);
+    job.setStatus(Job.Status.FINISHED);
+    updateJob(job);
+  }
+
+  /**
+   * Completion callback for jobs that failed.
+   * 
+   * @param job
+   *          the job
+   * @param t
+   *          the reason of the failure
+   */
+  protected void jobFailed(Job job, Throwable t) {
+    logger.warn("Error processing hydrant distribution job " + job.getId(), t);
+    job.setStatus(Job.Status.FAILED);
+    updateJob(job);
+  }
+
+  /**
+   * Stores the job's new state in the service registry.
+   * 
+   * @param job
+   *          the job
+   */
+  private void updateJob(Job job) {
+    try {
+      serviceRegistry.updateJob(job);
+    } catch (Exception e) {
+      logger.error("Unable to update job " + job.getId() + " in the service registry", e);
+    }
+  }
+
+  /**
+   * Runs an accepted job on the job executor and reports the outcome through the completion callbacks. Like the job
+   * producer's own runner, it processes the job on behalf of the job's organization and creator.
+   */
+  private class HydrantJobRunner implements Runnable {
+
+    /** The job to run */
+    private final Job job;
+
+    /** The job that was current when this job was accepted, may be <code>null</code> */
+    private final Job currentJob;
+
+    /**
+     * Creates a runner for the given job.
+     * 
+     * @param job
+     *          the job
+     * @param currentJob
+     *          the job that was current when the job was accepted, may be <code>null</code>
+     */
+    HydrantJobRunner(Job job, Job currentJob) {
+      this.job = job;
+      this.currentJob = currentJob;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+      SecurityService securityService = getSecurityService();
+      try {
+        Organization organization = getOrganizationDirectoryService().getOrganization(job.getOrganization());
+        securityService.setOrganization(organization);
+        User user = getUserDirectoryService().loadUser(job.getCreator());
+        securityService.setUser(user);
+        if (currentJob != null)
+          getServiceRegistry().setCurrentJob(currentJob);
+        jobFinished(job, process(job));
+      } catch (Throwable t) {
+        jobFailed(job, t);
+      } finally {
+        getServiceRegistry().setCurrentJob(null);
+        securityService.setUser(null);
+        securityService.setOrganization(null);
+        jobPermits.release();
+      }
+    }
+
+  }
+
+  /**
+   * Creates the daemon threads of the job and request executors, numbered so they can be told apart in thread dumps.
+   */
+  private static class NamedThreadFactory implements ThreadFactory {
+
+    /** The prefix of the thread names */
+    private final String prefix;
+
+    /** The number of threads created so far */
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Creates a factory for threads called <code>prefix-1</code>, <code>prefix-2</code> and so on.
+     * 
+     * @param prefix
+     *          the prefix of the thread names
+     */
+    NamedThreadFactory(String prefix) {
+      this.prefix = prefix;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+     */
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+
+  }
+
   /**
    * Callback for the OSGi environment to set the workspace reference.
    * 
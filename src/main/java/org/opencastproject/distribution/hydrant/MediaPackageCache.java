@@ -0,0 +1,125 @@
+/**
+ *  Copyright 2009, 2010 The Regents of the University of California
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hydrant;
+
+import org.opencastproject.mediapackage.MediaPackage;
+import org.opencastproject.mediapackage.MediaPackageException;
+import org.opencastproject.mediapackage.MediaPackageParser;
+
+import org.projectbamboo.util.fedora.Digests;
+
+import java.lang.ref.SoftReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches parsed mediapackages by the hash of their xml representation, so that jobs working on the same mediapackage
+ * parse it only once.
+ * <p>
+ * The cache holds a bounded number of mediapackages through soft references, which allows the garbage collector to
+ * reclaim them when memory runs low. Cached mediapackages are shared between jobs and must not be modified; callers
+ * clone the elements they change.
+ */
+public class MediaPackageCache {
+
+  /** The cached mediapackages, in least recently used order */
+  private final Map<String, SoftReference<MediaPackage>> cache;
+
+  /** The number of lookups answered from the cache */
+  private final AtomicLong hits = new AtomicLong();
+
+  /** The number of lookups that required parsing */
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Creates a cache holding up to <code>size</code> mediapackages.
+   *
+   * @param size
+   *          the maximum number of cached mediapackages
+   */
+  public MediaPackageCache(final int size) {
+    this.cache = new LinkedHashMap<String, SoftReference<MediaPackage>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, SoftReference<MediaPackage>> eldest) {
+        return size() > size;
+      }
+    };
+  }
+
+  /**
+   * Returns the mediapackage represented by the xml, parsing it only if it is not in the cache.
+   *
+   * @param xml
+   *          the mediapackage xml
+   * @return the mediapackage, which must not be modified
+   * @throws MediaPackageException
+   *           if the xml can't be parsed
+   */
+  public MediaPackage get(String xml) throws MediaPackageException {
+    String key = Digests.digest("SHA-256", xml);
+    synchronized (cache) {
+      SoftReference<MediaPackage> reference = cache.get(key);
+      MediaPackage mediapackage = reference != null ? reference.get() : null;
+      if (mediapackage != null) {
+        hits.incrementAndGet();
+        return mediapackage;
+      }
+    }
+
+    // Parse outside of the lock. Concurrent misses for the same xml may parse twice, which is harmless.
+    misses.incrementAndGet();
+    MediaPackage mediapackage = MediaPackageParser.getFromXml(xml);
+    synchronized (cache) {
+      cache.put(key, new SoftReference<MediaPackage>(mediapackage));
+    }
+    return mediapackage;
+  }
+
+  /**
+   * Returns the number of lookups answered from the cache.
+   *
+   * @return the number of hits
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Returns the number of lookups that required parsing the mediapackage.
+   *
+   * @return the number of misses
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Returns the number of cached mediapackages, including those that have been reclaimed by the garbage collector but
+   * not yet evicted.
+   *
+   * @return the cache size
+   */
+  public int size() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+
+}
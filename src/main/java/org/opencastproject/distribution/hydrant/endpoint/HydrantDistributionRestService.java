@@ -15,9 +15,13 @@
  */
 package org.opencastproject.distribution.hydrant.endpoint;
 
+import static javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST;
 import static javax.servlet.http.HttpServletResponse.SC_OK;
 
 import org.opencastproject.distribution.api.DistributionService;
+import org.opencastproject.distribution.hydrant.CircuitBreaker;
+import org.opencastproject.distribution.hydrant.HydrantDistributionService;
+import org.opencastproject.distribution.hydrant.MediaPackageCache;
 import org.opencastproject.job.api.JaxbJob;
 import org.opencastproject.job.api.Job;
 import org.opencastproject.job.api.JobProducer;
@@ -31,11 +35,16 @@ import org.opencastproject.util.doc.rest.RestQuery;
 import org.opencastproject.util.doc.rest.RestResponse;
 import org.opencastproject.util.doc.rest.RestService;
 
+import org.apache.commons.lang.StringUtils;
 import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.ws.rs.FormParam;
+import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
@@ -119,6 +128,39 @@ public class HydrantDistributionRestService extends AbstractJobProducerEndpoint
     return Response.ok(new JaxbJob(job)).build();
   }
 
+  @POST
+  @Path("/batch")
+  @Produces(MediaType.TEXT_XML)
+  @RestQuery(name = "distributebatch", description = "Distribute a number of media package elements to this distribution channel using a single job", returnDescription = "The job that can be used to track the distribution", restParameters = {
+          @RestParameter(name = "mediapackage", isRequired = true, description = "The mediapackage", type = Type.TEXT),
+          @RestParameter(name = "elementIds", isRequired = true, description = "The comma separated identifiers of the elements to distribute", type = Type.STRING) }, reponses = {
+          @RestResponse(responseCode = SC_OK, description = "An XML representation of the distribution job"),
+          @RestResponse(responseCode = SC_BAD_REQUEST, description = "No element identifiers were specified") })
+  public Response distributeBatch(@FormParam("mediapackage") String mediaPackageXml,
+          @FormParam("elementIds") String elementIds) throws Exception {
+    List<String> ids = new ArrayList<String>();
+    for (String elementId : StringUtils.split(StringUtils.trimToEmpty(elementIds), ',')) {
+      if (StringUtils.isNotBlank(elementId))
+        ids.add(elementId.trim());
+    }
+    if (ids.isEmpty())
+      return Response.status(Status.BAD_REQUEST).build();
+
+    HydrantDistributionService hydrantService = getHydrantService();
+    if (hydrantService == null)
+      return Response.status(Status.SERVICE_UNAVAILABLE).build();
+
+    Job job = null;
+    try {
+      MediaPackage mediapackage = MediaPackageParser.getFromXml(mediaPackageXml);
+      job = hydrantService.distribute(mediapackage, ids);
+    } catch (Exception e) {
+      logger.warn("Error distributing elements", e);
+      return Response.serverError().status(Status.INTERNAL_SERVER_ERROR).build();
+    }
+    return Response.ok(new JaxbJob(job)).build();
+  }
+
   @POST
   @Path("/retract")
   @Produces(MediaType.TEXT_XML)
@@ -138,6 +180,85 @@ public class HydrantDistributionRestService extends AbstractJobProducerEndpoint
     return Response.ok(new JaxbJob(job)).build();
   }
 
+  @POST
+  @Path("/retractall")
+  @Produces(MediaType.TEXT_XML)
+  @RestQuery(name = "retractall", description = "Retract all elements of a media package from this distribution channel using a single job", returnDescription = "The job that can be used to track the retraction", restParameters = { @RestParameter(name = "mediapackage", isRequired = true, description = "The mediapackage", type = Type.TEXT) }, reponses = { @RestResponse(responseCode = SC_OK, description = "An XML representation of the retraction job") })
+  public Response retractAll(@FormParam("mediapackage") String mediaPackageXml) throws Exception {
+    HydrantDistributionService hydrantService = getHydrantService();
+    if (hydrantService == null)
+      return Response.status(Status.SERVICE_UNAVAILABLE).build();
+
+    Job job = null;
+    try {
+      MediaPackage mediapackage = MediaPackageParser.getFromXml(mediaPackageXml);
+      job = hydrantService.retract(mediapackage);
+    } catch (Exception e) {
+      logger.warn("Unable to retract mediapackage '{}' from hydrant: {}", new Object[] { mediaPackageXml, e });
+      return Response.serverError().status(Status.INTERNAL_SERVER_ERROR).build();
+    }
+    return Response.ok(new JaxbJob(job)).build();
+  }
+
+  @GET
+  @Path("/circuitbreaker")
+  @Produces(MediaType.APPLICATION_JSON)
+  @RestQuery(name = "circuitbreaker", description = "Returns the state of the circuit breaker guarding the requests to hydrant", returnDescription = "The circuit breaker's state, consecutive failures and configuration", reponses = { @RestResponse(responseCode = SC_OK, description = "A JSON representation of the circuit breaker") })
+  public Response getCircuitBreaker() {
+    HydrantDistributionService hydrantService = getHydrantService();
+    if (hydrantService == null)
+      return Response.status(Status.SERVICE_UNAVAILABLE).build();
+
+    CircuitBreaker breaker = hydrantService.getCircuitBreaker();
+    StringBuilder json = new StringBuilder("{");
+    json.append("\"state\":\"").append(breaker.getState()).append("\",");
+    json.append("\"open\":").append(breaker.isOpen()).append(",");
+    json.append("\"consecutiveFailures\":").append(breaker.getConsecutiveFailures()).append(",");
+    json.append("\"openedAt\":").append(breaker.getOpenedAt()).append(",");
+    json.append("\"failureThreshold\":").append(breaker.getFailureThreshold()).append(",");
+    json.append("\"resetTimeout\":").append(breaker.getResetTimeout());
+    json.append("}");
+    return Response.ok(json.toString()).build();
+  }
+
+  @GET
+  @Path("/metrics")
+  @Produces(MediaType.APPLICATION_JSON)
+  @RestQuery(name = "metrics", description = "Returns request and job statistics of the hydrant distribution service", returnDescription = "Counts, latency percentiles, in-flight requests and errors by status for each operation", reponses = { @RestResponse(responseCode = SC_OK, description = "A JSON representation of the statistics") })
+  public Response getMetrics() {
+    HydrantDistributionService hydrantService = getHydrantService();
+    if (hydrantService == null)
+      return Response.status(Status.SERVICE_UNAVAILABLE).build();
+
+    MediaPackageCache cache = hydrantService.getMediaPackageCache();
+    StringBuilder json = new StringBuilder("{");
+    json.append("\"operations\":").append(hydrantService.getStatistics().toJson()).append(",");
+    json.append("\"pendingJobs\":").append(hydrantService.getPendingJobs()).append(",");
+    json.append("\"circuitBreaker\":\"").append(hydrantService.getCircuitBreaker().getState()).append("\"");
+    if (cache != null) {
+      json.append(",\"mediaPackageCache\":{");
+      json.append("\"hits\":").append(cache.getHits()).append(",");
+      json.append("\"misses\":").append(cache.getMisses()).append(",");
+      json.append("\"size\":").append(cache.size());
+      json.append("}");
+    }
+    json.append("}");
+    return Response.ok(json.toString()).build();
+  }
+
+  /**
+   * Returns the distribution service if it is the hydrant implementation, which offers operations beyond the
+   * distribution service api.
+   * 
+   * @return the hydrant distribution service or <code>null</code>
+   */
+  protected HydrantDistributionService getHydrantService() {
+    if (service instanceof HydrantDistributionService)
+      return (HydrantDistributionService) service;
+    else
+      return null;
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -0,0 +1,316 @@
+package org.projectbamboo.util.fedora;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ *   An asynchronous facade for a {@link FedoraClient}.  Every operation
+ *   is run on a bounded executor and returns a Future, and may notify
+ *   a {@link Callback} when it completes.
+ * </p>
+ * <p>
+ *   The number of operations pending against fedora at the same time
+ *   is limited separately from the number of threads, so that callers
+ *   fanning out over many pids can't overwhelm the server.  This is a
+ *   single limit for the facade as a whole, which, as a FedoraClient
+ *   talks to one server, is the limit for that server.  Like {@link
+ *   BulkIngest}, the submitting thread takes a permit before handing an
+ *   operation to the executor and waits while none is available, so
+ *   that waiting operations hold neither a thread nor a queue slot.
+ *   When the executor's queue is full, further submissions are
+ *   rejected with a RejectedExecutionException rather than piling up.
+ * </p>
+ */
+public class AsyncFedoraClient {
+
+    /**
+     * Notified when an asynchronous operation completes.  Callbacks are
+     * invoked on the executor thread that ran the operation.
+     */
+    public interface Callback<T> {
+
+        /**
+         * Called with the result of a successful operation (null for
+         * operations without a result).
+         */
+        public void completed(T result);
+
+        /**
+         * Called with the exception that made the operation fail.
+         */
+        public void failed(Exception cause);
+
+    }
+
+    private final FedoraClient fc;
+
+    private final ExecutorService executor;
+
+    private final boolean ownExecutor;
+
+    /**
+     * The permits of the operations submitted and not yet completed,
+     * shared by all operations of this facade.
+     */
+    private final Semaphore requestPermits;
+
+    /**
+     * Creates a facade running operations on its own thread pool.
+     * @param threads the number of threads
+     * @param queueSize the number of operations that may wait for a
+     * thread before submissions are rejected
+     * @param maxConcurrentRequests the maximum number of operations
+     * submitted to fedora and not yet completed at the same time
+     */
+    public AsyncFedoraClient(FedoraClient fc, int threads, int queueSize, int maxConcurrentRequests) {
+        this.fc = fc;
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "fedora-async-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+        this.ownExecutor = true;
+        this.requestPermits = new Semaphore(maxConcurrentRequests);
+    }
+
+    /**
+     * Creates a facade running operations on the given executor, which
+     * is not shut down by {@link #shutdown()}.
+     * @param maxConcurrentRequests the maximum number of operations
+     * submitted to fedora and not yet completed at the same time
+     */
+    public AsyncFedoraClient(FedoraClient fc, ExecutorService executor, int maxConcurrentRequests) {
+        this.fc = fc;
+        this.executor = executor;
+        this.ownExecutor = false;
+        this.requestPermits = new Semaphore(maxConcurrentRequests);
+    }
+
+    /**
+     * Gets the underlying client.
+     */
+    public FedoraClient getClient() {
+        return fc;
+    }
+
+    /**
+     * Gets the number of operations that may be submitted right now
+     * without waiting.
+     */
+    public int getAvailableRequestPermits() {
+        return requestPermits.availablePermits();
+    }
+
+    public Future<ObjectProfile> getObjectProfile(String pid) {
+        return getObjectProfile(pid, null);
+    }
+
+    public Future<ObjectProfile> getObjectProfile(final String pid, Callback<ObjectProfile> callback) {
+        return submit(new Callable<ObjectProfile>() {
+            public ObjectProfile call() throws Exception {
+                return fc.getFedoraObject(pid, true).getObjectProfile();
+            }
+        }, callback);
+    }
+
+    public Future<List<String>> listDatastreams(String pid) {
+        return listDatastreams(pid, null);
+    }
+
+    public Future<List<String>> listDatastreams(final String pid, Callback<List<String>> callback) {
+        return submit(new Callable<List<String>>() {
+            public List<String> call() throws Exception {
+                return fc.getFedoraObject(pid, true).listDatastreams();
+            }
+        }, callback);
+    }
+
+    public Future<DatastreamProfile> getDatastreamProfile(String pid, String dsId) {
+        return getDatastreamProfile(pid, dsId, null);
+    }
+
+    public Future<DatastreamProfile> getDatastreamProfile(final String pid, final String dsId, Callback<DatastreamProfile> callback) {
+        return submit(new Callable<DatastreamProfile>() {
+            public DatastreamProfile call() throws Exception {
+                return fc.getFedoraObject(pid, true).getDatastreamProfile(dsId);
+            }
+        }, callback);
+    }
+
+    /**
+     * Adds or replaces a datastream with the content of the stream,
+     * which is read and then closed on the executor thread.
+     */
+    public Future<Void> addOrReplaceDatastream(final String pid, final String dsId, final InputStream is, final String controlGroup, final String mimetype, Callback<Void> callback) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                fc.getFedoraObject(pid, true).addOrReplaceDatastream(dsId, is, controlGroup, mimetype);
+                return null;
+            }
+        }, callback);
+    }
+
+    public Future<Void> addOrReplaceDatastream(final String pid, final String dsId, final File file, final String controlGroup, final String mimetype, Callback<Void> callback) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                fc.getFedoraObject(pid, true).addOrReplaceDatastream(dsId, file, controlGroup, mimetype);
+                return null;
+            }
+        }, callback);
+    }
+
+    public Future<Void> addOrReplaceDatastreamByReference(final String pid, final String dsId, final String dsLocation, final String controlGroup, final String mimetype, Callback<Void> callback) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                fc.getFedoraObject(pid, true).addOrReplaceDatastreamByReference(dsId, dsLocation, controlGroup, mimetype);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Adds a relationship to the object with the given pid, with the
+     * same arguments as {@link FedoraClient.FedoraObject#addRelationship(String, String, String)}.
+     */
+    public Future<Void> addRelationship(final String pid, final String objectPid, final String predicate, final String subjectPid, Callback<Void> callback) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                fc.getFedoraObject(pid, true).addRelationship(objectPid, predicate, subjectPid);
+                return null;
+            }
+        }, callback);
+    }
+
+    public Future<Void> purge(final String pid, Callback<Void> callback) {
+        return submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                fc.getFedoraObject(pid, true).purge();
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Stops accepting operations.  Operations already submitted are
+     * still run.  An executor passed in by the caller is left alone.
+     */
+    public void shutdown() {
+        if (ownExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Takes a request permit, waiting for one if necessary, and runs
+     * the operation on the executor, notifying the callback, if any.
+     * The permit is given back when the operation completes, or when
+     * it is cancelled before it has started.
+     * @throws RejectedExecutionException if the executor's queue is
+     * full or it has been shut down, or if the thread is interrupted
+     * while waiting for a permit
+     */
+    private <T> Future<T> submit(final Callable<T> operation, final Callback<T> callback) {
+        try {
+            requestPermits.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(ex);
+        }
+        PermitTask<T> task = new PermitTask<T>(new Callable<T>() {
+            public T call() throws Exception {
+                T result;
+                try {
+                    result = operation.call();
+                } catch (Exception ex) {
+                    if (callback != null) {
+                        callback.failed(ex);
+                    }
+                    throw ex;
+                }
+                if (callback != null) {
+                    callback.completed(result);
+                }
+                return result;
+            }
+        });
+        boolean submitted = false;
+        try {
+            executor.execute(task);
+            submitted = true;
+        } finally {
+            if (!submitted) {
+                task.releasePermit();
+            }
+        }
+        return task;
+    }
+
+    /**
+     * A task holding a request permit, which it releases exactly once:
+     * when it has run, before its outcome is published, or when it is
+     * cancelled before running.
+     */
+    private class PermitTask<T> extends FutureTask<T> {
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private volatile boolean started;
+
+        PermitTask(Callable<T> operation) {
+            super(operation);
+        }
+
+        @Override
+        public void run() {
+            started = true;
+            super.run();
+        }
+
+        @Override
+        protected void set(T result) {
+            releasePermit();
+            super.set(result);
+        }
+
+        @Override
+        protected void setException(Throwable cause) {
+            releasePermit();
+            super.setException(cause);
+        }
+
+        @Override
+        protected void done() {
+            if (!started) {
+                releasePermit();
+            }
+        }
+
+        void releasePermit() {
+            if (released.compareAndSet(false, true)) {
+                requestPermits.release();
+            }
+        }
+
+    }
+
+}
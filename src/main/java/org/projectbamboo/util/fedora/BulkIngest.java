@@ -0,0 +1,239 @@
+package org.projectbamboo.util.fedora;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.projectbamboo.util.fedora.BulkIngestResult.ObjectResult;
+import org.projectbamboo.util.fedora.FedoraClient.FedoraObject;
+import org.projectbamboo.util.fedora.ObjectSpec.DatastreamSpec;
+import org.projectbamboo.util.fedora.ObjectSpec.RelationshipSpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ *   Creates a batch of objects in four phases: the pids for all objects
+ *   are reserved with one request per namespace, then the objects are
+ *   created, their datastreams added and finally their relationships,
+ *   so that no object is linked to before it has its content.
+ * </p>
+ * <p>
+ *   Within each phase the requests run on an executor, with a bounded
+ *   number of them in flight.  Datastreams are added to new objects
+ *   directly, without first listing the datastreams of the object.
+ *   The relationships of one object are added one after another,
+ *   because each of them rewrites its RELS-EXT datastream.
+ * </p>
+ * <p>
+ *   A failure only affects its own object: an object that couldn't be
+ *   created gets no datastreams, and an object that is missing content
+ *   gets no relationships.  Failures are reported in the result.
+ * </p>
+ */
+class BulkIngest {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkIngest.class);
+
+    private final FedoraClient fc;
+
+    private final ExecutorService executor;
+
+    private final Semaphore requestPermits;
+
+    private final AtomicLong bytesUploaded = new AtomicLong();
+
+    BulkIngest(FedoraClient fc, ExecutorService executor, int maxConcurrentRequests) {
+        this.fc = fc;
+        this.executor = executor;
+        this.requestPermits = new Semaphore(maxConcurrentRequests);
+    }
+
+    BulkIngestResult run(List<ObjectSpec> specs) throws FedoraException, IOException {
+        long start = System.currentTimeMillis();
+        Map<ObjectSpec, ObjectResult> results = new IdentityHashMap<ObjectSpec, ObjectResult>();
+        List<ObjectResult> resultList = new ArrayList<ObjectResult>();
+        for (ObjectSpec spec : specs) {
+            ObjectResult result = new ObjectResult(spec);
+            results.put(spec, result);
+            resultList.add(result);
+        }
+        reservePids(resultList);
+
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (ObjectResult result : resultList) {
+            tasks.add(createObject(result));
+        }
+        runAll(tasks);
+
+        tasks.clear();
+        for (ObjectResult result : resultList) {
+            if (result.isCreated()) {
+                for (DatastreamSpec ds : result.getSpec().getDatastreams()) {
+                    tasks.add(addDatastream(result, ds));
+                }
+            }
+        }
+        runAll(tasks);
+
+        tasks.clear();
+        for (ObjectResult result : resultList) {
+            if (result.isSuccess() && !result.getSpec().getRelationships().isEmpty()) {
+                tasks.add(addRelationships(result, results));
+            }
+        }
+        runAll(tasks);
+
+        BulkIngestResult ingest = new BulkIngestResult(resultList, System.currentTimeMillis() - start, bytesUploaded.get());
+        log.info(fc.getServerUrl() + ": Ingested " + ingest.getSucceeded() + " of " + resultList.size() + " objects in " + ingest.getElapsedTime() + " ms");
+        return ingest;
+    }
+
+    /**
+     * Reserves pids for the objects without one, with a single request
+     * per namespace.
+     */
+    private void reservePids(List<ObjectResult> results) throws FedoraException, IOException {
+        Map<String, List<ObjectResult>> byNamespace = new LinkedHashMap<String, List<ObjectResult>>();
+        for (ObjectResult result : results) {
+            if (result.getPid() == null) {
+                String namespace = result.getSpec().getNamespace();
+                List<ObjectResult> pending = byNamespace.get(namespace);
+                if (pending == null) {
+                    pending = new ArrayList<ObjectResult>();
+                    byNamespace.put(namespace, pending);
+                }
+                pending.add(result);
+            }
+        }
+        for (Map.Entry<String, List<ObjectResult>> entry : byNamespace.entrySet()) {
+            List<ObjectResult> pending = entry.getValue();
+            List<String> pids = fc.reservePids(entry.getKey(), pending.size());
+            if (pids.size() < pending.size()) {
+                throw new FedoraException("Reserved " + pids.size() + " of " + pending.size() + " pids in namespace " + entry.getKey());
+            }
+            for (int i = 0; i < pending.size(); i ++) {
+                pending.get(i).setPid(pids.get(i));
+            }
+        }
+    }
+
+    private Runnable createObject(final ObjectResult result) {
+        return new Runnable() {
+            public void run() {
+                ObjectSpec spec = result.getSpec();
+                try {
+                    fc.createObject(result.getPid(), spec.getLabel(), spec.getOwnerId(), null);
+                    result.created();
+                } catch (Exception ex) {
+                    fail(result, "create object", ex);
+                }
+            }
+        };
+    }
+
+    private Runnable addDatastream(final ObjectResult result, final DatastreamSpec ds) {
+        return new Runnable() {
+            public void run() {
+                try {
+                    FedoraObject fo = fc.getFedoraObject(result.getPid(), true);
+                    if (ds.dsLocation != null) {
+                        fo.addDatastreamByReference(ds.dsId, ds.dsLocation, ds.controlGroup, ds.mimetype);
+                    } else {
+                        StreamingPart part = ds.file != null
+                                ? new StreamingPart(ds.dsId, ds.file, ds.mimetype)
+                                : new StreamingPart(ds.dsId, ds.dsId, ds.stream, ds.length, ds.mimetype);
+                        fo.addDatastream(ds.dsId, part, ds.controlGroup, ds.mimetype);
+                        if (ds.length > 0) {
+                            bytesUploaded.addAndGet(ds.length);
+                        }
+                    }
+                    result.datastreamAdded();
+                } catch (Exception ex) {
+                    fail(result, "add datastream " + ds.dsId + " to", ex);
+                }
+            }
+        };
+    }
+
+    private Runnable addRelationships(final ObjectResult result, final Map<ObjectSpec, ObjectResult> results) {
+        return new Runnable() {
+            public void run() {
+                try {
+                    FedoraObject fo = fc.getFedoraObject(result.getPid(), true);
+                    for (RelationshipSpec rel : result.getSpec().getRelationships()) {
+                        String objectPid = rel.objectPid;
+                        if (rel.object != null) {
+                            ObjectResult target = results.get(rel.object);
+                            if (target == null || !target.isCreated()) {
+                                throw new FedoraException("Related object " + (target != null ? target.getPid() : rel.object.getPid()) + " was not created");
+                            }
+                            objectPid = target.getPid();
+                        }
+                        fo.addRelationship(objectPid, rel.predicate, result.getPid());
+                        result.relationshipAdded();
+                    }
+                } catch (Exception ex) {
+                    fail(result, "add relationships to", ex);
+                }
+            }
+        };
+    }
+
+    private void fail(ObjectResult result, String action, Exception ex) {
+        log.warn(fc.getServerUrl() + ": Unable to " + action + " object " + result.getPid(), ex);
+        result.fail(ex);
+    }
+
+    /**
+     * Runs the tasks on the executor, starting each once a request permit
+     * is available, and waits for all of them to finish.  The tasks
+     * handle their own failures.
+     */
+    private void runAll(List<Runnable> tasks) throws FedoraException {
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        try {
+            for (final Runnable task : tasks) {
+                requestPermits.acquire();
+                boolean submitted = false;
+                try {
+                    futures.add(executor.submit(new Runnable() {
+                        public void run() {
+                            try {
+                                task.run();
+                            } finally {
+                                requestPermits.release();
+                            }
+                        }
+                    }));
+                    submitted = true;
+                } finally {
+                    if (!submitted) {
+                        requestPermits.release();
+                    }
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new FedoraException(ex);
+        } catch (ExecutionException ex) {
+            // the tasks catch their exceptions, so this is an Error
+            throw new FedoraException(ex.getCause());
+        }
+    }
+
+}
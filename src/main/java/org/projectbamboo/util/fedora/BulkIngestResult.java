@@ -0,0 +1,163 @@
+package org.projectbamboo.util.fedora;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ *   The outcome of a bulk ingest: what happened to every object of the
+ *   batch, and how long the whole batch took.
+ * </p>
+ */
+public class BulkIngestResult {
+
+    /**
+     * The outcome for a single object.  An object that was created may
+     * still have failed to get some of its datastreams or relationships;
+     * only the first failure is kept.
+     */
+    public static class ObjectResult {
+
+        private final ObjectSpec spec;
+
+        private String pid;
+
+        private boolean created;
+
+        private int datastreamsAdded;
+
+        private int relationshipsAdded;
+
+        private Exception failure;
+
+        ObjectResult(ObjectSpec spec) {
+            this.spec = spec;
+            this.pid = spec.getPid();
+        }
+
+        public ObjectSpec getSpec() {
+            return spec;
+        }
+
+        /**
+         * Gets the pid of the object, or null if none could be reserved.
+         */
+        public synchronized String getPid() {
+            return pid;
+        }
+
+        public synchronized boolean isCreated() {
+            return created;
+        }
+
+        public synchronized int getDatastreamsAdded() {
+            return datastreamsAdded;
+        }
+
+        public synchronized int getRelationshipsAdded() {
+            return relationshipsAdded;
+        }
+
+        /**
+         * Gets the first exception that occurred for the object, or null.
+         */
+        public synchronized Exception getFailure() {
+            return failure;
+        }
+
+        /**
+         * Determines whether the object was created with all of its
+         * datastreams and relationships.
+         */
+        public synchronized boolean isSuccess() {
+            return created && failure == null;
+        }
+
+        synchronized void setPid(String pid) {
+            this.pid = pid;
+        }
+
+        synchronized void created() {
+            created = true;
+        }
+
+        synchronized void datastreamAdded() {
+            datastreamsAdded ++;
+        }
+
+        synchronized void relationshipAdded() {
+            relationshipsAdded ++;
+        }
+
+        synchronized void fail(Exception ex) {
+            if (failure == null) {
+                failure = ex;
+            }
+        }
+
+    }
+
+    private final List<ObjectResult> objectResults;
+
+    private final long elapsedTime;
+
+    private final long bytesUploaded;
+
+    BulkIngestResult(List<ObjectResult> objectResults, long elapsedTime, long bytesUploaded) {
+        this.objectResults = Collections.unmodifiableList(objectResults);
+        this.elapsedTime = elapsedTime;
+        this.bytesUploaded = bytesUploaded;
+    }
+
+    /**
+     * Gets the results in the order of the objects of the batch.
+     */
+    public List<ObjectResult> getObjectResults() {
+        return objectResults;
+    }
+
+    /**
+     * Gets the number of objects created with all of their datastreams
+     * and relationships.
+     */
+    public int getSucceeded() {
+        int succeeded = 0;
+        for (ObjectResult result : objectResults) {
+            if (result.isSuccess()) {
+                succeeded ++;
+            }
+        }
+        return succeeded;
+    }
+
+    public int getFailed() {
+        return objectResults.size() - getSucceeded();
+    }
+
+    /**
+     * Gets the time the ingest took in milliseconds.
+     */
+    public long getElapsedTime() {
+        return elapsedTime;
+    }
+
+    /**
+     * Gets the number of bytes of datastream content uploaded from files
+     * and streams of known length.
+     */
+    public long getBytesUploaded() {
+        return bytesUploaded;
+    }
+
+    /**
+     * Gets the number of successfully ingested objects per second.
+     */
+    public double getObjectsPerSecond() {
+        return elapsedTime > 0 ? getSucceeded() * 1000.0 / elapsedTime : 0;
+    }
+
+    public double getBytesPerSecond() {
+        return elapsedTime > 0 ? bytesUploaded * 1000.0 / elapsedTime : 0;
+    }
+
+}
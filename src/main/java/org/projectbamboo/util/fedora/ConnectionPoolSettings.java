@@ -0,0 +1,97 @@
+package org.projectbamboo.util.fedora;
+
+/**
+ * <p>
+ *   The settings of the pool of HTTP connections through which a
+ *   {@link FedoraClient} sends all of its requests.  The defaults suit
+ *   a moderate number of concurrent threads; raise the connection
+ *   limits when many threads share one client, for example during
+ *   bulk ingest.
+ * </p>
+ */
+public class ConnectionPoolSettings {
+
+    private int maxConnectionsPerHost = 20;
+
+    private int maxTotalConnections = 50;
+
+    private int connectTimeout = 10000;
+
+    private int socketTimeout = 60000;
+
+    private boolean staleCheckingEnabled = true;
+
+    private long idleTimeout = 30000;
+
+    /**
+     * Gets the maximum number of connections to the fedora host.
+     */
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    /**
+     * Gets the maximum number of connections to all hosts, including
+     * those a datastream location may point to.
+     */
+    public int getMaxTotalConnections() {
+        return maxTotalConnections;
+    }
+
+    public void setMaxTotalConnections(int maxTotalConnections) {
+        this.maxTotalConnections = maxTotalConnections;
+    }
+
+    /**
+     * Gets the time in milliseconds to wait for a connection to be
+     * established, or 0 to wait indefinitely.
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Gets the time in milliseconds to wait for data on an open
+     * connection, or 0 to wait indefinitely.
+     */
+    public int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    /**
+     * Determines whether pooled connections are checked for having
+     * been closed by the server before they are reused.
+     */
+    public boolean isStaleCheckingEnabled() {
+        return staleCheckingEnabled;
+    }
+
+    public void setStaleCheckingEnabled(boolean staleCheckingEnabled) {
+        this.staleCheckingEnabled = staleCheckingEnabled;
+    }
+
+    /**
+     * Gets the time in milliseconds after which idle pooled connections
+     * are closed, or 0 to keep them open.
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+}
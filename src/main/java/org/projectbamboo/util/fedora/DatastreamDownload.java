@@ -0,0 +1,278 @@
+package org.projectbamboo.util.fedora;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ *   Downloads the content of a datastream to a file.  The content is
+ *   written through a FileChannel, and a download that is interrupted
+ *   by a dropped connection is resumed with an HTTP Range request from
+ *   where it stopped, as is a partial file left by an earlier attempt.
+ *   Large datastreams may be split into ranged segments that are
+ *   downloaded in parallel; such a download isn't resumable, and its
+ *   file is deleted if a segment fails.
+ * </p>
+ * <p>
+ *   Once complete, the file is checked against the size and checksum
+ *   from the datastream profile, where fedora provides them.  A file
+ *   that fails the checksum is deleted, so that it isn't resumed.
+ * </p>
+ */
+class DatastreamDownload {
+
+    private static final Logger log = LoggerFactory.getLogger(DatastreamDownload.class);
+
+    /**
+     * The number of times a request is attempted before giving up.
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final FedoraClient fc;
+
+    private final String url;
+
+    private final File file;
+
+    private final DatastreamProfile profile;
+
+    DatastreamDownload(FedoraClient fc, String url, File file, DatastreamProfile profile) {
+        this.fc = fc;
+        this.url = url;
+        this.file = file;
+        this.profile = profile;
+    }
+
+    /**
+     * Downloads the datastream.
+     * @param executor the executor running the segments of a parallel
+     * download, or null to download in a single request
+     * @param segmentSize the size of the segments of a parallel download
+     */
+    void run(ExecutorService executor, long segmentSize) throws FedoraException, IOException {
+        long size = profile.getSize();
+        if (executor != null && segmentSize > 0 && size > segmentSize && !(file.exists() && file.length() == size)) {
+            if (!downloadSegments(executor, segmentSize, size)) {
+                // the server doesn't support ranges
+                downloadSequentially(size);
+            }
+        } else {
+            downloadSequentially(size);
+        }
+        verify(size);
+    }
+
+    /**
+     * Downloads the datastream in a single request, resuming from the
+     * end of the existing file.
+     */
+    private void downloadSequentially(long size) throws FedoraException, IOException {
+        if (file.exists() && (size <= 0 || file.length() > size)) {
+            // without a known size, a partial file can't be told from a stale one
+            truncate(0);
+        }
+        IOException failure = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt ++) {
+            long offset = file.exists() ? file.length() : 0;
+            if (size > 0 && offset == size) {
+                return;
+            }
+            try {
+                fetch(offset, -1, true);
+                return;
+            } catch (IOException ex) {
+                failure = ex;
+                log.warn("Download of " + url + " interrupted at " + (file.exists() ? file.length() : 0) + " bytes (attempt " + attempt + " of " + MAX_ATTEMPTS + ")", ex);
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Downloads the datastream in ranged segments on the executor.
+     * @return false if the server ignored the range, in which case
+     * nothing has been written
+     */
+    private boolean downloadSegments(ExecutorService executor, long segmentSize, long size) throws FedoraException, IOException {
+        truncate(size);
+        List<Future<Boolean>> segments = new ArrayList<Future<Boolean>>();
+        for (long start = 0; start < size; start += segmentSize) {
+            final long first = start;
+            final long last = Math.min(size, start + segmentSize) - 1;
+            segments.add(executor.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    IOException failure = null;
+                    for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt ++) {
+                        try {
+                            return fetch(first, last, false);
+                        } catch (IOException ex) {
+                            failure = ex;
+                            log.warn("Download of bytes " + first + "-" + last + " of " + url + " failed (attempt " + attempt + " of " + MAX_ATTEMPTS + ")", ex);
+                        }
+                    }
+                    throw failure;
+                }
+            }));
+        }
+        boolean ranged = true;
+        try {
+            for (Future<Boolean> segment : segments) {
+                ranged &= segment.get();
+            }
+        } catch (InterruptedException ex) {
+            for (Future<Boolean> segment : segments) {
+                segment.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new FedoraException(ex);
+        } catch (ExecutionException ex) {
+            for (Future<Boolean> segment : segments) {
+                segment.cancel(true);
+            }
+            // the file has its full length but holes, so it must not be resumed
+            file.delete();
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            } else if (ex.getCause() instanceof FedoraException) {
+                throw (FedoraException) ex.getCause();
+            }
+            throw new FedoraException(ex.getCause());
+        }
+        if (!ranged) {
+            truncate(0);
+        }
+        return ranged;
+    }
+
+    /**
+     * Requests the given range of the content and writes it to the file
+     * at the same position.  Segment requests (with a last byte) are
+     * abandoned if the server answers with the whole content, while an
+     * open-ended request then starts over from the beginning.
+     * @param last the last byte to request, or -1 for the rest
+     * @param append whether the bytes are written at the end of the file
+     * @return false if the server ignored the range of a segment request
+     */
+    private boolean fetch(long first, long last, boolean append) throws FedoraException, IOException {
+        GetMethod get = new GetMethod(url);
+        if (first > 0 || last >= 0) {
+            get.setRequestHeader("Range", "bytes=" + first + "-" + (last >= 0 ? String.valueOf(last) : ""));
+        }
+        try {
+            int status = fc.executeMethod("downloadDatastream", get);
+            long position = first;
+            if (status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && append) {
+                // the file already holds everything (or more, which verification reports)
+                return true;
+            } else if (status == HttpStatus.SC_OK) {
+                if (last >= 0) {
+                    return false;
+                }
+                position = 0;
+            } else if (status != HttpStatus.SC_PARTIAL_CONTENT) {
+                throw new FedoraException("REST action \"" + url + "\" failed: " + get.getStatusLine());
+            }
+            InputStream in = get.getResponseBodyAsStream();
+            long written = in != null ? write(in, position, append && position == 0) : 0;
+            // httpclient reports a connection closed before the announced length as the end of the content
+            long expected = get.getResponseContentLength();
+            if (expected >= 0 && written < expected) {
+                throw new IOException("Connection closed after " + written + " of " + expected + " bytes");
+            }
+            return true;
+        } finally {
+            get.releaseConnection();
+        }
+    }
+
+    /**
+     * Writes the stream to the file at the given position.
+     * @return the number of bytes written
+     */
+    private long write(InputStream in, long position, boolean truncate) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (truncate) {
+                channel.truncate(0);
+            }
+            ReadableByteChannel source = Channels.newChannel(in);
+            long written = 0;
+            long transferred;
+            do {
+                transferred = channel.transferFrom(source, position + written, 1024 * 1024);
+                written += transferred;
+            } while (transferred > 0);
+            return written;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Checks the file against the size and checksum of the profile.
+     */
+    private void verify(long size) throws FedoraException, IOException {
+        if (size > 0 && file.length() != size) {
+            throw new FedoraException("Downloaded " + file.length() + " bytes of " + url + ", expected " + size);
+        }
+        String checksum = profile.getChecksum();
+        String algorithm = profile.getChecksumType();
+        if (checksum == null || algorithm == null) {
+            return;
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException ex) {
+            log.warn("Unable to verify " + algorithm + " checksum of " + url);
+            return;
+        }
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            channel.close();
+        }
+        String hex = Digests.toHex(digest.digest());
+        if (!hex.equalsIgnoreCase(checksum)) {
+            file.delete();
+            throw new FedoraException(algorithm + " checksum mismatch for " + url + ": expected " + checksum + ", got " + hex);
+        }
+    }
+
+}
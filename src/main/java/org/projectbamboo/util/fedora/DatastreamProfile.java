@@ -1,10 +1,31 @@
 package org.projectbamboo.util.fedora;
 
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
+/**
+ * <p>
+ *   The properties of a datastream as returned by the REST api.  The
+ *   profile XML is read once and its values kept in an EnumMap;
+ *   property elements are matched by their local name so that both
+ *   the Fedora 3.2 and the Fedora 3.4 layouts are understood.
+ * </p>
+ * <p>
+ *   Instances are never modified after construction and may be shared
+ *   between threads.
+ * </p>
+ */
 public class DatastreamProfile {
 
     /**
@@ -27,40 +48,131 @@ public class DatastreamProfile {
         DS_LOCATION_TYPE("dsLocationType"),
         DS_CHECKSUM_TYPE("dsChecksumType"),
         DS_CHECKSUM("dsChecksum");
-        
+
         private String propertyName;
-        
+
         DatastreamProperty(String name) {
             this.propertyName = name;
         }
-        
+
         public String getPropertyName() {
             return this.propertyName;
         }
     }
-    
-    private FedoraClient fc;
-    
-    private Element profileEl;
-    
+
+    /**
+     * The properties by the local name of their XML element.
+     */
+    private static final Map<String, DatastreamProperty> PROPERTIES_BY_NAME = new HashMap<String, DatastreamProperty>();
+    static {
+        for (DatastreamProperty property : DatastreamProperty.values()) {
+            PROPERTIES_BY_NAME.put(property.getPropertyName(), property);
+        }
+    }
+
+    private final EnumMap<DatastreamProperty, String> properties;
+
+    /**
+     * Creates a profile from an already parsed datastreamProfile
+     * element.  The element is walked once and not retained.
+     */
     public DatastreamProfile(FedoraClient fc, Element profileEl) {
-        this.fc = fc;
-        this.profileEl = profileEl;
+        this(new EnumMap<DatastreamProperty, String>(DatastreamProperty.class));
+        for (Node child = profileEl.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                String name = child.getLocalName() != null ? child.getLocalName() : child.getNodeName();
+                DatastreamProperty property = PROPERTIES_BY_NAME.get(name);
+                if (property != null) {
+                    properties.put(property, child.getTextContent());
+                }
+            }
+        }
     }
-    
-    public String getProperty(DatastreamProperty property) {
+
+    private DatastreamProfile(EnumMap<DatastreamProperty, String> properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Parses the datastream profile XML returned by the REST api in a
+     * single streaming pass.  The stream is not closed.
+     */
+    static DatastreamProfile parse(InputStream in) throws XMLStreamException {
+        EnumMap<DatastreamProperty, String> properties = new EnumMap<DatastreamProperty, String>(DatastreamProperty.class);
+        XMLStreamReader reader = FedoraXml.createReader(in);
         try {
-            // compatible with fedora 3.4
-            String value = (String) fc.getXPath().evaluate("fedora-management:" + property.getPropertyName(), this.profileEl, XPathConstants.STRING);
-            if (value != null) {
-                return value;
-            } else {
-                // compatible with fedora 3.2
-                return (String) fc.getXPath().evaluate("/datastreamProfile/" + property.getPropertyName(), this.profileEl, XPathConstants.STRING);
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                    DatastreamProperty property = PROPERTIES_BY_NAME.get(reader.getLocalName());
+                    if (property != null) {
+                        properties.put(property, FedoraXml.readText(reader));
+                    }
+                }
             }
-        } catch (XPathException ex) {
+        } finally {
+            FedoraXml.closeQuietly(reader);
+        }
+        return new DatastreamProfile(properties);
+    }
+
+    /**
+     * Gets the value of a property, or an empty String if the profile
+     * didn't include it.
+     */
+    public String getProperty(DatastreamProperty property) {
+        String value = properties.get(property);
+        return value != null ? value : "";
+    }
+
+    /**
+     * Gets the size of the datastream in bytes, or -1 if it is unknown.
+     * Note that fedora reports a size of 0 for some externally
+     * referenced datastreams.
+     */
+    public long getSize() {
+        String size = properties.get(DatastreamProperty.DS_SIZE);
+        if (size == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(size.trim());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Gets the creation date of this version of the datastream, or null
+     * if it is missing or malformed.
+     */
+    public Date getCreateDate() {
+        String date = properties.get(DatastreamProperty.DS_CREATE_DATE);
+        if (date == null) {
             return null;
         }
+        try {
+            return FedoraDateFormat.parse(date.trim());
+        } catch (ParseException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the checksum of the datastream, or null if fedora doesn't
+     * compute one for it.
+     */
+    public String getChecksum() {
+        String checksum = properties.get(DatastreamProperty.DS_CHECKSUM);
+        return checksum == null || checksum.trim().length() == 0 || checksum.equals("none") ? null : checksum.trim();
+    }
+
+    /**
+     * Gets the algorithm of the datastream checksum (for example
+     * "MD5"), or null if fedora doesn't compute one for it.
+     */
+    public String getChecksumType() {
+        String type = properties.get(DatastreamProperty.DS_CHECKSUM_TYPE);
+        return type == null || type.trim().length() == 0 || type.equals("DISABLED") ? null : type.trim();
     }
-    
+
 }
@@ -0,0 +1,49 @@
+package org.projectbamboo.util.fedora;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * <p>
+ *   Helpers for message digests, which are written as lower case hex
+ *   strings as in fedora's datastream checksums.
+ * </p>
+ */
+public final class Digests {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private Digests() {
+    }
+
+    /**
+     * Encodes the bytes as a lower case hex string.
+     */
+    public static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i ++) {
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Gets the hex encoded digest of the UTF-8 encoding of the text.
+     * @param algorithm a digest algorithm that every JVM supports, such
+     * as "MD5", "SHA-1" or "SHA-256"
+     * @throws IllegalArgumentException if the algorithm isn't supported
+     */
+    public static String digest(String algorithm, String text) {
+        try {
+            return toHex(MessageDigest.getInstance(algorithm).digest(text.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalArgumentException(ex);
+        } catch (UnsupportedEncodingException ex) {
+            // every JVM supports UTF-8
+            throw new IllegalStateException(ex);
+        }
+    }
+
+}
@@ -1,55 +1,58 @@
 package org.projectbamboo.util.fedora;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URL;
 import java.net.URLEncoder;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.WritableByteChannel;
-import java.text.DateFormat;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.TimeZone;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathFactory;
 
 import org.apache.commons.httpclient.Credentials;
+import org.apache.commons.httpclient.HostConfiguration;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.NameValuePair;
+import org.apache.commons.httpclient.URIException;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
 import org.apache.commons.httpclient.methods.DeleteMethod;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.methods.PutMethod;
-import org.apache.commons.httpclient.methods.multipart.FilePart;
 import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
 import org.apache.commons.httpclient.methods.multipart.Part;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.DateUtil;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 /**
@@ -60,28 +63,36 @@ public class FedoraClient {
 
     private static final Logger log = LoggerFactory.getLogger(FedoraClient.class);
     
+    private static final String FEDORA_MODEL = "info:fedora/fedora-system:def/model#";
+    
+    private static final String FEDORA_VIEW = "info:fedora/fedora-system:def/view#";
+    
     /**
-     * The date format used to parse and generate dates as represented in
-     * fedora.
+     * The number of pids whose relationships are looked up with a single
+     * risearch query.
      */
-    private static DateFormat FEDORA_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-    static {
-        FEDORA_DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
-    }
+    public static final int RISEARCH_BATCH_SIZE = 100;
+    
+    /**
+     * The length above which risearch queries are sent in the body of a
+     * POST request rather than in the URL.
+     */
+    private static final int MAX_GET_QUERY_LENGTH = 2000;
     
     /**
      * Converts a fedora date String (like "2010-10-01T19:55:00.808Z") to
-     * a java Date object.
+     * a java Date object.  This method is thread-safe.
      */
     public static Date parseFedoraDate(String fedoraDateStr) throws ParseException {
-        return FEDORA_DATE_FORMAT.parse(fedoraDateStr);
+        return FedoraDateFormat.parse(fedoraDateStr);
     }
 
     /**
      * Converts a java Date object into a fedora-formatted date String.
+     * This method is thread-safe.
      */
     public static String printFedoraDateString(Date date) {
-        return FEDORA_DATE_FORMAT.format(date);
+        return FedoraDateFormat.format(date);
     }
     
     /**
@@ -89,30 +100,57 @@ public class FedoraClient {
      * client is initialized at construction time.
      */
     protected HttpClient client;
+    
+    /**
+     * The pool of connections used by the client.
+     */
+    private MultiThreadedHttpConnectionManager connectionManager;
+    
+    /**
+     * The thread closing idle pooled connections, or null if they are
+     * kept open.
+     */
+    private IdleConnectionTimeoutThread idleConnectionThread;
 
-    /** 
-     * A document builder for building Documents from XML.  This
-     * variable is not initialized at construction time, but instead
-     * serves as a cache for the fist DocumentBuilder instance
-     * created by calls that require it.  All access to this member
-     * variable should be mediated through getDocumentBuilder().
+    /**
+     * The namespace context shared by the XPath instances of all
+     * threads.  This variable is not initialized at construction time,
+     * but created by the first call that requires it.  All access to
+     * this member variable should be mediated through
+     * getMapNamespaceContext().
      */
-//    private DocumentBuilder documentBuilder;
+    private volatile MapNamespaceContext namespaceContext;
     
     /**
-     * An XPath implementation for dealing with Documents.  This
-     * variable is not initialized at construction time, but instead
-     * serves as a cache for the first XPath instance created by
-     * calls that require it.  All access to this member variable
-     * should be mediated through getXPath().
+     * The XPath instance of each thread, XPath not being thread-safe.
+     * All access to this member variable should be mediated through
+     * getXPath().
      */
-    private XPath xpath;
+    private final ThreadLocal<XPath> xpaths = new ThreadLocal<XPath>();
     
     /**
      * The base URL for fedora calls. 
      */
     protected String fedoraBaseUrl;
     
+    /**
+     * Latency and outcome of the REST calls made by this client, by
+     * operation.
+     */
+    private final RequestStatistics statistics = new RequestStatistics();
+    
+    /**
+     * The cache shared by all FedoraObjects of this client, or null if
+     * each FedoraObject only caches its own values.
+     */
+    private volatile ObjectCache objectCache;
+    
+    /**
+     * The allocator handing out pids for new objects, or null if fedora
+     * generates a pid for every new object.
+     */
+    private volatile PidAllocator pidAllocator;
+    
     /**
      * Instantiates an unauthenticated FedoraClient.
      * @param fedoraHost the hostname of the fedora server
@@ -126,7 +164,10 @@ public class FedoraClient {
     }
     
     /**
-     * Instantiates a potentially authenticated FedoraClient.
+     * Instantiates a potentially authenticated FedoraClient.  Idle
+     * connections are not closed in the background, as callers of this
+     * constructor predate {@link #close()} and would leak the thread
+     * doing it.
      * @param username the username (or null for anonymous access)
      * @param password the password (or null for anonymous access)
      * @param fedoraHost the hostname of the fedora server
@@ -136,11 +177,45 @@ public class FedoraClient {
      * @throws URISyntaxException 
      */
     public FedoraClient(String username, String password, String fedoraUrl, boolean readOnly) {
+        this(username, password, fedoraUrl, readOnly, createLegacySettings());
+    }
+    
+    private static ConnectionPoolSettings createLegacySettings() {
+        ConnectionPoolSettings settings = new ConnectionPoolSettings();
+        settings.setIdleTimeout(0);
+        return settings;
+    }
+    
+    /**
+     * Instantiates a potentially authenticated FedoraClient whose
+     * connection pool is configured with the given settings.  The
+     * client should be closed when no longer needed.
+     * @param username the username (or null for anonymous access)
+     * @param password the password (or null for anonymous access)
+     * @param fedoraUrl the base URL of fedora
+     * @param settings the connection pool settings
+     */
+    public FedoraClient(String username, String password, String fedoraUrl, boolean readOnly, ConnectionPoolSettings settings) {
         fedoraBaseUrl = fedoraUrl;
         
         // Create an HTTP client for future REST calls
-	MultiThreadedHttpConnectionManager mgr = new MultiThreadedHttpConnectionManager();
-        client = new HttpClient(mgr);
+        connectionManager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = connectionManager.getParams();
+        params.setDefaultMaxConnectionsPerHost(settings.getMaxConnectionsPerHost());
+        params.setMaxTotalConnections(settings.getMaxTotalConnections());
+        params.setConnectionTimeout(settings.getConnectTimeout());
+        params.setSoTimeout(settings.getSocketTimeout());
+        params.setStaleCheckingEnabled(settings.isStaleCheckingEnabled());
+        if (settings.getIdleTimeout() > 0) {
+            idleConnectionThread = new IdleConnectionTimeoutThread();
+            idleConnectionThread.setName("fedora-idle-connection-evictor");
+            idleConnectionThread.setDaemon(true);
+            idleConnectionThread.setConnectionTimeout(settings.getIdleTimeout());
+            idleConnectionThread.setTimeoutInterval(Math.max(1000L, settings.getIdleTimeout() / 2));
+            idleConnectionThread.addConnectionManager(connectionManager);
+            idleConnectionThread.start();
+        }
+        client = new HttpClient(connectionManager);
         if (username != null) {
             this.client.getParams().setAuthenticationPreemptive(true);
             Credentials credentials = new UsernamePasswordCredentials(username, password);
@@ -154,33 +229,27 @@ public class FedoraClient {
     }
     
     /**
-     * Gets or creates a DocumentBuilder.
+     * Gets the DocumentBuilder of the calling thread, which is reset
+     * and reused rather than created for every document.  The builder
+     * must not be shared with other threads.
      */
     protected DocumentBuilder getDocumentBuilder() throws ParserConfigurationException {
-//        if (this.documentBuilder != null) {
-//            return this.documentBuilder;
-//        } else {
-            // create the document builder
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
-//            this.documentBuilder = factory.newDocumentBuilder();
-//            return this.documentBuilder;
-	    return factory.newDocumentBuilder();
-//        }
+        return FedoraXml.getDocumentBuilder();
     }
     
     /**
-     * Gets or creates and XPath configured with namespaces appropriate
-     * for all other internal methods.
+     * Gets or creates the XPath of the calling thread, configured with
+     * namespaces appropriate for all other internal methods.  The
+     * XPath must not be shared with other threads.
      */
     protected XPath getXPath() {
-        if (this.xpath != null) {
-            return this.xpath;
-        } else {
-            this.xpath = XPathFactory.newInstance().newXPath();
-            this.xpath.setNamespaceContext(this.createNamespaceContext());
-            return this.xpath;
+        XPath xpath = xpaths.get();
+        if (xpath == null) {
+            xpath = XPathFactory.newInstance().newXPath();
+            xpath.setNamespaceContext(getMapNamespaceContext());
+            xpaths.set(xpath);
         }
+        return xpath;
     }
     
     /**
@@ -210,10 +279,65 @@ public class FedoraClient {
     }
     
     /**
-     * Gets the MapNamespaceContext associated with the XPath.
+     * Gets the MapNamespaceContext associated with the XPath instances
+     * of all threads.  Mappings added to it are visible to all of them.
      */
     public MapNamespaceContext getMapNamespaceContext() {
-        return (MapNamespaceContext) this.getXPath().getNamespaceContext();
+        MapNamespaceContext nsc = namespaceContext;
+        if (nsc == null) {
+            synchronized (this) {
+                nsc = namespaceContext;
+                if (nsc == null) {
+                    nsc = createNamespaceContext();
+                    namespaceContext = nsc;
+                }
+            }
+        }
+        return nsc;
+    }
+    
+    /**
+     * Closes all pooled connections and stops the idle connection
+     * eviction, as well as the background thread of the pid allocator,
+     * if any.  The client can't be used afterwards.
+     */
+    public void close() {
+        if (idleConnectionThread != null) {
+            idleConnectionThread.shutdown();
+            idleConnectionThread = null;
+        }
+        PidAllocator allocator = pidAllocator;
+        if (allocator != null) {
+            allocator.close();
+        }
+        connectionManager.shutdown();
+    }
+    
+    /**
+     * Gets the number of pooled connections, whether in use or idle.
+     */
+    public int getConnectionsInPool() {
+        return connectionManager.getConnectionsInPool();
+    }
+    
+    /**
+     * Gets the number of pooled connections to the fedora host.
+     */
+    public int getConnectionsToFedora() {
+        try {
+            HostConfiguration host = new HostConfiguration();
+            host.setHost(new org.apache.commons.httpclient.URI(fedoraBaseUrl, false));
+            return connectionManager.getConnectionsInPool(host);
+        } catch (URIException ex) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Gets the connection pool settings in effect.
+     */
+    public HttpConnectionManagerParams getConnectionPoolParams() {
+        return connectionManager.getParams();
     }
     
     /**
@@ -223,39 +347,428 @@ public class FedoraClient {
         return fedoraBaseUrl;
     }
     
+    /**
+     * Gets the statistics of the REST calls made by this client.  Call
+     * {@link RequestStatistics#registerMBeans(String)} on the result to
+     * publish them through JMX.
+     */
+    public RequestStatistics getStatistics() {
+        return statistics;
+    }
+    
+    /**
+     * Sets the cache of object profiles, datastream lists and content
+     * models shared by all FedoraObjects of this client.  Without a
+     * cache (the default) every FedoraObject fetches and caches its
+     * own values.
+     * @param objectCache the cache, or null to disable caching across
+     * FedoraObjects
+     */
+    public void setObjectCache(ObjectCache objectCache) {
+        this.objectCache = objectCache;
+    }
+    
+    /**
+     * Gets the cache shared by the FedoraObjects of this client, or null.
+     */
+    public ObjectCache getObjectCache() {
+        return objectCache;
+    }
+    
+    /**
+     * Sets the allocator from which {@link #createObject(String, String,
+     * String, String)} takes the pids of objects created without one.
+     * Without an allocator (the default) fedora generates the pid as
+     * part of creating the object.
+     * @param pidAllocator the allocator, or null to let fedora generate
+     * pids
+     */
+    public void setPidAllocator(PidAllocator pidAllocator) {
+        this.pidAllocator = pidAllocator;
+    }
+    
+    /**
+     * Gets the allocator of pids for new objects, or null.
+     */
+    public PidAllocator getPidAllocator() {
+        return pidAllocator;
+    }
+    
+    /**
+     * Executes an HTTP method, recording its latency and outcome in the
+     * statistics of the given operation.
+     * @return the HTTP status code
+     */
+    protected int executeMethod(String operation, HttpMethod method) throws HttpException, IOException {
+        OperationStatistics stats = statistics.getOperation(operation);
+        long start = stats.start();
+        try {
+            int status = client.executeMethod(method);
+            stats.complete(start, status);
+            return status;
+        } catch (IOException ex) {
+            stats.fail(start);
+            throw ex;
+        } catch (RuntimeException ex) {
+            stats.fail(start);
+            throw ex;
+        }
+    }
+    
     public FedoraObject getFedoraObject(String pid) throws FedoraException {
         return new FedoraObject(pid, this, false);
     }
     
+    /**
+     * Gets a handle for an object.  A lazy handle is returned without
+     * any request to fedora; its profile is fetched when first needed,
+     * so a missing object is only detected at that point.
+     */
+    public FedoraObject getFedoraObject(String pid, boolean lazy) throws FedoraException {
+        return new FedoraObject(pid, this, false, lazy);
+    }
+    
     public List<FedoraObject> getRelatedObjects(String subjectPid, String predicate, String objectPid) throws FedoraException, IOException {
-        String riSearchUrl = null;
+        List<String> pids = new ArrayList<String>();
+        ResultIterator it = iterateRelatedPids(subjectPid, predicate, objectPid, 0, 0);
+        try {
+            while (it.hasNext()) {
+                pids.add(it.next());
+            }
+        } finally {
+            it.close();
+        }
+        List<FedoraObject> objects = new ArrayList<FedoraObject>(pids.size());
+        for (String pid : pids) {
+            objects.add(new FedoraObject(pid, this, false));
+        }
+        return objects;
+    }
+    
+    /**
+     * Gets the objects related to the given subject or object.  Lazy
+     * handles are returned without fetching any object profile, which
+     * saves one request per related object when the profiles aren't
+     * needed.
+     */
+    public List<FedoraObject> getRelatedObjects(String subjectPid, String predicate, String objectPid, boolean lazy) throws FedoraException, IOException {
+        if (!lazy) {
+            return getRelatedObjects(subjectPid, predicate, objectPid);
+        }
+        List<FedoraObject> objects = new ArrayList<FedoraObject>();
+        ResultIterator it = iterateRelatedPids(subjectPid, predicate, objectPid, 0, 0);
+        try {
+            while (it.hasNext()) {
+                objects.add(new FedoraObject(it.next(), this, false, true));
+            }
+        } finally {
+            it.close();
+        }
+        return objects;
+    }
+    
+    /**
+     * Gets the objects related to the given subject or object, fetching
+     * their profiles concurrently on the given executor.  The number of
+     * requests actually running in parallel is bounded by the size of
+     * the connection pool.  Objects that no longer exist are left out.
+     */
+    public List<FedoraObject> getRelatedObjects(String subjectPid, String predicate, String objectPid, ExecutorService executor) throws FedoraException, IOException {
+        List<FedoraObject> objects = getRelatedObjects(subjectPid, predicate, objectPid, true);
+        List<Future<ObjectProfile>> profiles = new ArrayList<Future<ObjectProfile>>(objects.size());
+        for (final FedoraObject object : objects) {
+            profiles.add(executor.submit(new Callable<ObjectProfile>() {
+                public ObjectProfile call() throws FedoraException {
+                    return object.getObjectProfile();
+                }
+            }));
+        }
+        List<FedoraObject> found = new ArrayList<FedoraObject>(objects.size());
+        boolean complete = false;
+        try {
+            for (int i = 0; i < objects.size(); i ++) {
+                if (profiles.get(i).get() != null) {
+                    found.add(objects.get(i));
+                }
+            }
+            complete = true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new FedoraException(ex);
+        } catch (ExecutionException ex) {
+            throw new FedoraException(ex.getCause());
+        } finally {
+            if (!complete) {
+                // don't leave the remaining requests running for nobody
+                for (Future<ObjectProfile> profile : profiles) {
+                    profile.cancel(true);
+                }
+            }
+        }
+        return found;
+    }
+    
+    /**
+     * Gets the objects related to the given subject or object together
+     * with their profiles, using a single risearch query rather than one
+     * profile request per object.  The profiles are assembled from the
+     * resource index, which holds the label, owner, state, content
+     * models and creation and modification dates of every object.
+     * As the resource index may lag behind, these profiles aren't put
+     * in the object cache; with a cache set, each one is revalidated
+     * with a conditional request when the profile is first asked for.
+     */
+    public List<FedoraObject> getRelatedObjectsWithProfiles(String subjectPid, String predicate, String objectPid) throws FedoraException, IOException {
+        String relation = null;
         if (subjectPid == null && objectPid == null) {
             throw new IllegalArgumentException("either subject or object must be specified");
         } else if (subjectPid == null) {
-            riSearchUrl = this.fedoraBaseUrl + (this.fedoraBaseUrl.endsWith("/") ? "" : "/") + "risearch?type=tuples&lang=itql&format=Sparql&query=select%20%24child%20from%20%3C%23ri%3E%20%0Awhere%20%24child%20%3C" + URLEncoder.encode(predicate, "UTF-8")+ "%3E%20%3Cinfo%3Afedora/" + URLEncoder.encode(objectPid, "UTF-8") + "%3E";
+            relation = "?child <" + predicate + "> <info:fedora/" + objectPid + "> . ";
         } else {
-            riSearchUrl = this.fedoraBaseUrl + (this.fedoraBaseUrl.endsWith("/") ? "" : "/") + "risearch?type=tuples&lang=itql&format=Sparql&query=select%20%24child%20from%20%3C%23ri%3E%20%0Awhere%20%3Cinfo%3Afedora/" + URLEncoder.encode(subjectPid, "UTF-8") + "%3E%20%3C" + URLEncoder.encode(predicate, "UTF-8")+ "%3E%20%24child";   
+            relation = "<info:fedora/" + subjectPid + "> <" + predicate + "> ?child . ";
         }
-        log.debug(riSearchUrl);
-        List<FedoraObject> objects = new ArrayList<FedoraObject>();
+        String query = "SELECT ?child ?label ?owner ?state ?model ?created ?modified FROM <#ri> WHERE { " + relation
+                + "OPTIONAL { ?child <" + FEDORA_MODEL + "label> ?label } "
+                + "OPTIONAL { ?child <" + FEDORA_MODEL + "ownerId> ?owner } "
+                + "OPTIONAL { ?child <" + FEDORA_MODEL + "state> ?state } "
+                + "OPTIONAL { ?child <" + FEDORA_MODEL + "hasModel> ?model } "
+                + "OPTIONAL { ?child <" + FEDORA_MODEL + "createdDate> ?created } "
+                + "OPTIONAL { ?child <" + FEDORA_VIEW + "lastModifiedDate> ?modified } } ORDER BY ?child";
+        List<Map<String, String>> tuples = null;
+        HttpMethod method = executeRiSearch("sparql", query);
         try {
-            Document doc = getDocumentBuilder().parse(new InputSource( new URL(riSearchUrl).openStream()));
-            NodeList children = doc.getDocumentElement().getElementsByTagName("child");
-            for (int i = 0; i < children.getLength(); i ++) {
-                objects.add(new FedoraObject(((Element) children.item(i)).getAttribute("uri").replace("info:fedora/", ""), this, false));
-            }
-        } catch (SAXException ex) {
-            throw new FedoraException(ex);
-        } catch (ParserConfigurationException ex) {
+            tuples = SparqlResults.readTuples(method.getResponseBodyAsStream());
+        } catch (XMLStreamException ex) {
             throw new FedoraException(ex);
+        } finally {
+            method.releaseConnection();
+        }
+
+        // an object has one row per content model
+        Map<String, List<Map<String, String>>> rowsByPid = new LinkedHashMap<String, List<Map<String, String>>>();
+        for (Map<String, String> tuple : tuples) {
+            String pid = tuple.get("child");
+            if (pid == null) {
+                continue;
+            }
+            pid = pid.replace("info:fedora/", "");
+            List<Map<String, String>> rows = rowsByPid.get(pid);
+            if (rows == null) {
+                rows = new ArrayList<Map<String, String>>(2);
+                rowsByPid.put(pid, rows);
+            }
+            rows.add(tuple);
+        }
+        List<FedoraObject> objects = new ArrayList<FedoraObject>(rowsByPid.size());
+        for (Map.Entry<String, List<Map<String, String>>> entry : rowsByPid.entrySet()) {
+            Map<String, String> first = entry.getValue().get(0);
+            List<String> models = new ArrayList<String>(entry.getValue().size());
+            for (Map<String, String> row : entry.getValue()) {
+                String model = row.get("model");
+                if (model != null && !models.contains(model)) {
+                    models.add(model);
+                }
+            }
+            String state = first.get("state");
+            if (state != null) {
+                // model#Active, model#Inactive and model#Deleted, abbreviated as in object profiles
+                state = state.substring(state.lastIndexOf('#') + 1).substring(0, 1);
+            }
+            ObjectProfile profile = new ObjectProfile(entry.getKey(), valueOrEmpty(first.get("label")),
+                    valueOrEmpty(first.get("owner")), models, parseDateQuietly(first.get("created")),
+                    parseDateQuietly(first.get("modified")), valueOrEmpty(state));
+            objects.add(new FedoraObject(entry.getKey(), profile, false));
         }
         return objects;
     }
     
+    private static String valueOrEmpty(String value) {
+        return value == null ? "" : value;
+    }
+    
+    private static Date parseDateQuietly(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return parseFedoraDate(value.trim());
+        } catch (ParseException ex) {
+            return null;
+        }
+    }
+    
+    /**
+     * Lazily iterates over the pids of all objects related to the given
+     * subject or object, as they are read from the risearch response.
+     * The results are requested in pages of the given size, so that no
+     * single response grows with the number of related objects.
+     * @param pageSize the number of pids requested at once
+     */
+    public ResultIterator iterateRelatedPids(String subjectPid, String predicate, String objectPid, final int pageSize) throws FedoraException, IOException {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("the page size must be positive");
+        }
+        final String query = buildRelatedPidsQuery(subjectPid, predicate, objectPid);
+        return new ResultIterator(new ResultIterator.PageSource() {
+            public HttpMethod openPage(int page) throws IOException, FedoraException {
+                return executeRiSearch(query + " limit " + pageSize + " offset " + ((long) page * pageSize));
+            }
+        }, "child", "uri", "info:fedora/", pageSize);
+    }
+    
+    /**
+     * Lazily iterates over one window of the pids of the objects related
+     * to the given subject or object, which are ordered by pid.
+     * @param offset the number of pids to skip
+     * @param limit the maximum number of pids to return, or 0 for all
+     */
+    public ResultIterator iterateRelatedPids(String subjectPid, String predicate, String objectPid, int offset, int limit) throws FedoraException, IOException {
+        final String query = buildRelatedPidsQuery(subjectPid, predicate, objectPid) + (limit > 0 ? " limit " + limit : "") + (offset > 0 ? " offset " + offset : "");
+        return new ResultIterator(new ResultIterator.PageSource() {
+            public HttpMethod openPage(int page) throws IOException, FedoraException {
+                return executeRiSearch(query);
+            }
+        }, "child", "uri", "info:fedora/", 0);
+    }
+    
+    private static String buildRelatedPidsQuery(String subjectPid, String predicate, String objectPid) {
+        if (subjectPid == null && objectPid == null) {
+            throw new IllegalArgumentException("either subject or object must be specified");
+        } else if (subjectPid == null) {
+            return "select $child from <#ri> where $child <" + predicate + "> <info:fedora/" + objectPid + "> order by $child";
+        } else {
+            return "select $child from <#ri> where <info:fedora/" + subjectPid + "> <" + predicate + "> $child order by $child";
+        }
+    }
+    
+    /**
+     * Gets the pids of the objects related to each of the given subjects
+     * with a single risearch query per {@link #RISEARCH_BATCH_SIZE}
+     * subjects, instead of one query per subject.
+     * @return the related pids by subject pid, in the order of the
+     * subjects, with an empty list for subjects without relationships
+     */
+    public Map<String, List<String>> getRelatedPidsBySubject(Collection<String> subjectPids, String predicate) throws FedoraException, IOException {
+        return getRelatedPids(subjectPids, predicate, true);
+    }
+    
+    /**
+     * Gets the pids of the subjects related to each of the given objects
+     * with a single risearch query per {@link #RISEARCH_BATCH_SIZE}
+     * objects, instead of one query per object.
+     * @return the related pids by object pid, in the order of the
+     * objects, with an empty list for objects without relationships
+     */
+    public Map<String, List<String>> getRelatedPidsByObject(Collection<String> objectPids, String predicate) throws FedoraException, IOException {
+        return getRelatedPids(objectPids, predicate, false);
+    }
+    
+    private Map<String, List<String>> getRelatedPids(Collection<String> pids, String predicate, boolean bySubject) throws FedoraException, IOException {
+        final Map<String, List<String>> related = new LinkedHashMap<String, List<String>>();
+        for (String pid : new LinkedHashSet<String>(pids)) {
+            related.put(pid, new ArrayList<String>());
+        }
+        final String keyVar = bySubject ? "s" : "o";
+        final String valueVar = bySubject ? "o" : "s";
+        List<String> batch = new ArrayList<String>(RISEARCH_BATCH_SIZE);
+        for (String pid : related.keySet()) {
+            batch.add(pid);
+            if (batch.size() == RISEARCH_BATCH_SIZE) {
+                readRelatedPids(batch, predicate, keyVar, valueVar, related);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            readRelatedPids(batch, predicate, keyVar, valueVar, related);
+        }
+        return related;
+    }
+    
+    /**
+     * Runs the query for one batch of pids and adds the results to the
+     * map as they are read from the response.
+     */
+    private void readRelatedPids(List<String> batch, String predicate, String keyVar, final String valueVar, final Map<String, List<String>> related) throws FedoraException, IOException {
+        StringBuilder query = new StringBuilder("select $s $o from <#ri> where $s <" + predicate + "> $o and (");
+        for (int i = 0; i < batch.size(); i ++) {
+            query.append(i == 0 ? "" : " or ").append("$" + keyVar + " <mulgara:is> <info:fedora/" + batch.get(i) + ">");
+        }
+        query.append(") order by $" + keyVar + " $" + valueVar);
+        final String keyName = keyVar;
+        HttpMethod method = executeRiSearch(query.toString());
+        try {
+            SparqlResults.readTuples(method.getResponseBodyAsStream(), new SparqlResults.TupleHandler() {
+                public void handleTuple(Map<String, String> tuple) {
+                    List<String> pids = related.get(stripFedoraUri(tuple.get(keyName)));
+                    String value = tuple.get(valueVar);
+                    if (pids != null && value != null) {
+                        pids.add(stripFedoraUri(value));
+                    }
+                }
+            });
+        } catch (XMLStreamException ex) {
+            throw new FedoraException(ex);
+        } finally {
+            method.releaseConnection();
+        }
+    }
+    
+    private static String stripFedoraUri(String uri) {
+        return uri != null && uri.startsWith("info:fedora/") ? uri.substring("info:fedora/".length()) : uri;
+    }
+    
+    /**
+     * Runs an iTQL tuple query and returns the executed method, whose
+     * SPARQL XML response body is yet to be read.  The caller must
+     * release the connection.
+     */
+    protected HttpMethod executeRiSearch(String itqlQuery) throws FedoraException, IOException {
+        return executeRiSearch("itql", itqlQuery);
+    }
+    
+    /**
+     * Runs a tuple query in the given language ("itql" or "sparql") and
+     * returns the executed method, whose SPARQL XML response body is
+     * yet to be read.  The caller must release the connection.
+     */
+    protected HttpMethod executeRiSearch(String lang, String query) throws FedoraException, IOException {
+        String url = fedoraBaseUrl + (fedoraBaseUrl.endsWith("/") ? "" : "/") + "risearch";
+        NameValuePair[] params = new NameValuePair[] {
+                new NameValuePair("type", "tuples"),
+                new NameValuePair("lang", lang),
+                new NameValuePair("format", "Sparql"),
+                new NameValuePair("query", query) };
+        HttpMethod method;
+        if (query.length() > MAX_GET_QUERY_LENGTH) {
+            // long queries would exceed the URL length limits of servers and proxies
+            PostMethod post = new PostMethod(url);
+            post.setRequestBody(params);
+            method = post;
+        } else {
+            method = new GetMethod(url);
+            method.setQueryString(params);
+        }
+        log.debug(query);
+        boolean success = false;
+        try {
+            executeMethod("risearch", method);
+            if (!isStatusSuccess(method.getStatusCode())) {
+                throw new FedoraException("risearch query \"" + query + "\" failed: " + method.getStatusLine());
+            }
+            success = true;
+            return method;
+        } finally {
+            if (!success) {
+                method.releaseConnection();
+            }
+        }
+    }
+    
     /**
      * Creates a new object in the repository (not from an existing FOXML file).  Any
      * of the following parameters may be null.
-     * @param pid the pid of the new object (or null to use an auto-generated pid).
+     * @param pid the pid of the new object (or null to use an auto-generated pid,
+     * taken from the pid allocator if one is set).
      * This method will throw an exception if a pid is specified that already exists
      * in the repository.
      * @param label the label of the object
@@ -265,6 +778,10 @@ public class FedoraClient {
      * @return the pid of the newly created object
      */
     public String createObject(String pid, String label, String ownerId, String namespace) throws FedoraException, HttpException, IOException {
+        PidAllocator allocator = pidAllocator;
+        if (pid == null && allocator != null) {
+            pid = allocator.nextPid(namespace);
+        }
         StringBuffer query = new StringBuffer();
         if (label != null) {
             query.append(query.length() == 0 ? "?" : "&");
@@ -286,17 +803,69 @@ public class FedoraClient {
         */
         String url = this.fedoraBaseUrl + "/objects/" + (pid == null ? "new" : pid) + query.toString();
         PostMethod method = new PostMethod(url);
-        int statusCode = this.client.executeMethod(method);
-        if (statusCode != HttpStatus.SC_CREATED) {
-            throw new RuntimeException("REST action \"" + url + "\" failed: " + method.getStatusLine());
-        } else {
-            pid = method.getResponseBodyAsString(1024);
-            log.info(fedoraBaseUrl + ": Created object " + pid);
-            return pid;
+        try {
+            int statusCode = executeMethod("createObject", method);
+            if (statusCode != HttpStatus.SC_CREATED) {
+                throw new RuntimeException("REST action \"" + url + "\" failed: " + method.getStatusLine());
+            } else {
+                pid = method.getResponseBodyAsString(1024);
+                log.info(fedoraBaseUrl + ": Created object " + pid);
+                return pid;
+            }
+        } finally {
+            method.releaseConnection();
         }
 
     }    
 
+    /**
+     * Reserves pids with fedora's nextPID method, so that objects can be
+     * created with known pids.
+     * @param namespace the namespace of the pids, or null for fedora's
+     * default namespace
+     * @param count the number of pids to reserve
+     * @return the reserved pids
+     */
+    public List<String> reservePids(String namespace, int count) throws FedoraException, IOException {
+        PostMethod post = new PostMethod(fedoraBaseUrl + "/objects/nextPID");
+        List<NameValuePair> params = new ArrayList<NameValuePair>();
+        params.add(new NameValuePair("numPIDs", String.valueOf(count)));
+        if (namespace != null) {
+            params.add(new NameValuePair("namespace", namespace));
+        }
+        params.add(new NameValuePair("format", "xml"));
+        post.setQueryString(params.toArray(new NameValuePair[params.size()]));
+        try {
+            executeMethod("reservePids", post);
+            if (!isStatusSuccess(post.getStatusCode())) {
+                throw new FedoraException("REST action \"nextPID\" failed: " + post.getStatusLine());
+            }
+            return FedoraXml.readElementTexts(post.getResponseBodyAsStream(), "pid");
+        } catch (XMLStreamException ex) {
+            throw new FedoraException(ex);
+        } finally {
+            post.releaseConnection();
+        }
+    }
+
+    /**
+     * Creates a batch of objects with their datastreams and relationships.
+     * Pids are reserved for the objects that don't have one, with a
+     * single request per namespace.  Then the objects are created, their
+     * datastreams added and finally their relationships, each phase
+     * running its requests on the executor.  A failure affects only the
+     * object it occurred for, and is reported in the result rather than
+     * thrown.
+     * @param executor the executor running the requests
+     * @param maxConcurrentRequests the maximum number of requests in
+     * flight at the same time
+     * @throws FedoraException if the pids couldn't be reserved, in which
+     * case no object has been created
+     */
+    public BulkIngestResult ingest(List<ObjectSpec> objects, ExecutorService executor, int maxConcurrentRequests) throws FedoraException, IOException {
+        return new BulkIngest(this, executor, maxConcurrentRequests).run(objects);
+    }
+
     public String getDatastreamDisseminationUrl(String pid, String dsId) {
         return fedoraBaseUrl + "get/" + pid + "/" + dsId;
     }
@@ -333,16 +902,41 @@ public class FedoraClient {
         private boolean readonly;
         
         private FedoraObject(String pid, FedoraClient fc, boolean readonly) throws FedoraException {
+            this(pid, fc, readonly, false);
+        }
+        
+        /**
+         * Creates a handle for an object.  Unless the handle is lazy,
+         * the object profile is fetched right away, which also verifies
+         * that the object exists.  Lazy handles defer the fetch until
+         * the profile is first needed.
+         */
+        private FedoraObject(String pid, FedoraClient fc, boolean readonly, boolean lazy) throws FedoraException {
             this.pid = pid;
             this.readonly = readonly;
             cmodels = null;
             dsIds = null;
-            if (getObjectProfile() == null) {
+            if (!lazy && getObjectProfile() == null) {
                 throw new FedoraObjectNotFoundException(pid + " was not found in the repository!");
             }
             
         }
         
+        /**
+         * Creates a handle for an object whose profile is already known.
+         * Such profiles are assembled from the resource index, which may
+         * lag behind the repository, so they aren't put in the object
+         * cache; with a cache, they only serve as the basis of a
+         * conditional request for the actual profile.
+         */
+        private FedoraObject(String pid, ObjectProfile objectProfile, boolean readonly) {
+            this.pid = pid;
+            this.readonly = readonly;
+            this.objectProfile = objectProfile;
+            cmodels = null;
+            dsIds = null;
+        }
+        
         public String getPid() {
             return pid;
         }
@@ -360,109 +954,277 @@ public class FedoraClient {
          * @return an encapsulated version of the object profile
          */
         public ObjectProfile getObjectProfile() throws FedoraException {
-            if (objectProfile != null) {
+            ObjectCache cache = objectCache;
+            if (cache == null) {
+                if (objectProfile == null) {
+                    objectProfile = fetchObjectProfile(null);
+                }
                 return objectProfile;
+            }
+            ObjectCache.CachedObject entry = cache.getEntry(pid);
+            ObjectProfile cached = entry.getProfile();
+            boolean expired = !cache.isFresh(entry);
+            if (cached != null && !expired) {
+                cache.recordHit();
+                return cached;
+            }
+            // a profile read from the resource index is revalidated like an expired one
+            ObjectProfile known = cached != null ? cached : objectProfile;
+            cache.recordMiss(known != null);
+            long version = entry.getVersion();
+            ObjectProfile profile = fetchObjectProfile(known);
+            if (profile == null) {
+                cache.invalidate(pid);
             } else {
-                String dateTime = null;
-                String url = fedoraBaseUrl + "/objects/" + pid + "?format=xml" + (dateTime != null ? "&asOfDateTime=" + dateTime : "");
-                try {
-                    GetMethod get = new GetMethod(url);
-                    client.executeMethod(get);
-                    if (get.getStatusCode() == HttpStatus.SC_NOT_FOUND) {
-                        return null;
-                    } else if (isStatusSuccess(get.getStatusCode())) {
-                        Document xml  = getDocumentBuilder().parse(get.getResponseBodyAsStream());
-                        objectProfile = new ObjectProfile(xml, getXPath());
-                        return objectProfile;
-                    } else {
-                        throw new FedoraException("REST action \"" + url + "\" failed: " + get.getStatusLine());
+                entry.setProfile(profile, version, expired);
+            }
+            return profile;
+        }
+        
+        /**
+         * Gets the cache entry of this object, first revalidating its
+         * profile if the entry has expired.
+         */
+        private ObjectCache.CachedObject getCurrentEntry(ObjectCache cache) throws FedoraException {
+            ObjectCache.CachedObject entry = cache.getEntry(pid);
+            if (!cache.isFresh(entry)) {
+                getObjectProfile();
+                entry = cache.getEntry(pid);
+            }
+            return entry;
+        }
+        
+        /**
+         * Fetches the object profile, or returns the given cached profile
+         * if fedora reports that the object hasn't been modified since.
+         * @return the profile or null if the object doesn't exist
+         */
+        private ObjectProfile fetchObjectProfile(ObjectProfile cached) throws FedoraException {
+            String dateTime = null;
+            String url = fedoraBaseUrl + "/objects/" + pid + "?format=xml" + (dateTime != null ? "&asOfDateTime=" + dateTime : "");
+            GetMethod get = new GetMethod(url);
+            if (cached != null && cached.getLastModDate() != null) {
+                get.setRequestHeader("If-Modified-Since", DateUtil.formatDate(cached.getLastModDate()));
+            }
+            try {
+                executeMethod("getObjectProfile", get);
+                if (get.getStatusCode() == HttpStatus.SC_NOT_FOUND) {
+                    return null;
+                } else if (get.getStatusCode() == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                    return cached;
+                } else if (isStatusSuccess(get.getStatusCode())) {
+                    ObjectProfile profile = ObjectProfile.parse(get.getResponseBodyAsStream());
+                    // HTTP dates have no milliseconds, so compare the modification dates too
+                    if (cached != null && cached.getLastModDate() != null && cached.getLastModDate().equals(profile.getLastModDate())) {
+                        return cached;
                     }
-                } catch (HttpException ex) {
-                    throw new FedoraException(ex);
-                } catch (IOException ex) {
-                    throw new FedoraException(ex);
-                } catch (SAXException ex) {
-                    throw new FedoraException(ex);
-                } catch (ParserConfigurationException ex) {
-                    throw new FedoraException(ex);
+                    return profile;
+                } else {
+                    throw new FedoraException("REST action \"" + url + "\" failed: " + get.getStatusLine());
                 }
+            } catch (HttpException ex) {
+                throw new FedoraException(ex);
+            } catch (IOException ex) {
+                throw new FedoraException(ex);
+            } catch (XMLStreamException ex) {
+                throw new FedoraException(ex);
+            } finally {
+                get.releaseConnection();
             }
         }
         
         public List<String> listDatastreams() throws FedoraException, IOException {
-            if (dsIds != null) {
+            ObjectCache cache = objectCache;
+            if (cache != null) {
+                ObjectCache.CachedObject entry = getCurrentEntry(cache);
+                List<String> cached = entry.getDatastreams();
+                if (cached != null) {
+                    cache.recordHit();
+                    return cached;
+                }
+                cache.recordMiss(false);
+                long version = entry.getVersion();
+                List<String> ids = fetchDatastreamIds();
+                entry.setDatastreams(ids, version);
+                return ids;
+            } else if (dsIds != null) {
                 return dsIds;
             } else {
-                GetMethod get = new GetMethod(fedoraBaseUrl + "/objects/" + pid + "/datastreams?format=xml");
-                client.executeMethod(get);
-                try {
-                    Document dsDoc = getDocumentBuilder().parse(get.getResponseBodyAsStream());
-                    NodeList elements = dsDoc.getDocumentElement().getChildNodes();
-                    dsIds = new ArrayList<String>(elements.getLength());
-                    for (int i = 0; i < elements.getLength(); i ++) {
-                        if (elements.item(i) instanceof Element) {
-                            Element el = (Element) elements.item(i);
-                            if (el.getNodeName().equals("datastream")) {
-                                dsIds.add(el.getAttribute("dsid"));
-                            }
-                        }
-                    }
-                    return dsIds;
-                } catch (SAXException ex) {
-                    throw new FedoraException(ex);
-                } catch (ParserConfigurationException ex) {
-                    throw new FedoraException(ex);
+                dsIds = fetchDatastreamIds();
+                return dsIds;
+            }
+        }
+        
+        private List<String> fetchDatastreamIds() throws FedoraException, IOException {
+            List<String> ids = new ArrayList<String>();
+            ResultIterator it = iterateDatastreams();
+            try {
+                while (it.hasNext()) {
+                    ids.add(it.next());
                 }
+            } finally {
+                it.close();
             }
+            return ids;
+        }
+        
+        /**
+         * Lazily iterates over the ids of the datastreams of this object
+         * as they are read from the listing.  Unlike {@link
+         * #listDatastreams()}, the result isn't cached.
+         */
+        public ResultIterator iterateDatastreams() throws FedoraException, IOException {
+            final String url = fedoraBaseUrl + "/objects/" + pid + "/datastreams?format=xml";
+            return new ResultIterator(new ResultIterator.PageSource() {
+                public HttpMethod openPage(int page) throws IOException, FedoraException {
+                    GetMethod get = new GetMethod(url);
+                    executeMethod("listDatastreams", get);
+                    if (!isStatusSuccess(get.getStatusCode())) {
+                        get.releaseConnection();
+                        throw new FedoraException("REST action \"" + url + "\" failed: " + get.getStatusLine());
+                    }
+                    return get;
+                }
+            }, "datastream", "dsid", null, 0);
         }
         
         public InputStream getDatastream(String dsName) throws IOException {
             String asOfDateTime = null;
             String url = fedoraBaseUrl + "/objects/" + pid + "/datastreams/" + dsName + "/content" + (asOfDateTime != null ? "?asOfDateTime=" + URLEncoder.encode(asOfDateTime, "UTF-8") : "");
             GetMethod get = new GetMethod(url);
-            client.executeMethod(get);
-            if (!isStatusSuccess(get.getStatusCode())) {
-                throw new RuntimeException("REST action \"" + url + "\" failed: " + get.getStatusLine());
+            boolean success = false;
+            try {
+                executeMethod("getDatastream", get);
+                if (!isStatusSuccess(get.getStatusCode())) {
+                    throw new RuntimeException("REST action \"" + url + "\" failed: " + get.getStatusLine());
+                }
+                InputStream in = get.getResponseBodyAsStream();
+                success = true;
+                return in;
+            } finally {
+                // otherwise the connection is released once the content has been read
+                if (!success) {
+                    get.releaseConnection();
+                }
             }
-            return get.getResponseBodyAsStream();
+        }
+        
+        /**
+         * Downloads the content of a datastream to a file in a single
+         * request.  If the file already holds part of the content, for
+         * example after an interrupted download, only the rest is
+         * requested.  The file is checked against the size and checksum
+         * of the datastream profile.
+         */
+        public void downloadDatastream(String dsId, File file) throws FedoraException, IOException {
+            downloadDatastream(dsId, file, null, 0);
+        }
+        
+        /**
+         * Downloads the content of a datastream to a file, splitting
+         * datastreams larger than the segment size into ranged requests
+         * that are run on the given executor.  The file is checked
+         * against the size and checksum of the datastream profile.
+         * @param executor the executor for the segment requests, or null
+         * to download in a single, resumable request
+         * @param segmentSize the number of bytes per segment request
+         */
+        public void downloadDatastream(String dsId, File file, ExecutorService executor, long segmentSize) throws FedoraException, IOException {
+            DatastreamProfile profile = null;
+            try {
+                profile = getDatastreamProfile(dsId);
+            } catch (SAXException ex) {
+                throw new FedoraException(ex);
+            } catch (ParserConfigurationException ex) {
+                throw new FedoraException(ex);
+            }
+            String url = fedoraBaseUrl + "/objects/" + pid + "/datastreams/" + dsId + "/content";
+            new DatastreamDownload(FedoraClient.this, url, file, profile).run(executor, segmentSize);
         }
         
         public List<String> getContentModelURIs() throws FedoraException, IOException {
-            if (cmodels != null) {
+            ObjectCache cache = objectCache;
+            if (cache != null) {
+                ObjectCache.CachedObject entry = getCurrentEntry(cache);
+                List<String> cached = entry.getContentModels();
+                if (cached != null) {
+                    cache.recordHit();
+                    return cached;
+                }
+                cache.recordMiss(false);
+                long version = entry.getVersion();
+                List<String> uris = fetchContentModelURIs();
+                entry.setContentModels(uris, version);
+                return uris;
+            } else if (cmodels != null) {
                 return cmodels;
             } else {
-                cmodels = new ArrayList<String>();
-                try {
-                    String relsextUrl = fedoraBaseUrl + "/get/" + pid + "/RELS-EXT";
-                    Document doc = getDocumentBuilder().parse(new InputSource(new URL(relsextUrl).openStream()));
-                    NodeList descriptionNodeList = doc.getDocumentElement().getElementsByTagNameNS("http://www.w3.org/1999/02/22-rdf-syntax-ns#", "Description");
-                    NodeList cmodelNodeList = ((Element) descriptionNodeList.item(0)).getElementsByTagNameNS("info:fedora/fedora-system:def/model#", "hasModel");
-                    for (int i = 0; i < cmodelNodeList.getLength(); i ++) {
-                        cmodels.add(((Element) cmodelNodeList.item(i)).getAttributeNS("http://www.w3.org/1999/02/22-rdf-syntax-ns#", "resource"));
-                    }
-                } catch (SAXException ex) {
-                    throw new FedoraException(ex);
-                } catch (ParserConfigurationException ex) {
-                    throw new FedoraException(ex);
-                }
+                cmodels = fetchContentModelURIs();
                 return cmodels;
             }
         }
         
+        private List<String> fetchContentModelURIs() throws FedoraException, IOException {
+            List<String> uris = new ArrayList<String>();
+            String relsextUrl = fedoraBaseUrl + "/get/" + pid + "/RELS-EXT";
+            Document doc = null;
+            GetMethod get = new GetMethod(relsextUrl);
+            try {
+                int status = executeMethod("getContentModelURIs", get);
+                if (!isStatusSuccess(status)) {
+                    throw new FedoraException("REST action \"" + relsextUrl + "\" failed: " + get.getStatusLine());
+                }
+                doc = getDocumentBuilder().parse(get.getResponseBodyAsStream());
+            } catch (SAXException ex) {
+                throw new FedoraException(ex);
+            } catch (ParserConfigurationException ex) {
+                throw new FedoraException(ex);
+            } finally {
+                get.releaseConnection();
+            }
+            NodeList descriptionNodeList = doc.getDocumentElement().getElementsByTagNameNS("http://www.w3.org/1999/02/22-rdf-syntax-ns#", "Description");
+            if (descriptionNodeList.getLength() == 0) {
+                // a RELS-EXT without a description has no content models
+                return uris;
+            }
+            NodeList cmodelNodeList = ((Element) descriptionNodeList.item(0)).getElementsByTagNameNS("info:fedora/fedora-system:def/model#", "hasModel");
+            for (int i = 0; i < cmodelNodeList.getLength(); i ++) {
+                uris.add(((Element) cmodelNodeList.item(i)).getAttributeNS("http://www.w3.org/1999/02/22-rdf-syntax-ns#", "resource"));
+            }
+            return uris;
+        }
+        
         public DatastreamProfile getDatastreamProfile(String dsId) throws HttpException, IOException, FedoraException, SAXException, ParserConfigurationException {
             Date date = null;
             String url = fedoraBaseUrl + "/objects/" + pid + "/datastreams/" + dsId + "?format=xml" + (date != null ? "&asOfDateTime=" + printFedoraDateString(date) : "");
             GetMethod get = new GetMethod(url);
-            client.executeMethod(get);
-            if (isStatusSuccess(get.getStatusCode())) {
-                Document xml  = getDocumentBuilder().parse(get.getResponseBodyAsStream());
-                return new DatastreamProfile(FedoraClient.this, xml.getDocumentElement());
-            } else {
-                throw new FedoraException("REST action \"" + url + "\" failed: " + get.getStatusLine());
+            try {
+                executeMethod("getDatastreamProfile", get);
+                if (isStatusSuccess(get.getStatusCode())) {
+                    return DatastreamProfile.parse(get.getResponseBodyAsStream());
+                } else {
+                    throw new FedoraException("REST action \"" + url + "\" failed: " + get.getStatusLine());
+                }
+            } catch (XMLStreamException ex) {
+                throw new FedoraException(ex);
+            } finally {
+                get.releaseConnection();
             }
         }
 
         public void addOrReplaceDatastreamByReference(String dsId, String dsLocation, String controlGroup, String mimetype) throws Exception {
+            writeDatastreamByReference(dsId, dsLocation, controlGroup, mimetype, !listDatastreams().contains(dsId));
+        }
+
+        /**
+         * Adds a datastream that the object doesn't have yet, without
+         * listing its datastreams first.
+         */
+        void addDatastreamByReference(String dsId, String dsLocation, String controlGroup, String mimetype) throws Exception {
+            writeDatastreamByReference(dsId, dsLocation, controlGroup, mimetype, true);
+        }
+
+        private void writeDatastreamByReference(String dsId, String dsLocation, String controlGroup, String mimetype, boolean add) throws Exception {
             if (!Pattern.matches("[MXRE]", controlGroup)) {
                 throw new IllegalArgumentException("Invalid control group specified!");
             }
@@ -471,25 +1233,71 @@ public class FedoraClient {
             }
             String url = fedoraBaseUrl + "/objects/" + pid + "/datastreams/" + dsId + "?controlGroup=" + controlGroup + "&mimeType=" + mimetype + "&dsLocation=" + URLEncoder.encode(dsLocation, "UTF-8");
             HttpMethod method = null;
-            if (!listDatastreams().contains(dsId)) {
+            if (add) {
                 // ADD datastream
                 method = new PostMethod(url);
             } else {
                 // MODIFY datastream
                 method = new PutMethod(url);
             }
-            client.executeMethod(method);
-            if (!isStatusSuccess(method.getStatusCode())) {
-                throw new FedoraException("Rest action \"" + url + "\" failed: " + method.getStatusLine());
-            } else {
-                // update the cached list of datastream ids
-                if (!dsIds.contains(dsId)) {
-                    dsIds.add(dsId);
+            try {
+                executeMethod("addOrReplaceDatastreamByReference", method);
+                if (!isStatusSuccess(method.getStatusCode())) {
+                    throw new FedoraException("Rest action \"" + url + "\" failed: " + method.getStatusLine());
+                } else {
+                    datastreamChanged(dsId, true);
                 }
+            } finally {
+                method.releaseConnection();
             }
         }
 
+        /**
+         * Adds or replaces a datastream with the content of the stream.
+         * The stream is sent to fedora as it is read, using chunked
+         * transfer encoding, and is closed afterwards, also if the
+         * request fails.
+         */
         public void addOrReplaceDatastream(String dsId, InputStream is, String controlGroup, String mimetype) throws Exception {
+            addOrReplaceDatastream(dsId, is, -1, controlGroup, mimetype);
+        }
+
+        /**
+         * Adds or replaces a datastream with the content of the stream.
+         * The stream is sent to fedora as it is read and is closed
+         * afterwards, also if the request fails.
+         * @param length the number of bytes in the stream, or -1 if
+         * unknown, in which case chunked transfer encoding is used
+         */
+        public void addOrReplaceDatastream(String dsId, InputStream is, long length, String controlGroup, String mimetype) throws Exception {
+            try {
+                addOrReplaceDatastream(dsId, new StreamingPart(dsId, dsId, is, length, mimetype), controlGroup, mimetype);
+            } finally {
+                is.close();
+            }
+        }
+
+        /**
+         * Adds or replaces a datastream with the content of the file,
+         * which is copied to the connection with FileChannel.transferTo().
+         */
+        public void addOrReplaceDatastream(String dsId, File file, String controlGroup, String mimetype) throws Exception {
+            addOrReplaceDatastream(dsId, new StreamingPart(dsId, file, mimetype), controlGroup, mimetype);
+        }
+
+        private void addOrReplaceDatastream(String dsId, Part part, String controlGroup, String mimetype) throws Exception {
+            writeDatastream(dsId, part, controlGroup, mimetype, !listDatastreams().contains(dsId));
+        }
+
+        /**
+         * Adds a datastream that the object doesn't have yet, without
+         * listing its datastreams first.
+         */
+        void addDatastream(String dsId, Part part, String controlGroup, String mimetype) throws Exception {
+            writeDatastream(dsId, part, controlGroup, mimetype, true);
+        }
+
+        private void writeDatastream(String dsId, Part part, String controlGroup, String mimetype, boolean add) throws Exception {
             if (mimetype == null) {
                 mimetype = "application/octet-stream";
             }
@@ -497,54 +1305,78 @@ public class FedoraClient {
                 throw new IllegalArgumentException("Invalid control group specified!");
             }
             
-            // write the stream to a temporary file 
-            File tempFile = File.createTempFile("cmisserver-", ".tempfile");
-            writeStreamToFile(is, tempFile);
-            
             String url = fedoraBaseUrl + "/objects/" + pid + "/datastreams/" + dsId + "?controlGroup=" + controlGroup + "&mimeType=" + mimetype;
-            HttpMethod method = null;
-            if (!listDatastreams().contains(dsId)) {
+            EntityEnclosingMethod method = null;
+            if (add) {
                 // ADD datastream
-                PostMethod post = new PostMethod(url);
-                Part[] parts = {
-                        new FilePart(tempFile.getName(), tempFile)
-                };
-                post.setRequestEntity(
-                        new MultipartRequestEntity(parts, post.getParams())
-                    );
-                method = post;
+                method = new PostMethod(url);
             } else {
                 // MODIFY datastream
-                PutMethod put = new PutMethod(url);
-                Part[] parts = {
-                        new FilePart(tempFile.getName(), tempFile)
-                };
-                put.setRequestEntity(
-                        new MultipartRequestEntity(parts, put.getParams())
-                    );
-                method = put;
+                method = new PutMethod(url);
             }
+            method.setRequestEntity(new MultipartRequestEntity(new Part[] { part }, method.getParams()));
 
-            client.executeMethod(method);
-            tempFile.delete();
-            if (!isStatusSuccess(method.getStatusCode())) {
-                log.error("Rest action \"" + url + "\" failed: " + method.getStatusLine() + "(method=" + method.getClass().getSimpleName() + ")" + " " + tempFile.getAbsolutePath());
-                throw new FedoraException("Rest action failed!");
+            try {
+                executeMethod("addOrReplaceDatastream", method);
+                if (!isStatusSuccess(method.getStatusCode())) {
+                    log.error("Rest action \"" + url + "\" failed: " + method.getStatusLine() + "(method=" + method.getClass().getSimpleName() + ")");
+                    throw new FedoraException("Rest action failed!");
+                } else {
+                    datastreamChanged(dsId, true);
+                }
+            } finally {
+                method.releaseConnection();
+            }
+        }
+
+        /**
+         * Updates the cached values after a datastream has been added,
+         * modified or purged.
+         */
+        private void datastreamChanged(String dsId, boolean exists) {
+            ObjectCache cache = objectCache;
+            if (cache != null) {
+                cache.getEntry(pid).datastreamChanged(dsId, exists);
             } else {
                 // update the cached list of datastream ids
-                if (!dsIds.contains(dsId)) {
-                    dsIds.add(dsId);
+                if (dsIds != null && dsIds.contains(dsId) != exists) {
+                    if (exists) {
+                        dsIds.add(dsId);
+                    } else {
+                        dsIds.remove(dsId);
+                    }
+                }
+                if (dsId.equals("RELS-EXT")) {
+                    cmodels = null;
                 }
             }
         }
-
+        
+        /**
+         * Updates the cached values after a relationship has been added
+         * or removed.
+         */
+        private void relationshipsChanged() {
+            ObjectCache cache = objectCache;
+            if (cache != null) {
+                cache.getEntry(pid).relationshipsChanged();
+            } else {
+                // clear the content model cache
+                cmodels = null;
+            }
+        }
+        
         public void purgeDatastream(String dsId) throws FedoraException, HttpException, IOException {
             DeleteMethod delete = new DeleteMethod(fedoraBaseUrl + "/objects/" + pid + "/datastreams/" + dsId);
-            client.executeMethod(delete);
-            if (!isStatusSuccess(delete.getStatusCode())) {
-                throw new FedoraException("Invalid HTTP Status code: " + delete.getStatusLine());
-            } else {
-                dsIds.remove(dsId);
+            try {
+                executeMethod("purgeDatastream", delete);
+                if (!isStatusSuccess(delete.getStatusCode())) {
+                    throw new FedoraException("Invalid HTTP Status code: " + delete.getStatusLine());
+                } else {
+                    datastreamChanged(dsId, false);
+                }
+            } finally {
+                delete.releaseConnection();
             }
         }
         
@@ -553,12 +1385,15 @@ public class FedoraClient {
                     + "?subject=" + URLEncoder.encode("info:fedora/" + subjectPid, "UTF-8")
                     + "&predicate=" + URLEncoder.encode(predicate, "UTF-8")
                     + "&object=" + URLEncoder.encode("info:fedora/" + objectPid, "UTF-8"));
-            client.executeMethod(delete);
-            if (!isStatusSuccess(delete.getStatusCode())) {
-                throw new FedoraException("Invalid HTTP Status code: " + delete.getStatusLine());
-            } else {
-                // clear the content model cache
-                cmodels = null;
+            try {
+                executeMethod("removeRelationship", delete);
+                if (!isStatusSuccess(delete.getStatusCode())) {
+                    throw new FedoraException("Invalid HTTP Status code: " + delete.getStatusLine());
+                } else {
+                    relationshipsChanged();
+                }
+            } finally {
+                delete.releaseConnection();
             }
         }
         
@@ -569,25 +1404,36 @@ public class FedoraClient {
                     + "&object=" + URLEncoder.encode("info:fedora/" + objectPid, "UTF-8")
                     + "&isLiteral=" + URLEncoder.encode(String.valueOf(false), "UTF-8");
             PostMethod post = new PostMethod(url);
-            client.executeMethod(post);
-            if (!isStatusSuccess(post.getStatusCode())) {
-                throw new FedoraException("Invalid HTTP Status code: " + post.getStatusLine() + " for request of:" + url);
-            } else {
-                // clear the content model cache
-                cmodels = null;
+            try {
+                executeMethod("addRelationship", post);
+                if (!isStatusSuccess(post.getStatusCode())) {
+                    throw new FedoraException("Invalid HTTP Status code: " + post.getStatusLine() + " for request of:" + url);
+                } else {
+                    relationshipsChanged();
+                }
+            } finally {
+                post.releaseConnection();
             }
         }
         
         public void purge() throws HttpException, IOException, FedoraException {
             DeleteMethod delete = new DeleteMethod(fedoraBaseUrl + "/objects/" + pid);
-            client.executeMethod(delete);
-            if (!isStatusSuccess(delete.getStatusCode())) {
-                throw new FedoraException("Invalid HTTP Status code: " + delete.getStatusLine());
-            } else {
-                // ensure that no further actions work for this object
-                pid = null;
-                cmodels = null;
-                dsIds = null;
+            try {
+                executeMethod("purge", delete);
+                if (!isStatusSuccess(delete.getStatusCode())) {
+                    throw new FedoraException("Invalid HTTP Status code: " + delete.getStatusLine());
+                } else {
+                    ObjectCache cache = objectCache;
+                    if (cache != null) {
+                        cache.invalidate(pid);
+                    }
+                    // ensure that no further actions work for this object
+                    pid = null;
+                    cmodels = null;
+                    dsIds = null;
+                }
+            } finally {
+                delete.releaseConnection();
             }
         }
 
@@ -597,23 +1443,4 @@ public class FedoraClient {
         return(code == HttpStatus.SC_OK || code == HttpStatus.SC_ACCEPTED || code == HttpStatus.SC_CREATED || code == HttpStatus.SC_NO_CONTENT);
     }
 
-    
-    private static void writeStreamToFile(InputStream is, File file) throws IOException {
-        OutputStream output = new FileOutputStream(file);  
-        ReadableByteChannel inputChannel = Channels.newChannel(is);  
-        WritableByteChannel outputChannel = Channels.newChannel(output);  
-        ByteBuffer buffer = ByteBuffer.allocateDirect(16 * 1024);  
-        while (inputChannel.read(buffer) != -1) {  
-            buffer.flip();  
-            outputChannel.write(buffer);  
-            buffer.compact();  
-        }  
-        buffer.flip();  
-        while (buffer.hasRemaining()) {  
-            outputChannel.write(buffer);  
-        }  
-       inputChannel.close();  
-       outputChannel.close();
-    }
-
 }
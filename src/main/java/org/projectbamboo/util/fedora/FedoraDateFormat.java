@@ -0,0 +1,219 @@
+package org.projectbamboo.util.fedora;
+
+import java.text.ParseException;
+import java.util.Date;
+
+/**
+ * <p>
+ *   A parser and formatter for dates as represented by fedora, which
+ *   are always in UTC and formatted as "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'",
+ *   for example "2010-10-01T19:55:00.808Z".
+ * </p>
+ * <p>
+ *   Unlike {@link java.text.SimpleDateFormat}, this class keeps no
+ *   state and is therefore safe for use by any number of threads at
+ *   once.  Apart from the returned Date or String, neither parsing
+ *   nor formatting allocates objects.
+ * </p>
+ * <p>
+ *   When parsing, the fractional seconds may be omitted or have fewer
+ *   than three digits ("2010-10-01T19:55:00Z", "2010-10-01T19:55:00.8Z"),
+ *   as fedora omits trailing zeros in some responses.
+ * </p>
+ */
+public final class FedoraDateFormat {
+
+    private static final long MILLIS_PER_SECOND = 1000L;
+
+    private static final long MILLIS_PER_MINUTE = 60 * MILLIS_PER_SECOND;
+
+    private static final long MILLIS_PER_HOUR = 60 * MILLIS_PER_MINUTE;
+
+    private static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+
+    /**
+     * The number of days in a (400 year) era of the gregorian calendar.
+     */
+    private static final int DAYS_PER_ERA = 146097;
+
+    /**
+     * The number of days between 0000-03-01 and 1970-01-01.
+     */
+    private static final int EPOCH_OFFSET = 719468;
+
+    private static final int[] DAYS_IN_MONTH = { 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+    private static final int FORMATTED_LENGTH = 24;
+
+    private FedoraDateFormat() {
+    }
+
+    /**
+     * Parses a fedora date String.
+     * @throws ParseException if the String isn't a date in the fedora
+     * date format
+     */
+    public static Date parse(String value) throws ParseException {
+        return new Date(parseMillis(value));
+    }
+
+    /**
+     * Parses a fedora date String into milliseconds since the epoch.
+     * @throws ParseException if the String isn't a date in the fedora
+     * date format
+     */
+    public static long parseMillis(String value) throws ParseException {
+        if (value == null) {
+            throw new ParseException("Unparseable date: null", 0);
+        }
+        int length = value.length();
+        if (length < 20) {
+            throw new ParseException("Unparseable date: \"" + value + "\"", length);
+        }
+        int year = parseDigits(value, 0, 4);
+        expect(value, 4, '-');
+        int month = parseDigits(value, 5, 2);
+        expect(value, 7, '-');
+        int day = parseDigits(value, 8, 2);
+        expect(value, 10, 'T');
+        int hour = parseDigits(value, 11, 2);
+        expect(value, 13, ':');
+        int minute = parseDigits(value, 14, 2);
+        expect(value, 16, ':');
+        int second = parseDigits(value, 17, 2);
+
+        int millis = 0;
+        int pos = 19;
+        if (value.charAt(pos) == '.') {
+            pos ++;
+            int scale = 100;
+            int start = pos;
+            while (pos < length && pos - start < 3 && isDigit(value.charAt(pos))) {
+                millis += (value.charAt(pos ++) - '0') * scale;
+                scale /= 10;
+            }
+            if (pos == start) {
+                throw new ParseException("Unparseable date: \"" + value + "\"", pos);
+            }
+        }
+        expect(value, pos, 'Z');
+        if (pos + 1 != length) {
+            throw new ParseException("Unparseable date: \"" + value + "\"", pos + 1);
+        }
+
+        if (month < 1 || month > 12) {
+            throw new ParseException("Invalid month in date: \"" + value + "\"", 5);
+        }
+        if (day < 1 || day > daysInMonth(year, month)) {
+            throw new ParseException("Invalid day in date: \"" + value + "\"", 8);
+        }
+        if (hour > 23 || minute > 59 || second > 59) {
+            throw new ParseException("Invalid time in date: \"" + value + "\"", 11);
+        }
+        return daysFromCivil(year, month, day) * MILLIS_PER_DAY + hour * MILLIS_PER_HOUR + minute * MILLIS_PER_MINUTE
+                + second * MILLIS_PER_SECOND + millis;
+    }
+
+    /**
+     * Formats a date as a fedora date String.
+     */
+    public static String format(Date date) {
+        return format(date.getTime());
+    }
+
+    /**
+     * Formats milliseconds since the epoch as a fedora date String.
+     */
+    public static String format(long time) {
+        long days = floorDiv(time, MILLIS_PER_DAY);
+        int millisOfDay = (int) (time - days * MILLIS_PER_DAY);
+
+        // convert the day count to a civil date, see daysFromCivil()
+        long z = days + EPOCH_OFFSET;
+        long era = floorDiv(z, DAYS_PER_ERA);
+        int dayOfEra = (int) (z - era * DAYS_PER_ERA);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999) {
+            throw new IllegalArgumentException("Year " + year + " can't be represented in the fedora date format");
+        }
+
+        char[] chars = new char[FORMATTED_LENGTH];
+        printDigits(chars, 0, (int) year, 4);
+        chars[4] = '-';
+        printDigits(chars, 5, month, 2);
+        chars[7] = '-';
+        printDigits(chars, 8, day, 2);
+        chars[10] = 'T';
+        printDigits(chars, 11, (int) (millisOfDay / MILLIS_PER_HOUR), 2);
+        chars[13] = ':';
+        printDigits(chars, 14, (int) (millisOfDay / MILLIS_PER_MINUTE % 60), 2);
+        chars[16] = ':';
+        printDigits(chars, 17, (int) (millisOfDay / MILLIS_PER_SECOND % 60), 2);
+        chars[19] = '.';
+        printDigits(chars, 20, (int) (millisOfDay % MILLIS_PER_SECOND), 3);
+        chars[23] = 'Z';
+        return new String(chars);
+    }
+
+    /**
+     * Returns the number of days between 1970-01-01 and the given date
+     * of the proleptic gregorian calendar.  The calculation treats
+     * March as the first month of the year, so that the leap day falls
+     * at the end of the year.
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        long era = floorDiv(y, 400);
+        int yearOfEra = (int) (y - era * 400);
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * DAYS_PER_ERA + dayOfEra - EPOCH_OFFSET;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2 && (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0))) {
+            return 29;
+        }
+        return DAYS_IN_MONTH[month - 1];
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int parseDigits(String value, int offset, int count) throws ParseException {
+        int result = 0;
+        for (int i = offset; i < offset + count; i ++) {
+            char c = value.charAt(i);
+            if (!isDigit(c)) {
+                throw new ParseException("Unparseable date: \"" + value + "\"", i);
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    private static void expect(String value, int offset, char expected) throws ParseException {
+        if (offset >= value.length() || value.charAt(offset) != expected) {
+            throw new ParseException("Unparseable date: \"" + value + "\"", offset);
+        }
+    }
+
+    private static void printDigits(char[] chars, int offset, int value, int count) {
+        for (int i = offset + count - 1; i >= offset; i --) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+}
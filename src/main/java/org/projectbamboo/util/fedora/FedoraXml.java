@@ -0,0 +1,144 @@
+package org.projectbamboo.util.fedora;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * <p>
+ *   Shared XML parsing infrastructure for the fedora client classes.
+ * </p>
+ * <p>
+ *   Looking up an XML factory is expensive, so a single, fully
+ *   configured StAX factory is created once and shared.  Once
+ *   configured, the factory may be used to create readers from any
+ *   number of threads.
+ * </p>
+ * <p>
+ *   DocumentBuilders are not thread-safe, but may be reset and reused
+ *   for any number of documents, so every thread keeps one of its own.
+ * </p>
+ */
+final class FedoraXml {
+
+    private static final XMLInputFactory INPUT_FACTORY;
+    static {
+        INPUT_FACTORY = XMLInputFactory.newInstance();
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    private static final DocumentBuilderFactory BUILDER_FACTORY;
+    static {
+        BUILDER_FACTORY = DocumentBuilderFactory.newInstance();
+        BUILDER_FACTORY.setNamespaceAware(true);
+    }
+
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDERS = new ThreadLocal<DocumentBuilder>();
+
+    private FedoraXml() {
+    }
+
+    /**
+     * Gets the namespace-aware DocumentBuilder of the calling thread,
+     * reset to its initial state.  The builder is reused by the next
+     * call on the same thread, so it must not be handed to other
+     * threads or held on to.
+     */
+    static DocumentBuilder getDocumentBuilder() throws ParserConfigurationException {
+        DocumentBuilder builder = DOCUMENT_BUILDERS.get();
+        if (builder == null) {
+            // the factory itself is not guaranteed to be thread-safe
+            synchronized (BUILDER_FACTORY) {
+                builder = BUILDER_FACTORY.newDocumentBuilder();
+            }
+            DOCUMENT_BUILDERS.set(builder);
+        } else {
+            builder.reset();
+        }
+        return builder;
+    }
+
+    /**
+     * Creates a namespace-aware, coalescing stream reader.  The caller
+     * is responsible for closing the reader (which doesn't close the
+     * underlying stream).
+     */
+    static XMLStreamReader createReader(InputStream in) throws XMLStreamException {
+        return INPUT_FACTORY.createXMLStreamReader(in);
+    }
+
+    /**
+     * Reads the text content of the element at which the reader is
+     * positioned, skipping any nested elements, and leaves the reader
+     * at the matching end tag.
+     */
+    static String readText(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder text = null;
+        String first = null;
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth ++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth --;
+            } else if (depth == 1 && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+                    || event == XMLStreamConstants.SPACE)) {
+                if (first == null) {
+                    first = reader.getText();
+                } else {
+                    if (text == null) {
+                        text = new StringBuilder(first);
+                    }
+                    text.append(reader.getText());
+                }
+            }
+        }
+        String value = text != null ? text.toString() : first;
+        return value != null ? value : "";
+    }
+
+    /**
+     * Reads the text of every element with the given local name in a
+     * single streaming pass.  The stream is not closed.
+     */
+    static List<String> readElementTexts(InputStream in, String localName) throws XMLStreamException {
+        List<String> texts = new ArrayList<String>();
+        XMLStreamReader reader = createReader(in);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals(localName)) {
+                    texts.add(readText(reader).trim());
+                }
+            }
+        } finally {
+            closeQuietly(reader);
+        }
+        return texts;
+    }
+
+    /**
+     * Closes the reader, ignoring any error.
+     */
+    static void closeQuietly(XMLStreamReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException ex) {
+                // nothing to do
+            }
+        }
+    }
+
+}
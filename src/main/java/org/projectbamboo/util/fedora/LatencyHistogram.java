@@ -0,0 +1,131 @@
+package org.projectbamboo.util.fedora;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ *   A lock-free histogram of latencies in microseconds, in the spirit
+ *   of HdrHistogram.  Values are counted in buckets whose width grows
+ *   with the magnitude of the value, so that every recorded value is
+ *   represented with a relative error of at most about 3% while the
+ *   histogram itself has a small, fixed size.
+ * </p>
+ * <p>
+ *   Values below 64 are counted exactly.  Above that, every power of
+ *   two is split into 32 linear sub-buckets.  Values beyond 2^40
+ *   microseconds (about 12 days) are counted in the last bucket.
+ * </p>
+ */
+public class LatencyHistogram {
+
+    /**
+     * The number of bits used to resolve values within a power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Values below this limit are counted in a bucket of their own.
+     */
+    private static final int EXACT_LIMIT = SUB_BUCKET_COUNT << 1;
+
+    private static final int MAX_MAGNITUDE = 40;
+
+    private static final int BUCKET_COUNT = EXACT_LIMIT + (MAX_MAGNITUDE - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong totalCount = new AtomicLong();
+
+    private final AtomicLong totalSum = new AtomicLong();
+
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * Records a value.
+     * @param micros the latency in microseconds; negative values are
+     * recorded as zero
+     */
+    public void record(long micros) {
+        long value = Math.max(0, micros);
+        counts.incrementAndGet(bucketIndex(value));
+        totalCount.incrementAndGet();
+        totalSum.addAndGet(value);
+        long max = maxValue.get();
+        while (value > max && !maxValue.compareAndSet(max, value)) {
+            max = maxValue.get();
+        }
+    }
+
+    /**
+     * Gets the number of recorded values.
+     */
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * Gets the largest recorded value in microseconds.
+     */
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    /**
+     * Gets the mean of the recorded values in microseconds.
+     */
+    public double getMean() {
+        long count = totalCount.get();
+        return count == 0 ? 0 : (double) totalSum.get() / count;
+    }
+
+    /**
+     * Gets the value in microseconds below which the given fraction of
+     * the recorded values fall.  The result is the upper bound of the
+     * bucket containing the percentile, capped at the largest recorded
+     * value.
+     * @param fraction the fraction, for example 0.99 for the 99th
+     * percentile
+     */
+    public long getPercentile(double fraction) {
+        long count = totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(1.0, fraction) * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i ++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return i == BUCKET_COUNT - 1 ? getMax() : Math.min(bucketUpperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < EXACT_LIMIT) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if (magnitude > MAX_MAGNITUDE) {
+            return BUCKET_COUNT - 1;
+        }
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return EXACT_LIMIT + (magnitude - SUB_BUCKET_BITS - 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < EXACT_LIMIT) {
+            return index;
+        }
+        int magnitude = (index - EXACT_LIMIT) / SUB_BUCKET_COUNT + SUB_BUCKET_BITS + 1;
+        int subBucket = (index - EXACT_LIMIT) % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return ((long) (subBucket + 1) << shift) - 1;
+    }
+
+}
@@ -1,61 +1,108 @@
-package org.projectbamboo.util.fedora;
-
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-
-import javax.xml.namespace.NamespaceContext;
-
-/**
- * <p>
- *   A general purpose NamespaceContext implementation backed
- *   by a Map of prefix Strings to URI Strings.  The {@link 
- *   #setNamespace(String, String))} method may be invoked to 
- *   add prefix/namespace mappings.
- * </p>
- */
-public class MapNamespaceContext implements NamespaceContext {
-
-    private Map<String, String> prefixToUriMap;
-    
-    private Map<String, String> uriToSchemaLocationMap;
-    
-    public MapNamespaceContext() {
-        this.prefixToUriMap = new HashMap<String, String>();
-        this.uriToSchemaLocationMap = new HashMap<String, String>();
-    }
-    
-    public void setNamespace(String prefix, String namespaceURI) {
-        this.prefixToUriMap.put(prefix, namespaceURI);
-    }
-    
-    public void setNamespace(String prefix, String namespaceURI, String schemaLocation) {
-        this.prefixToUriMap.put(prefix, namespaceURI);
-        this.uriToSchemaLocationMap.put(namespaceURI, schemaLocation);
-    }
-    
-    public String getNamespaceURI(String prefix) {
-        return this.prefixToUriMap.get(prefix);
-    }
-
-    public String getPrefix(String namespaceURI) {
-        return getPrefixes(namespaceURI).next();
-    }
-
-    public Iterator<String> getPrefixes(String namespaceURI) {
-        List<String> prefixes = new ArrayList<String>();
-        for (String prefix : prefixToUriMap.keySet()) {
-            if (prefixToUriMap.get(prefix).equals(namespaceURI)) {
-                prefixes.add(prefix);
-            }
-        }
-        return prefixes.iterator();
-    }
-    
-    public String getSchemaLocation(String namespaceURI) {
-        return this.uriToSchemaLocationMap.get(namespaceURI);
-    }
-
-}
+package org.projectbamboo.util.fedora;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.namespace.NamespaceContext;
+
+/**
+ * <p>
+ *   A general purpose NamespaceContext implementation backed
+ *   by a Map of prefix Strings to URI Strings.  The {@link
+ *   #setNamespace(String, String))} method may be invoked to
+ *   add prefix/namespace mappings.
+ * </p>
+ * <p>
+ *   As the NamespaceContext contract requires, null prefixes and URIs
+ *   are rejected with an IllegalArgumentException.
+ * </p>
+ * <p>
+ *   A reverse index from URIs to prefixes is maintained alongside, so
+ *   that prefix lookups don't have to scan the mappings.  Lookups may
+ *   run concurrently with each other and with the addition of
+ *   mappings.
+ * </p>
+ */
+public class MapNamespaceContext implements NamespaceContext {
+
+    private Map<String, String> prefixToUriMap;
+
+    /**
+     * The prefixes of each namespace URI.  The lists are never
+     * modified, but replaced whenever a mapping changes.
+     */
+    private Map<String, List<String>> uriToPrefixesMap;
+
+    private Map<String, String> uriToSchemaLocationMap;
+
+    public MapNamespaceContext() {
+        this.prefixToUriMap = new ConcurrentHashMap<String, String>();
+        this.uriToPrefixesMap = new ConcurrentHashMap<String, List<String>>();
+        this.uriToSchemaLocationMap = new ConcurrentHashMap<String, String>();
+    }
+
+    public synchronized void setNamespace(String prefix, String namespaceURI) {
+        checkNotNull(prefix, "prefix");
+        checkNotNull(namespaceURI, "namespaceURI");
+        String previousUri = this.prefixToUriMap.put(prefix, namespaceURI);
+        if (previousUri != null && !previousUri.equals(namespaceURI)) {
+            List<String> prefixes = new ArrayList<String>(this.uriToPrefixesMap.get(previousUri));
+            prefixes.remove(prefix);
+            if (prefixes.isEmpty()) {
+                this.uriToPrefixesMap.remove(previousUri);
+            } else {
+                this.uriToPrefixesMap.put(previousUri, Collections.unmodifiableList(prefixes));
+            }
+        }
+        if (previousUri == null || !previousUri.equals(namespaceURI)) {
+            List<String> current = this.uriToPrefixesMap.get(namespaceURI);
+            List<String> prefixes = current == null ? new ArrayList<String>(1) : new ArrayList<String>(current);
+            prefixes.add(prefix);
+            this.uriToPrefixesMap.put(namespaceURI, Collections.unmodifiableList(prefixes));
+        }
+    }
+
+    public synchronized void setNamespace(String prefix, String namespaceURI, String schemaLocation) {
+        setNamespace(prefix, namespaceURI);
+        if (schemaLocation != null) {
+            this.uriToSchemaLocationMap.put(namespaceURI, schemaLocation);
+        }
+    }
+
+    public String getNamespaceURI(String prefix) {
+        checkNotNull(prefix, "prefix");
+        return this.prefixToUriMap.get(prefix);
+    }
+
+    public String getPrefix(String namespaceURI) {
+        checkNotNull(namespaceURI, "namespaceURI");
+        List<String> prefixes = this.uriToPrefixesMap.get(namespaceURI);
+        return prefixes == null ? null : prefixes.get(0);
+    }
+
+    public Iterator<String> getPrefixes(String namespaceURI) {
+        checkNotNull(namespaceURI, "namespaceURI");
+        List<String> prefixes = this.uriToPrefixesMap.get(namespaceURI);
+        return prefixes == null ? Collections.<String>emptyList().iterator() : prefixes.iterator();
+    }
+
+    /**
+     * Gets the schema location registered for a namespace URI, or null
+     * if none was.
+     */
+    public String getSchemaLocation(String namespaceURI) {
+        checkNotNull(namespaceURI, "namespaceURI");
+        return this.uriToSchemaLocationMap.get(namespaceURI);
+    }
+
+    private static void checkNotNull(String value, String name) {
+        if (value == null) {
+            throw new IllegalArgumentException(name + " must not be null");
+        }
+    }
+
+}
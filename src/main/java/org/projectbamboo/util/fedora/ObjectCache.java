@@ -0,0 +1,244 @@
+package org.projectbamboo.util.fedora;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *   A cache of object profiles, datastream lists and content models,
+ *   keyed by pid and shared by all FedoraObjects of a {@link
+ *   FedoraClient} (see {@link FedoraClient#setObjectCache(ObjectCache)}).
+ * </p>
+ * <p>
+ *   The cache holds a bounded number of objects and evicts the least
+ *   recently used one when full.  Cached values are trusted for the
+ *   configured time to live; after that the object profile is fetched
+ *   again, conditionally on the object having been modified since its
+ *   cached objLastModDate.  The datastream list and content models are
+ *   kept for as long as the modification date stays the same.
+ * </p>
+ * <p>
+ *   Changes made through the client update or invalidate the affected
+ *   values only.  Changes made by other clients are picked up at the
+ *   latest when the time to live expires.
+ * </p>
+ */
+public class ObjectCache {
+
+    /**
+     * The cached values for a single object.  Every change made through
+     * the client bumps the version, so that a value fetched before the
+     * change isn't stored after it.
+     */
+    static class CachedObject {
+
+        private ObjectProfile profile;
+
+        private List<String> datastreams;
+
+        private List<String> contentModels;
+
+        private long validatedAt;
+
+        private long version;
+
+        synchronized ObjectProfile getProfile() {
+            return profile;
+        }
+
+        synchronized List<String> getDatastreams() {
+            return datastreams;
+        }
+
+        synchronized List<String> getContentModels() {
+            return contentModels;
+        }
+
+        synchronized long getVersion() {
+            return version;
+        }
+
+        /**
+         * Stores a freshly fetched or revalidated profile.  When
+         * revalidating expired values, the datastream list and content
+         * models are dropped unless the object is known not to have been
+         * modified since they were cached.
+         */
+        synchronized void setProfile(ObjectProfile newProfile, long expectedVersion, boolean expired) {
+            if (version != expectedVersion) {
+                return;
+            }
+            if (expired && (profile == null || !sameDate(profile, newProfile))) {
+                datastreams = null;
+                contentModels = null;
+            }
+            profile = newProfile;
+            validatedAt = System.currentTimeMillis();
+        }
+
+        synchronized void setDatastreams(List<String> dsIds, long expectedVersion) {
+            if (version == expectedVersion) {
+                datastreams = Collections.unmodifiableList(new ArrayList<String>(dsIds));
+            }
+        }
+
+        synchronized void setContentModels(List<String> cmodels, long expectedVersion) {
+            if (version == expectedVersion) {
+                contentModels = Collections.unmodifiableList(new ArrayList<String>(cmodels));
+            }
+        }
+
+        synchronized boolean isFresh(long timeToLive) {
+            return System.currentTimeMillis() - validatedAt < timeToLive;
+        }
+
+        /**
+         * Records a change to a datastream of the object.  The profile
+         * is dropped because the modification date has changed, while
+         * the datastream list is updated in place.
+         */
+        synchronized void datastreamChanged(String dsId, boolean exists) {
+            version ++;
+            profile = null;
+            if (datastreams != null && datastreams.contains(dsId) != exists) {
+                List<String> dsIds = new ArrayList<String>(datastreams);
+                if (exists) {
+                    dsIds.add(dsId);
+                } else {
+                    dsIds.remove(dsId);
+                }
+                datastreams = Collections.unmodifiableList(dsIds);
+            }
+            if (dsId.equals("RELS-EXT")) {
+                contentModels = null;
+            }
+        }
+
+        /**
+         * Records a change to the relationships of the object, which are
+         * stored in (and may create) its RELS-EXT datastream.
+         */
+        synchronized void relationshipsChanged() {
+            datastreamChanged("RELS-EXT", true);
+        }
+
+        private static boolean sameDate(ObjectProfile a, ObjectProfile b) {
+            return a == b || (a.getLastModDate() != null && a.getLastModDate().equals(b.getLastModDate()));
+        }
+
+    }
+
+    private final Map<String, CachedObject> entries;
+
+    private final long timeToLive;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong revalidations = new AtomicLong();
+
+    /**
+     * Creates a cache.
+     * @param maxObjects the maximum number of cached objects
+     * @param timeToLive the time in milliseconds for which cached values
+     * are used without revalidation
+     */
+    public ObjectCache(final int maxObjects, long timeToLive) {
+        this.timeToLive = timeToLive;
+        this.entries = new LinkedHashMap<String, CachedObject>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedObject> eldest) {
+                return size() > maxObjects;
+            }
+        };
+    }
+
+    /**
+     * Gets (or creates) the entry of an object.
+     */
+    CachedObject getEntry(String pid) {
+        synchronized (entries) {
+            CachedObject entry = entries.get(pid);
+            if (entry == null) {
+                entry = new CachedObject();
+                entries.put(pid, entry);
+            }
+            return entry;
+        }
+    }
+
+    boolean isFresh(CachedObject entry) {
+        return entry.isFresh(timeToLive);
+    }
+
+    void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    void recordMiss(boolean revalidation) {
+        misses.incrementAndGet();
+        if (revalidation) {
+            revalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes everything cached for an object.
+     */
+    public void invalidate(String pid) {
+        synchronized (entries) {
+            entries.remove(pid);
+        }
+    }
+
+    /**
+     * Empties the cache.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Gets the number of cached objects.
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Gets the number of lookups answered without a request.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of lookups that required a request.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the number of misses that revalidated an expired profile.
+     */
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+}
@@ -1,14 +1,15 @@
 package org.projectbamboo.util.fedora;
 
+import java.io.InputStream;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-
-import org.w3c.dom.Document;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 
 /**
@@ -16,113 +17,126 @@ import org.w3c.dom.Document;
  *   An object that encapsulates a fedora object's profile information.
  *   When only a single property is needed for an object, the method
  *   {@link FedoraClient.getObjectProperty()} should be invoked, but
- *   if multiple properties are needed, the method {@link 
+ *   if multiple properties are needed, the method {@link
  *   FedoraClient.getObjectProfile()} should be used to get an instance
  *   of this Object to reduce the number of HTTP roundtrips.
  * </p>
  * <p>
- *   This object is a very thin wrapper around the XML returned by the
- *   REST api call for an object profile.
+ *   The profile XML returned by the REST api is read once, in a single
+ *   streaming pass, and only the property values are kept.  Elements
+ *   are matched by their local name, so that both the namespace-less
+ *   Fedora 3.2 layout and the namespaced Fedora 3.4 layout are
+ *   understood.  Instances are immutable and therefore thread-safe.
  * </p>
  */
 public class ObjectProfile {
 
-    /**
-     * The object properties available in Fedora 3.4.
-     */
-    private enum ObjectProperty {
-        LABEL,
-        OWNER_ID,
-        MODELS,
-        CREATE_DATE,
-        LAST_MOD_DATE,
-        DISS_INDEX_VIEW_URL,
-        ITEM_INDEX_VIEW_URL,
-        STATE;
+    private final String pid;
+
+    private final String label;
+
+    private final String ownerId;
+
+    private final List<String> models;
+
+    private final Long createDate;
+
+    private final Long lastModDate;
+
+    private final String state;
+
+    ObjectProfile(String pid, String label, String ownerId, List<String> models, Date createDate, Date lastModDate, String state) {
+        this.pid = pid;
+        this.label = label;
+        this.ownerId = ownerId;
+        this.models = models == null ? Collections.<String>emptyList() : Collections.unmodifiableList(new ArrayList<String>(models));
+        this.createDate = createDate == null ? null : createDate.getTime();
+        this.lastModDate = lastModDate == null ? null : lastModDate.getTime();
+        this.state = state;
     }
-    
-    /**
-     * The Document parsed from the REST call.
-     */
-    private Document objectProfileDoc;
-    
+
     /**
-     * A reference to an XPath sufficient for use extracting field
-     * values.
+     * Parses the object profile XML returned by the REST api.  The
+     * stream is read up to the end of the profile but not closed.
      */
-    private XPath xpath;
-    
-    ObjectProfile(Document objectProfileDoc, XPath xpath) {
-        this.objectProfileDoc = objectProfileDoc;
-        MapNamespaceContext nsc = new MapNamespaceContext();
-        nsc.setNamespace("fa", "http://www.fedora.info/definitions/1/0/access/");
-        this.xpath = XPathFactory.newInstance().newXPath();
-        this.xpath.setNamespaceContext(nsc);
-        
-        
-    }
-    
-    public String getLabel() {
+    static ObjectProfile parse(InputStream in) throws XMLStreamException {
+        String pid = null;
+        String label = "";
+        String ownerId = "";
+        List<String> models = new ArrayList<String>();
+        Date createDate = null;
+        Date lastModDate = null;
+        String state = "";
+        XMLStreamReader reader = FedoraXml.createReader(in);
         try {
-            String label = (String) this.xpath.evaluate("/fa:objectProfile/fa:objLabel" , this.objectProfileDoc, XPathConstants.STRING);
-            if (label == null || label.equals("")) {
-                label =  (String) this.xpath.evaluate("/objectProfile/objLabel/", this.objectProfileDoc, XPathConstants.STRING);
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                String name = reader.getLocalName();
+                if (name.equals("objectProfile")) {
+                    pid = reader.getAttributeValue(null, "pid");
+                } else if (name.equals("objLabel")) {
+                    label = FedoraXml.readText(reader);
+                } else if (name.equals("objOwnerId")) {
+                    ownerId = FedoraXml.readText(reader);
+                } else if (name.equals("model")) {
+                    models.add(FedoraXml.readText(reader));
+                } else if (name.equals("objCreateDate")) {
+                    createDate = parseDate(FedoraXml.readText(reader));
+                } else if (name.equals("objLastModDate")) {
+                    lastModDate = parseDate(FedoraXml.readText(reader));
+                } else if (name.equals("objState")) {
+                    state = FedoraXml.readText(reader);
+                }
             }
-            return label;
-        } catch (XPathExpressionException ex) {
-            return null;
+        } finally {
+            FedoraXml.closeQuietly(reader);
         }
+        return new ObjectProfile(pid, label, ownerId, models, createDate, lastModDate, state);
     }
-    
-    public String getOwnerId() {
+
+    private static Date parseDate(String value) {
         try {
-            String ownerId = (String) this.xpath.evaluate("/fa:objectProfile/fa:objOwnerId" , this.objectProfileDoc, XPathConstants.STRING);
-            if (ownerId == null || ownerId.equals("")) {
-                ownerId = (String) this.xpath.evaluate("/objectProfile/objOwnerId" , this.objectProfileDoc, XPathConstants.STRING);
-            }
-            return ownerId;
-        } catch (XPathExpressionException ex) {
+            return FedoraDateFormat.parse(value);
+        } catch (ParseException ex) {
             return null;
         }
     }
-    
+
+    /**
+     * Gets the pid of the object, or null if the profile didn't
+     * include it.
+     */
+    public String getPid() {
+        return pid;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    /**
+     * Gets the URIs of the content models of the object, as listed in
+     * the profile.
+     */
+    public List<String> getModels() {
+        return models;
+    }
+
     public Date getCreateDate() {
-        try {
-            String createDate = (String) this.xpath.evaluate("/fa:objectProfile/fa:objCreateDate" , this.objectProfileDoc, XPathConstants.STRING);
-            if (createDate == null || createDate.equals("")) {
-                createDate = (String) this.xpath.evaluate("/objectProfile/objCreateDate" , this.objectProfileDoc, XPathConstants.STRING);
-            }
-            return FedoraClient.parseFedoraDate(createDate);
-        } catch (XPathExpressionException ex) {
-            return null;
-        } catch (ParseException ex) {
-            return null;
-        }
+        return createDate == null ? null : new Date(createDate);
     }
-    
+
     public Date getLastModDate() {
-        try {
-            String lastModDate = (String) this.xpath.evaluate("/fa:objectProfile/fa:objLastModDate" , this.objectProfileDoc, XPathConstants.STRING);
-            if (lastModDate == null || lastModDate.equals("")) {
-                lastModDate = (String) this.xpath.evaluate("/objectProfile/objLastModDate", this.objectProfileDoc, XPathConstants.STRING);
-            }
-            return FedoraClient.parseFedoraDate(lastModDate);
-        } catch (XPathExpressionException ex) {
-            return null;
-        } catch (ParseException ex) {
-            return null;
-        }
+        return lastModDate == null ? null : new Date(lastModDate);
     }
-    
+
     public String getState() {
-        try {
-            String state = (String) this.xpath.evaluate("/fa:objectProfile/fa:objState" , this.objectProfileDoc, XPathConstants.STRING);
-            if (state == null || state.equals("")) {
-                state = (String) this.xpath.evaluate("/objectProfile/objState" , this.objectProfileDoc, XPathConstants.STRING);
-            }
-            return state;
-        } catch (XPathExpressionException ex) {
-            return null;
-        }
+        return state;
     }
 }
@@ -0,0 +1,175 @@
+package org.projectbamboo.util.fedora;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ *   Describes an object to be created by {@link
+ *   FedoraClient#ingest(List, java.util.concurrent.ExecutorService, int)}:
+ *   its properties, the datastreams to add to it and its relationships.
+ * </p>
+ * <p>
+ *   A relationship may point at another object of the same batch, whose
+ *   pid is only known once it has been reserved.
+ * </p>
+ */
+public class ObjectSpec {
+
+    /**
+     * A datastream to be added, with its content read from a file or a
+     * stream, or referenced by a location.
+     */
+    static class DatastreamSpec {
+
+        final String dsId;
+
+        final String controlGroup;
+
+        final String mimetype;
+
+        final File file;
+
+        final InputStream stream;
+
+        final long length;
+
+        final String dsLocation;
+
+        DatastreamSpec(String dsId, String controlGroup, String mimetype, File file, InputStream stream, long length, String dsLocation) {
+            if (!Pattern.matches("[MXRE]", controlGroup)) {
+                throw new IllegalArgumentException("Invalid control group specified!");
+            }
+            this.dsId = dsId;
+            this.controlGroup = controlGroup;
+            this.mimetype = mimetype;
+            this.file = file;
+            this.stream = stream;
+            this.length = length;
+            this.dsLocation = dsLocation;
+        }
+
+    }
+
+    /**
+     * A relationship from the object to a pid, or to another object of
+     * the batch.
+     */
+    static class RelationshipSpec {
+
+        final String predicate;
+
+        final String objectPid;
+
+        final ObjectSpec object;
+
+        RelationshipSpec(String predicate, String objectPid, ObjectSpec object) {
+            this.predicate = predicate;
+            this.objectPid = objectPid;
+            this.object = object;
+        }
+
+    }
+
+    private String pid;
+
+    private final String label;
+
+    private final String ownerId;
+
+    private final String namespace;
+
+    private final List<DatastreamSpec> datastreams = new ArrayList<DatastreamSpec>();
+
+    private final List<RelationshipSpec> relationships = new ArrayList<RelationshipSpec>();
+
+    /**
+     * Creates the description of an object whose pid is reserved in the
+     * given namespace.  Any of the parameters may be null.
+     */
+    public ObjectSpec(String label, String ownerId, String namespace) {
+        this.label = label;
+        this.ownerId = ownerId;
+        this.namespace = namespace;
+    }
+
+    /**
+     * Gets the pid of the object, which is null until it is set or
+     * reserved.
+     */
+    public String getPid() {
+        return pid;
+    }
+
+    /**
+     * Sets the pid of the object, so that none is reserved for it.
+     */
+    public void setPid(String pid) {
+        this.pid = pid;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * Adds a datastream with the content of the file.
+     */
+    public void addDatastream(String dsId, File file, String controlGroup, String mimetype) {
+        datastreams.add(new DatastreamSpec(dsId, controlGroup, mimetype, file, null, file.length(), null));
+    }
+
+    /**
+     * Adds a datastream with the content of the stream, which is read
+     * once during the ingest and not closed.
+     * @param length the number of bytes in the stream, or -1 if unknown
+     */
+    public void addDatastream(String dsId, InputStream stream, long length, String controlGroup, String mimetype) {
+        datastreams.add(new DatastreamSpec(dsId, controlGroup, mimetype, null, stream, length, null));
+    }
+
+    /**
+     * Adds a datastream whose content fedora fetches from (or, for
+     * control groups "R" and "E", redirects to) the location.
+     */
+    public void addDatastreamByReference(String dsId, String dsLocation, String controlGroup, String mimetype) {
+        datastreams.add(new DatastreamSpec(dsId, controlGroup, mimetype, null, null, -1, dsLocation));
+    }
+
+    /**
+     * Adds a relationship from this object to the object with the given
+     * pid.
+     */
+    public void addRelationship(String predicate, String objectPid) {
+        relationships.add(new RelationshipSpec(predicate, objectPid, null));
+    }
+
+    /**
+     * Adds a relationship from this object to another object of the
+     * same batch.
+     */
+    public void addRelationship(String predicate, ObjectSpec object) {
+        relationships.add(new RelationshipSpec(predicate, null, object));
+    }
+
+    List<DatastreamSpec> getDatastreams() {
+        return Collections.unmodifiableList(datastreams);
+    }
+
+    List<RelationshipSpec> getRelationships() {
+        return Collections.unmodifiableList(relationships);
+    }
+
+}
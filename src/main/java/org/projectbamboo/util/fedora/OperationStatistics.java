@@ -0,0 +1,182 @@
+package org.projectbamboo.util.fedora;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *   Counters, an in-flight gauge and a latency histogram for a single
+ *   kind of operation, such as one type of REST call.  Instances are
+ *   thread-safe and never block.
+ * </p>
+ * <p>
+ *   Typical usage:
+ * </p>
+ * <pre>
+ *   long start = stats.start();
+ *   try {
+ *       int status = ...;
+ *       stats.complete(start, status);
+ *   } catch (IOException ex) {
+ *       stats.fail(start);
+ *   }
+ * </pre>
+ */
+public class OperationStatistics implements OperationStatisticsMBean {
+
+    private final String name;
+
+    private final AtomicLong errorCount = new AtomicLong();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    private final ConcurrentMap<Integer, AtomicLong> errorsByStatus = new ConcurrentHashMap<Integer, AtomicLong>();
+
+    public OperationStatistics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Marks the start of an invocation.
+     * @return the start time to be passed to one of the completion
+     * methods
+     */
+    public long start() {
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Marks the successful completion of an invocation.
+     * @param start the value returned by {@link #start()}
+     */
+    public void succeed(long start) {
+        finish(start);
+    }
+
+    /**
+     * Marks the completion of an invocation that failed without an
+     * HTTP status, for example because of an I/O error.
+     * @param start the value returned by {@link #start()}
+     */
+    public void fail(long start) {
+        finish(start);
+        errorCount.incrementAndGet();
+    }
+
+    /**
+     * Marks the completion of an HTTP request, which is counted as
+     * failed unless the status indicates success.
+     * @param start the value returned by {@link #start()}
+     * @param status the HTTP status code of the response
+     */
+    public void complete(long start, int status) {
+        if (status >= 200 && status < 300) {
+            succeed(start);
+        } else {
+            fail(start);
+            AtomicLong counter = errorsByStatus.get(status);
+            if (counter == null) {
+                AtomicLong newCounter = new AtomicLong();
+                counter = errorsByStatus.putIfAbsent(status, newCounter);
+                if (counter == null) {
+                    counter = newCounter;
+                }
+            }
+            counter.incrementAndGet();
+        }
+    }
+
+    private void finish(long start) {
+        inFlight.decrementAndGet();
+        latencies.record((System.nanoTime() - start) / 1000);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return latencies.getCount();
+    }
+
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Gets the latency histogram of the operation.
+     */
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    public double getMeanMillis() {
+        return latencies.getMean() / 1000.0;
+    }
+
+    public double getMaxMillis() {
+        return latencies.getMax() / 1000.0;
+    }
+
+    public double getP50Millis() {
+        return latencies.getPercentile(0.5) / 1000.0;
+    }
+
+    public double getP99Millis() {
+        return latencies.getPercentile(0.99) / 1000.0;
+    }
+
+    public double getP999Millis() {
+        return latencies.getPercentile(0.999) / 1000.0;
+    }
+
+    /**
+     * Gets the number of failed HTTP requests by status code.
+     */
+    public SortedMap<Integer, Long> getErrorCountsByStatus() {
+        SortedMap<Integer, Long> counts = new TreeMap<Integer, Long>();
+        for (Map.Entry<Integer, AtomicLong> entry : errorsByStatus.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    public String getErrorsByStatus() {
+        return getErrorCountsByStatus().toString();
+    }
+
+    /**
+     * Appends a JSON representation of the statistics to the given
+     * buffer.
+     */
+    public void appendJson(StringBuilder json) {
+        json.append("{\"count\":").append(getCount());
+        json.append(",\"errors\":").append(getErrorCount());
+        json.append(",\"inFlight\":").append(getInFlight());
+        json.append(",\"meanMillis\":").append(getMeanMillis());
+        json.append(",\"maxMillis\":").append(getMaxMillis());
+        json.append(",\"p50Millis\":").append(getP50Millis());
+        json.append(",\"p99Millis\":").append(getP99Millis());
+        json.append(",\"p999Millis\":").append(getP999Millis());
+        json.append(",\"errorsByStatus\":{");
+        boolean first = true;
+        for (Map.Entry<Integer, Long> entry : getErrorCountsByStatus().entrySet()) {
+            json.append(first ? "" : ",").append('"').append(entry.getKey()).append("\":").append(entry.getValue());
+            first = false;
+        }
+        json.append("}}");
+    }
+
+}
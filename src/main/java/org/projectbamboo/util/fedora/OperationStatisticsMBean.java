@@ -0,0 +1,59 @@
+package org.projectbamboo.util.fedora;
+
+/**
+ * The JMX management interface of {@link OperationStatistics}.
+ */
+public interface OperationStatisticsMBean {
+
+    /**
+     * Gets the name of the operation.
+     */
+    public String getName();
+
+    /**
+     * Gets the number of completed invocations, successful or not.
+     */
+    public long getCount();
+
+    /**
+     * Gets the number of failed invocations.
+     */
+    public long getErrorCount();
+
+    /**
+     * Gets the number of invocations currently under way.
+     */
+    public int getInFlight();
+
+    /**
+     * Gets the mean latency in milliseconds.
+     */
+    public double getMeanMillis();
+
+    /**
+     * Gets the largest latency in milliseconds.
+     */
+    public double getMaxMillis();
+
+    /**
+     * Gets the median latency in milliseconds.
+     */
+    public double getP50Millis();
+
+    /**
+     * Gets the 99th percentile latency in milliseconds.
+     */
+    public double getP99Millis();
+
+    /**
+     * Gets the 99.9th percentile latency in milliseconds.
+     */
+    public double getP999Millis();
+
+    /**
+     * Gets the failed invocations by HTTP status code, formatted as
+     * "status=count" pairs.
+     */
+    public String getErrorsByStatus();
+
+}
@@ -0,0 +1,236 @@
+package org.projectbamboo.util.fedora;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ *   Hands out pids from blocks reserved with fedora's nextPID method,
+ *   so that creating objects doesn't take a round trip to fedora for
+ *   every pid (see {@link FedoraClient#setPidAllocator(PidAllocator)}).
+ * </p>
+ * <p>
+ *   Every namespace has a block of its own.  Pids are taken from the
+ *   current block without locking; when only a few of them are left, the
+ *   next block is reserved in the background, so that threads normally
+ *   find it ready when the current one runs out.
+ * </p>
+ * <p>
+ *   Pids that are reserved but never used (for example those left when
+ *   the application stops) are not handed out again by fedora, so the
+ *   block size trades gaps in the pid sequence for fewer requests.
+ * </p>
+ */
+public class PidAllocator {
+
+    private static final Logger log = LoggerFactory.getLogger(PidAllocator.class);
+
+    /**
+     * A reserved block of pids, handed out by incrementing an index.
+     */
+    private static class Block {
+
+        private final List<String> pids;
+
+        private final AtomicInteger next = new AtomicInteger();
+
+        Block(List<String> pids) {
+            this.pids = pids;
+        }
+
+    }
+
+    /**
+     * The current and the prefetched block of a namespace.
+     */
+    private class Namespace {
+
+        private final String namespace;
+
+        private final AtomicReference<Block> current = new AtomicReference<Block>();
+
+        private final AtomicReference<Future<Block>> prefetched = new AtomicReference<Future<Block>>();
+
+        Namespace(String namespace) {
+            this.namespace = namespace;
+        }
+
+        String nextPid() throws FedoraException, IOException {
+            while (true) {
+                Block block = current.get();
+                if (block != null) {
+                    int index = block.next.getAndIncrement();
+                    if (index < block.pids.size()) {
+                        if (index == block.pids.size() - refillThreshold) {
+                            prefetch();
+                        }
+                        return block.pids.get(index);
+                    }
+                }
+                replace(block);
+            }
+        }
+
+        /**
+         * Starts reserving the next block, unless that has already been
+         * started.
+         */
+        private void prefetch() {
+            if (prefetched.get() != null) {
+                return;
+            }
+            Future<Block> future;
+            try {
+                future = executor.submit(new Callable<Block>() {
+                    public Block call() throws Exception {
+                        return reserve();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // the block is reserved when it's needed instead
+                return;
+            }
+            if (!prefetched.compareAndSet(null, future)) {
+                future.cancel(false);
+            }
+        }
+
+        /**
+         * Replaces the exhausted block with the prefetched one, or with a
+         * block reserved right away if there is none.  This is the only
+         * path that locks, once per block.
+         */
+        private synchronized void replace(Block exhausted) throws FedoraException, IOException {
+            if (current.get() != exhausted) {
+                // another thread has already replaced it
+                return;
+            }
+            Block block = null;
+            Future<Block> future = prefetched.getAndSet(null);
+            if (future != null) {
+                try {
+                    block = future.get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new FedoraException(ex);
+                } catch (ExecutionException ex) {
+                    log.warn("Unable to reserve pids in namespace " + namespace + " in the background", ex.getCause());
+                }
+            }
+            if (block == null) {
+                block = reserve();
+            }
+            current.set(block);
+        }
+
+        private Block reserve() throws FedoraException, IOException {
+            List<String> pids = fc.reservePids(namespace, blockSize);
+            if (pids.isEmpty()) {
+                throw new FedoraException("No pids reserved in namespace " + namespace);
+            }
+            log.debug("Reserved " + pids.size() + " pids in namespace " + namespace);
+            return new Block(pids);
+        }
+
+    }
+
+    private final FedoraClient fc;
+
+    private final int blockSize;
+
+    private final int refillThreshold;
+
+    private final ExecutorService executor;
+
+    private final boolean ownExecutor;
+
+    private final ConcurrentMap<String, Namespace> namespaces = new ConcurrentHashMap<String, Namespace>();
+
+    /**
+     * Creates an allocator that reserves blocks in the background on a
+     * thread of its own, which {@link #close()} stops.
+     * @param blockSize the number of pids reserved at a time
+     * @param refillThreshold the number of pids left in a block when the
+     * next one is reserved
+     */
+    public PidAllocator(FedoraClient fc, int blockSize, int refillThreshold) {
+        this(fc, blockSize, refillThreshold, Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "fedora-pid-allocator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), true);
+    }
+
+    /**
+     * Creates an allocator that reserves blocks in the background on the
+     * given executor, which is not shut down by {@link #close()}.
+     * @param blockSize the number of pids reserved at a time
+     * @param refillThreshold the number of pids left in a block when the
+     * next one is reserved
+     */
+    public PidAllocator(FedoraClient fc, int blockSize, int refillThreshold, ExecutorService executor) {
+        this(fc, blockSize, refillThreshold, executor, false);
+    }
+
+    private PidAllocator(FedoraClient fc, int blockSize, int refillThreshold, ExecutorService executor, boolean ownExecutor) {
+        if (blockSize < 1 || refillThreshold < 0 || refillThreshold >= blockSize) {
+            throw new IllegalArgumentException("Invalid block size " + blockSize + " or refill threshold " + refillThreshold);
+        }
+        this.fc = fc;
+        this.blockSize = blockSize;
+        this.refillThreshold = refillThreshold;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+    }
+
+    /**
+     * Gets an unused pid.
+     * @param namespace the namespace of the pid, or null for fedora's
+     * default namespace
+     */
+    public String nextPid(String namespace) throws FedoraException, IOException {
+        String key = namespace != null ? namespace : "";
+        Namespace ns = namespaces.get(key);
+        if (ns == null) {
+            Namespace created = new Namespace(namespace);
+            ns = namespaces.putIfAbsent(key, created);
+            if (ns == null) {
+                ns = created;
+            }
+        }
+        return ns.nextPid();
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Stops reserving blocks in the background.  The allocator's own
+     * thread is stopped, while an executor passed in by the caller is
+     * left alone.  Pids can still be handed out afterwards, with each
+     * block reserved once it is needed.
+     */
+    public void close() {
+        if (ownExecutor) {
+            executor.shutdown();
+        }
+    }
+
+}
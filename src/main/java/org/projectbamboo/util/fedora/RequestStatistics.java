@@ -0,0 +1,127 @@
+package org.projectbamboo.util.fedora;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ *   A registry of {@link OperationStatistics}, keyed by operation name.
+ *   Statistics for an operation are created the first time they are
+ *   requested.
+ * </p>
+ * <p>
+ *   Once {@link #registerMBeans(String)} has been called, the
+ *   statistics of every operation, including those created later on,
+ *   are published as MBeans on the platform MBean server.
+ * </p>
+ */
+public class RequestStatistics {
+
+    private static final Logger log = LoggerFactory.getLogger(RequestStatistics.class);
+
+    private final ConcurrentMap<String, OperationStatistics> operations = new ConcurrentHashMap<String, OperationStatistics>();
+
+    /**
+     * The JMX domain and type under which the operation MBeans are
+     * registered, or null if they aren't registered.
+     */
+    private String mbeanPrefix;
+
+    private final List<ObjectName> registeredNames = new ArrayList<ObjectName>();
+
+    /**
+     * Gets (or creates) the statistics for the given operation.
+     */
+    public OperationStatistics getOperation(String name) {
+        OperationStatistics stats = operations.get(name);
+        if (stats == null) {
+            OperationStatistics newStats = new OperationStatistics(name);
+            stats = operations.putIfAbsent(name, newStats);
+            if (stats == null) {
+                stats = newStats;
+                register(stats);
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Gets the statistics of all operations, sorted by name.
+     */
+    public SortedMap<String, OperationStatistics> getOperations() {
+        return new TreeMap<String, OperationStatistics>(operations);
+    }
+
+    /**
+     * Publishes the statistics of all current and future operations as
+     * MBeans named "<i>domain</i>:type=<i>type</i>,operation=<i>name</i>".
+     * @param objectNamePrefix the domain and key properties shared by all
+     * MBeans, for example "org.projectbamboo.fedora:type=FedoraClient"
+     */
+    public synchronized void registerMBeans(String objectNamePrefix) {
+        mbeanPrefix = objectNamePrefix;
+        for (OperationStatistics stats : operations.values()) {
+            register(stats);
+        }
+    }
+
+    /**
+     * Removes all MBeans registered by this instance.
+     */
+    public synchronized void unregisterMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registeredNames) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException ex) {
+                log.debug("Unable to unregister MBean " + name, ex);
+            }
+        }
+        registeredNames.clear();
+        mbeanPrefix = null;
+    }
+
+    private synchronized void register(OperationStatistics stats) {
+        if (mbeanPrefix == null) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName(mbeanPrefix + ",operation=" + ObjectName.quote(stats.getName()));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) {
+                server.registerMBean(stats, name);
+                registeredNames.add(name);
+            }
+        } catch (JMException ex) {
+            log.warn("Unable to register MBean for " + stats.getName(), ex);
+        }
+    }
+
+    /**
+     * Returns a JSON object with the statistics of every operation.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{");
+        boolean first = true;
+        for (Map.Entry<String, OperationStatistics> entry : getOperations().entrySet()) {
+            json.append(first ? "" : ",").append('"').append(entry.getKey().replace("\"", "\\\"")).append("\":");
+            entry.getValue().appendJson(json);
+            first = false;
+        }
+        return json.append("}").toString();
+    }
+
+}
@@ -0,0 +1,187 @@
+package org.projectbamboo.util.fedora;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.httpclient.HttpMethod;
+
+/**
+ * <p>
+ *   A lazy iterator over the values of one attribute of the elements
+ *   with a given local name in an XML response, such as the "uri" of
+ *   the result bindings of a risearch query or the "dsid" of the
+ *   entries of a datastream listing.
+ * </p>
+ * <p>
+ *   The response is read with StAX as values are requested, so memory
+ *   use doesn't depend on the size of the result and the first value
+ *   is available as soon as it arrives.  When the results are paged,
+ *   the next page is only requested once the current one is used up,
+ *   and iteration ends with the first page holding fewer than a full
+ *   page of values.
+ * </p>
+ * <p>
+ *   The HTTP connection is released when the results are exhausted.
+ *   Callers that stop early must call {@link #close()}, which aborts
+ *   the request rather than reading the rest of the response.  Errors that
+ *   occur after the first page has been opened are thrown as
+ *   RuntimeExceptions, as Iterator doesn't allow checked exceptions.
+ * </p>
+ */
+public class ResultIterator implements Iterator<String>, Closeable {
+
+    /**
+     * Requests one page of results.
+     */
+    interface PageSource {
+
+        /**
+         * Executes the request for the given (zero-based) page and
+         * returns the method, ready for its response body to be read.
+         */
+        public HttpMethod openPage(int page) throws IOException, FedoraException;
+
+    }
+
+    private final PageSource source;
+
+    private final String elementName;
+
+    private final String attributeName;
+
+    private final String valuePrefix;
+
+    private final int pageSize;
+
+    private int page;
+
+    private int pageCount;
+
+    private HttpMethod method;
+
+    private XMLStreamReader reader;
+
+    private String next;
+
+    private boolean exhausted;
+
+    /**
+     * Creates an iterator and requests the first page of results.
+     * @param elementName the local name of the elements carrying the
+     * values
+     * @param attributeName the name of the attribute holding the value
+     * @param valuePrefix a prefix to strip from the values (such as
+     * "info:fedora/"), or null
+     * @param pageSize the number of values per page, or 0 if the
+     * results aren't paged
+     */
+    ResultIterator(PageSource source, String elementName, String attributeName, String valuePrefix, int pageSize) throws IOException, FedoraException {
+        this.source = source;
+        this.elementName = elementName;
+        this.attributeName = attributeName;
+        this.valuePrefix = valuePrefix;
+        this.pageSize = pageSize;
+        openPage();
+    }
+
+    private void openPage() throws IOException, FedoraException {
+        method = source.openPage(page);
+        pageCount = 0;
+        try {
+            reader = FedoraXml.createReader(method.getResponseBodyAsStream());
+        } catch (XMLStreamException ex) {
+            close();
+            throw new FedoraException(ex);
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    public boolean hasNext() {
+        while (next == null && !exhausted) {
+            try {
+                if (reader == null) {
+                    page ++;
+                    openPage();
+                }
+                next = readValue();
+                if (next == null) {
+                    boolean fullPage = pageSize > 0 && pageCount == pageSize;
+                    closePage();
+                    exhausted = !fullPage;
+                }
+            } catch (IOException ex) {
+                close();
+                throw new RuntimeException(ex);
+            } catch (FedoraException ex) {
+                close();
+                throw new RuntimeException(ex);
+            } catch (XMLStreamException ex) {
+                close();
+                throw new RuntimeException(ex);
+            }
+        }
+        return next != null;
+    }
+
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String value = next;
+        next = null;
+        return value;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stops the iteration and releases the HTTP connection.  A page
+     * that hasn't been read to its end is aborted, as releasing the
+     * connection would otherwise read the remainder of the response.
+     */
+    public void close() {
+        if (method != null) {
+            method.abort();
+        }
+        closePage();
+        exhausted = true;
+        next = null;
+    }
+
+    /**
+     * Reads up to the next matching element of the current page.
+     * @return the value, or null at the end of the page
+     */
+    private String readValue() throws XMLStreamException {
+        while (reader.hasNext()) {
+            if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals(elementName)) {
+                String value = reader.getAttributeValue(null, attributeName);
+                if (value != null) {
+                    pageCount ++;
+                    return valuePrefix != null && value.startsWith(valuePrefix) ? value.substring(valuePrefix.length()) : value;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void closePage() {
+        FedoraXml.closeQuietly(reader);
+        reader = null;
+        if (method != null) {
+            method.releaseConnection();
+            method = null;
+        }
+    }
+
+}
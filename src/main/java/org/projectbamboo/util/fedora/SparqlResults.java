@@ -0,0 +1,80 @@
+package org.projectbamboo.util.fedora;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * <p>
+ *   Reads the tuples of a risearch response in the "Sparql" XML format
+ *   in a single streaming pass.  Every result becomes a map from
+ *   variable name to value; the value of a resource binding is its
+ *   URI, that of a literal its text.  Unbound variables are left out.
+ * </p>
+ */
+final class SparqlResults {
+
+    private SparqlResults() {
+    }
+
+    /**
+     * Receives the tuples of a response as they are read.
+     */
+    interface TupleHandler {
+
+        void handleTuple(Map<String, String> tuple);
+
+    }
+
+    /**
+     * Reads all tuples of the response.  The stream is not closed.
+     */
+    static List<Map<String, String>> readTuples(InputStream in) throws XMLStreamException {
+        final List<Map<String, String>> tuples = new ArrayList<Map<String, String>>();
+        readTuples(in, new TupleHandler() {
+            public void handleTuple(Map<String, String> tuple) {
+                tuples.add(tuple);
+            }
+        });
+        return tuples;
+    }
+
+    /**
+     * Passes every tuple of the response to the handler as soon as it
+     * has been read.  The stream is not closed.
+     */
+    static void readTuples(InputStream in, TupleHandler handler) throws XMLStreamException {
+        XMLStreamReader reader = FedoraXml.createReader(in);
+        try {
+            Map<String, String> tuple = null;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (name.equals("result")) {
+                        tuple = new HashMap<String, String>();
+                    } else if (tuple != null) {
+                        String uri = reader.getAttributeValue(null, "uri");
+                        boolean unbound = "false".equals(reader.getAttributeValue(null, "bound"));
+                        String text = FedoraXml.readText(reader);
+                        if (!unbound) {
+                            tuple.put(name, uri != null ? uri : text);
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && tuple != null && reader.getLocalName().equals("result")) {
+                    handler.handleTuple(tuple);
+                    tuple = null;
+                }
+            }
+        } finally {
+            FedoraXml.closeQuietly(reader);
+        }
+    }
+
+}
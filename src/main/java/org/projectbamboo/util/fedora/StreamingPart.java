@@ -0,0 +1,114 @@
+package org.projectbamboo.util.fedora;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.commons.httpclient.methods.multipart.PartBase;
+import org.apache.commons.httpclient.util.EncodingUtil;
+
+/**
+ * <p>
+ *   A multipart file part that is written straight from its source to
+ *   the connection, without being spooled to a temporary file first.
+ * </p>
+ * <p>
+ *   A part read from a stream of unknown length makes the request
+ *   length unknown too, so the request is sent with chunked transfer
+ *   encoding.  Such a part can only be sent once; the request can't be
+ *   retried or repeated after an authentication challenge, which is
+ *   why the client authenticates preemptively.
+ * </p>
+ * <p>
+ *   A part read from a file has a known length and is copied with
+ *   {@link FileChannel#transferTo(long, long, WritableByteChannel)},
+ *   which leaves the copying to the operating system where it can.
+ * </p>
+ */
+public class StreamingPart extends PartBase {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String fileName;
+
+    private final File file;
+
+    private final InputStream stream;
+
+    private final long length;
+
+    /**
+     * Creates a part whose content is read from a stream.  The stream
+     * is read once, when the request is sent, but not closed.
+     * @param length the number of bytes in the stream, or -1 if unknown
+     */
+    public StreamingPart(String name, String fileName, InputStream stream, long length, String contentType) {
+        super(name, contentType == null ? "application/octet-stream" : contentType, null, "binary");
+        this.fileName = fileName;
+        this.file = null;
+        this.stream = stream;
+        this.length = length;
+    }
+
+    /**
+     * Creates a part whose content is read from a file.
+     */
+    public StreamingPart(String name, File file, String contentType) {
+        super(name, contentType == null ? "application/octet-stream" : contentType, null, "binary");
+        this.fileName = file.getName();
+        this.file = file;
+        this.stream = null;
+        this.length = file.length();
+    }
+
+    @Override
+    protected void sendDispositionHeader(OutputStream out) throws IOException {
+        super.sendDispositionHeader(out);
+        if (fileName != null) {
+            out.write(EncodingUtil.getAsciiBytes("; filename=\"" + fileName + "\""));
+        }
+    }
+
+    @Override
+    protected void sendData(OutputStream out) throws IOException {
+        if (file != null) {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                WritableByteChannel target = Channels.newChannel(out);
+                long position = 0;
+                long size = channel.size();
+                while (position < size) {
+                    position += channel.transferTo(position, size - position, target);
+                }
+            } finally {
+                in.close();
+            }
+        } else {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    @Override
+    protected long lengthOfData() throws IOException {
+        return length;
+    }
+
+    /**
+     * Only file parts can be sent more than once.
+     */
+    @Override
+    public boolean isRepeatable() {
+        return file != null;
+    }
+
+}
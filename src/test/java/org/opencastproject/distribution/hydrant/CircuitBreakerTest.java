@@ -0,0 +1,93 @@
+/**
+ *  Copyright 2009, 2010 The Regents of the University of California
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+package org.opencastproject.distribution.hydrant;
+
+import org.opencastproject.distribution.hydrant.CircuitBreaker.State;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+  @Test
+  public void testOpensAfterConsecutiveFailures() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(3, 60000);
+    Assert.assertEquals(State.CLOSED, breaker.getState());
+    breaker.recordFailure();
+    breaker.recordFailure();
+    Assert.assertTrue(breaker.allowRequest());
+    Assert.assertEquals(2, breaker.getConsecutiveFailures());
+
+    breaker.recordFailure();
+    Assert.assertEquals(State.OPEN, breaker.getState());
+    Assert.assertTrue(breaker.isOpen());
+    Assert.assertTrue(breaker.getOpenedAt() > 0);
+    Assert.assertFalse(breaker.allowRequest());
+  }
+
+  @Test
+  public void testSuccessResetsFailures() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(2, 60000);
+    breaker.recordFailure();
+    breaker.recordSuccess();
+    breaker.recordFailure();
+    Assert.assertEquals(State.CLOSED, breaker.getState());
+    Assert.assertEquals(1, breaker.getConsecutiveFailures());
+  }
+
+  @Test
+  public void testHalfOpenAllowsSingleTrial() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(1, 50);
+    breaker.recordFailure();
+    Assert.assertFalse(breaker.allowRequest());
+    Thread.sleep(100);
+    Assert.assertFalse(breaker.isOpen());
+
+    // Only one request gets through to find out whether hydrant is back
+    Assert.assertTrue(breaker.allowRequest());
+    Assert.assertEquals(State.HALF_OPEN, breaker.getState());
+    Assert.assertFalse(breaker.allowRequest());
+
+    breaker.recordSuccess();
+    Assert.assertEquals(State.CLOSED, breaker.getState());
+    Assert.assertTrue(breaker.allowRequest());
+    Assert.assertTrue(breaker.allowRequest());
+  }
+
+  @Test
+  public void testFailedTrialReopens() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(5, 50);
+    for (int i = 0; i < 5; i++) {
+      breaker.recordFailure();
+    }
+    Thread.sleep(100);
+    Assert.assertTrue(breaker.allowRequest());
+    long openedAt = breaker.getOpenedAt();
+    Thread.sleep(5);
+    breaker.recordFailure();
+    Assert.assertEquals(State.OPEN, breaker.getState());
+    Assert.assertTrue(breaker.getOpenedAt() > openedAt);
+    Assert.assertFalse(breaker.allowRequest());
+  }
+
+  @Test
+  public void testThresholdIsAtLeastOne() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(0, 1000);
+    Assert.assertEquals(1, breaker.getFailureThreshold());
+    Assert.assertEquals(1000, breaker.getResetTimeout());
+  }
+
+}
@@ -0,0 +1,133 @@
+/**
+ *  Copyright 2009, 2010 The Regents of the University of California
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+package org.opencastproject.distribution.hydrant;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.Collection;
+import java.util.Properties;
+
+public class DeduplicationIndexTest {
+
+  private static final String KEY = DeduplicationIndex.getKey("hydrant:100", "43b7d843 (md5)", "http://host/media.mov");
+
+  private File directory = null;
+  private DeduplicationIndex index = null;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new File("./target/deduplication-index-test-" + System.currentTimeMillis());
+    index = new DeduplicationIndex(directory, 10);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteQuietly(directory);
+  }
+
+  @Test
+  public void testKeysDifferByMasterChecksumAndUrl() throws Exception {
+    Assert.assertFalse(KEY.equals(DeduplicationIndex.getKey("hydrant:101", "43b7d843 (md5)", "http://host/media.mov")));
+    Assert.assertFalse(KEY.equals(DeduplicationIndex.getKey("hydrant:100", null, "http://host/media.mov")));
+    Assert.assertFalse(KEY.equals(DeduplicationIndex.getKey("hydrant:100", "43b7d843 (md5)", "http://host/other.mov")));
+  }
+
+  @Test
+  public void testEntriesSurviveRestart() throws Exception {
+    Assert.assertNull(index.acquire(KEY, "mp-1/track-1"));
+    index.put(KEY, "derivative:1", "mp-1/track-1");
+
+    DeduplicationIndex reopened = new DeduplicationIndex(directory, 10);
+    Assert.assertEquals("derivative:1", reopened.acquire(KEY, "mp-2/track-1"));
+    assertReferences(new DeduplicationIndex(directory, 10), "mp-1/track-1", "mp-2/track-1");
+  }
+
+  @Test
+  public void testDerivativeIsReleasedByLastReference() throws Exception {
+    index.put(KEY, "derivative:1", "mp-1/track-1");
+    Assert.assertEquals("derivative:1", index.acquire(KEY, "mp-2/track-1"));
+    Assert.assertEquals("derivative:1", index.acquire(KEY, "mp-2/track-1"));
+    assertReferences(index, "mp-1/track-1", "mp-2/track-1");
+
+    Assert.assertFalse(index.release(KEY, "derivative:1", "mp-2/track-1"));
+    assertReferences(new DeduplicationIndex(directory, 10), "mp-1/track-1");
+    Assert.assertTrue(index.release(KEY, "derivative:1", "mp-1/track-1"));
+    Assert.assertNull(index.acquire(KEY, "mp-3/track-1"));
+    Assert.assertNull(new DeduplicationIndex(directory, 10).acquire(KEY, "mp-3/track-1"));
+  }
+
+  @Test
+  public void testFirstDerivativeWinsAndOthersAreNotShared() throws Exception {
+    index.put(KEY, "derivative:1", "mp-1/track-1");
+    index.put(KEY, "derivative:2", "mp-2/track-1");
+    Assert.assertEquals("derivative:1", index.acquire(KEY, "mp-3/track-1"));
+    assertReferences(index, "mp-1/track-1", "mp-3/track-1");
+
+    // The losing derivative is used by its own element only
+    Assert.assertTrue(index.release(KEY, "derivative:2", "mp-2/track-1"));
+    assertReferences(index, "mp-1/track-1", "mp-3/track-1");
+  }
+
+  @Test
+  public void testReleaseWithoutEntry() throws Exception {
+    Assert.assertTrue(index.release(KEY, "derivative:1", "mp-1/track-1"));
+    Assert.assertTrue(index.release(null, "derivative:1", "mp-1/track-1"));
+  }
+
+  @Test
+  public void testEntryWithoutReferencesIsReleasedByFirstElement() throws Exception {
+    // Entries written before references were recorded only carry the key and the derivative
+    index.put(KEY, "derivative:1", "mp-1/track-1");
+    File file = findEntryFile(directory);
+    Properties entry = new Properties();
+    entry.setProperty("key", KEY);
+    entry.setProperty("derivative", "derivative:1");
+    FileUtils.writeStringToFile(file, toString(entry), "ISO-8859-1");
+
+    DeduplicationIndex reopened = new DeduplicationIndex(directory, 10);
+    Assert.assertTrue(reopened.getReferences(KEY).isEmpty());
+    Assert.assertTrue(reopened.release(KEY, "derivative:1", "mp-1/track-1"));
+    Assert.assertFalse(file.exists());
+  }
+
+  private static void assertReferences(DeduplicationIndex index, String... references) throws Exception {
+    Collection<String> actual = index.getReferences(KEY);
+    Assert.assertEquals(references.length, actual.size());
+    for (String reference : references) {
+      Assert.assertTrue(actual.contains(reference));
+    }
+  }
+
+  private static File findEntryFile(File directory) {
+    for (File file : FileUtils.listFiles(directory, null, true)) {
+      return file;
+    }
+    throw new AssertionError("No entry file in " + directory);
+  }
+
+  private static String toString(Properties properties) throws Exception {
+    StringWriter writer = new StringWriter();
+    properties.store(writer, null);
+    return writer.toString();
+  }
+
+}
@@ -0,0 +1,120 @@
+/**
+ *  Copyright 2009, 2010 The Regents of the University of California
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+package org.opencastproject.distribution.hydrant;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Map;
+
+public class DerivativeIndexTest {
+
+  private File root = null;
+  private DerivativeIndex index = null;
+
+  @Before
+  public void setUp() throws Exception {
+    root = new File("./target/derivative-index-test-" + System.currentTimeMillis());
+    index = new DerivativeIndex(root);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteQuietly(root);
+  }
+
+  @Test
+  public void testDerivativesSurviveRestart() throws Exception {
+    index.put("mp-1", "track-1", "derivative:1", null);
+    index.put("mp-1", "track-2", "derivative:2", null);
+    index.put("mp-2", "track-1", "derivative:3", null);
+    Assert.assertTrue(new File(new File(root, "mp-1"), DerivativeIndex.INDEX_FILE_NAME).isFile());
+
+    DerivativeIndex reopened = new DerivativeIndex(root);
+    Assert.assertEquals("derivative:1", reopened.get("mp-1", "track-1"));
+    Assert.assertEquals("derivative:3", reopened.get("mp-2", "track-1"));
+    Map<String, String> all = reopened.getAll("mp-1");
+    Assert.assertEquals(2, all.size());
+    Assert.assertEquals("derivative:2", all.get("track-2"));
+    Assert.assertNull(reopened.get("mp-3", "track-1"));
+    Assert.assertTrue(reopened.getAll("mp-3").isEmpty());
+  }
+
+  @Test
+  public void testRemovingLastDerivativeDeletesIndexFile() throws Exception {
+    index.put("mp-1", "track-1", "derivative:1", null);
+    index.put("mp-1", "track-2", "derivative:2", null);
+    index.remove("mp-1", "track-1");
+    Assert.assertNull(index.get("mp-1", "track-1"));
+    Assert.assertNull(new DerivativeIndex(root).get("mp-1", "track-1"));
+    Assert.assertEquals("derivative:2", new DerivativeIndex(root).get("mp-1", "track-2"));
+
+    index.remove("mp-1", "track-2");
+    Assert.assertFalse(new File(root, "mp-1").exists());
+    Assert.assertTrue(index.getAll("mp-1").isEmpty());
+  }
+
+  @Test
+  public void testLookupsAreServedFromMemory() throws Exception {
+    index.put("mp-1", "track-1", "derivative:1", null);
+    File indexFile = new File(new File(root, "mp-1"), DerivativeIndex.INDEX_FILE_NAME);
+    Assert.assertTrue(indexFile.delete());
+
+    // The file is only read the first time the mediapackage is seen
+    Assert.assertEquals("derivative:1", index.get("mp-1", "track-1"));
+    Assert.assertEquals(1, index.getAll("mp-1").size());
+
+    // ... but every change is written through to it
+    index.put("mp-1", "track-2", "derivative:2", null);
+    Assert.assertTrue(indexFile.isFile());
+    Assert.assertEquals("derivative:1", new DerivativeIndex(root).get("mp-1", "track-1"));
+  }
+
+  @Test
+  public void testEvictedIndexesAreReadAgain() throws Exception {
+    DerivativeIndex small = new DerivativeIndex(root, 1);
+    small.put("mp-1", "track-1", "derivative:1", null);
+    small.put("mp-2", "track-1", "derivative:2", null);
+    Assert.assertEquals("derivative:1", small.get("mp-1", "track-1"));
+    Assert.assertEquals("derivative:2", small.get("mp-2", "track-1"));
+  }
+
+  @Test
+  public void testDeduplicationKeyIsKeptWithDerivative() throws Exception {
+    String key = DeduplicationIndex.getKey("hydrant:100", "43b7d843 (md5)", "http://host/media.mov");
+    index.put("mp-1", "track-1", "derivative:1", key);
+    index.put("mp-1", "track-2", "derivative:2", null);
+
+    DerivativeIndex reopened = new DerivativeIndex(root);
+    Assert.assertEquals("derivative:1", reopened.get("mp-1", "track-1"));
+    Assert.assertEquals(key, reopened.getDeduplicationKey("mp-1", "track-1"));
+    Assert.assertEquals("derivative:1", reopened.getAll("mp-1").get("track-1"));
+    Assert.assertNull(reopened.getDeduplicationKey("mp-1", "track-2"));
+    Assert.assertNull(reopened.getDeduplicationKey("mp-1", "track-3"));
+  }
+
+  @Test
+  public void testReturnedMapIsACopy() throws Exception {
+    index.put("mp-1", "track-1", "derivative:1", null);
+    index.getAll("mp-1").clear();
+    Assert.assertEquals("derivative:1", index.get("mp-1", "track-1"));
+  }
+
+}
@@ -0,0 +1,135 @@
+/**
+ *  Copyright 2009, 2010 The Regents of the University of California
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+package org.opencastproject.distribution.hydrant;
+
+import org.opencastproject.job.api.Job;
+import org.opencastproject.mediapackage.MediaPackage;
+import org.opencastproject.mediapackage.MediaPackageBuilderFactory;
+import org.opencastproject.mediapackage.MediaPackageElement;
+import org.opencastproject.mediapackage.MediaPackageElementParser;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.projectbamboo.util.benchmark.Benchmark;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fires distribute and retract jobs through {@link HydrantDistributionService#process(Job)} from many threads against
+ * an in-process hydrant stand-in, and reports the throughput and latency percentiles of the jobs and of the requests
+ * to hydrant. Only runs with <code>-Dbenchmark=true</code>. The stand-in is configured with the system properties
+ * <code>benchmark.latency</code> (milliseconds, 5 by default), <code>benchmark.errorrate</code> (0.01) and
+ * <code>benchmark.payload</code> (bytes per response, 1024); <code>benchmark.scale</code> multiplies the 2000 jobs of
+ * each kind.
+ */
+public class HydrantDistributionLoadTest {
+
+  /** The number of threads processing jobs */
+  private static final int THREADS = 32;
+
+  private StubHydrantServer hydrant = null;
+  private HydrantDistributionService service = null;
+  private File distributionRoot = null;
+  private MediaPackageElement track = null;
+
+  @Before
+  public void setUp() throws Exception {
+    Assume.assumeTrue(Benchmark.isEnabled());
+    hydrant = new StubHydrantServer();
+    hydrant.setLatency(Integer.getInteger("benchmark.latency", 5));
+    hydrant.setErrorRate(Double.parseDouble(System.getProperty("benchmark.errorrate", "0.01")));
+    hydrant.setPayloadSize(Integer.getInteger("benchmark.payload", 1024));
+
+    distributionRoot = new File("./target/hydrant-load-test-" + System.currentTimeMillis());
+    service = new HydrantDistributionService();
+    service.distributionDirectory = distributionRoot;
+    service.activate(null);
+    service.hydrantUrl = hydrant.getUrl();
+    service.retryDelay = 1;
+    service.retryMaxDelay = 10;
+
+    InputStream in = null;
+    try {
+      in = getClass().getResourceAsStream("/mediapackage.xml");
+      MediaPackage mediaPackage = MediaPackageBuilderFactory.newInstance().newMediaPackageBuilder().loadFromXml(in);
+      track = mediaPackage.getElementById("track-1");
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (service != null)
+      service.deactivate(null);
+    if (hydrant != null)
+      hydrant.stop();
+    FileUtils.deleteQuietly(distributionRoot);
+  }
+
+  @Test
+  public void testDistributeAndRetractJobs() throws Exception {
+    int jobs = Benchmark.scale(2000);
+    final Job[] distributeJobs = new Job[jobs];
+    final Job[] retractJobs = new Job[jobs];
+    for (int i = 0; i < jobs; i++) {
+      // Every job distributes a track of its own, so that none of them is deduplicated
+      MediaPackageElement element = (MediaPackageElement) track.clone();
+      element.setURI(new URI("http://localhost/load/" + i + ".mov"));
+      List<String> arguments = Arrays.asList("mp-" + i, "hydrant:100", MediaPackageElementParser.getAsXml(element));
+      distributeJobs[i] = createJob("Distribute", arguments);
+      retractJobs[i] = createJob("Retract", arguments);
+    }
+
+    Benchmark.Result distributed = Benchmark.run("Distribute jobs, " + THREADS + " threads", THREADS, 0, jobs,
+            new Benchmark.Operation() {
+              public void run(int index) throws Exception {
+                service.process(distributeJobs[index]);
+              }
+            });
+    Benchmark.Result retracted = Benchmark.run("Retract jobs, " + THREADS + " threads", THREADS, 0, jobs,
+            new Benchmark.Operation() {
+              public void run(int index) throws Exception {
+                service.process(retractJobs[index]);
+              }
+            });
+    System.out.println(service.getStatistics().toJson());
+
+    // Failures injected by the stand-in are retried, so all jobs go through and leave nothing behind
+    Assert.assertEquals(0, distributed.getErrors());
+    Assert.assertEquals(0, retracted.getErrors());
+    Assert.assertTrue(hydrant.getDerivatives().isEmpty());
+  }
+
+  private Job createJob(String operation, List<String> arguments) {
+    Job job = EasyMock.createNiceMock(Job.class);
+    EasyMock.expect(job.getOperation()).andReturn(operation).anyTimes();
+    EasyMock.expect(job.getArguments()).andReturn(arguments).anyTimes();
+    EasyMock.replay(job);
+    return job;
+  }
+
+}
@@ -0,0 +1,178 @@
+/**
+ *  Copyright 2009, 2010 The Regents of the University of California
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+package org.opencastproject.distribution.hydrant;
+
+import org.opencastproject.job.api.Job;
+import org.opencastproject.mediapackage.MediaPackage;
+import org.opencastproject.mediapackage.MediaPackageBuilderFactory;
+import org.opencastproject.mediapackage.MediaPackageElement;
+import org.opencastproject.mediapackage.MediaPackageElementParser;
+import org.opencastproject.mediapackage.MediaPackageParser;
+
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
+import org.apache.commons.httpclient.methods.multipart.Part;
+import org.apache.commons.httpclient.methods.multipart.StringPart;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.projectbamboo.util.benchmark.Benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Benchmarks of the distribution hot path, run against an in-process hydrant stand-in so that the results can be
+ * reproduced offline. They only run with <code>-Dbenchmark=true</code>, and print the throughput and latency
+ * percentiles of every case; <code>-Dbenchmark.scale=n</code> multiplies the number of runs.
+ */
+public class HydrantDistributionServiceBenchmark {
+
+  /** The client pool sizes that process() is measured with */
+  private static final int[] POOL_SIZES = { 1, 2, 5, 10, 20 };
+
+  /** The number of threads calling process() concurrently */
+  private static final int THREADS = 16;
+
+  private StubHydrantServer hydrant = null;
+  private HydrantDistributionService service = null;
+  private File distributionRoot = null;
+  private MediaPackage mediaPackage = null;
+  private String mediaPackageXml = null;
+
+  @Before
+  public void setUp() throws Exception {
+    Assume.assumeTrue(Benchmark.isEnabled());
+    hydrant = new StubHydrantServer();
+    distributionRoot = new File("./target/hydrant-benchmark-" + System.currentTimeMillis());
+    service = new HydrantDistributionService();
+    service.distributionDirectory = distributionRoot;
+    service.activate(null);
+    service.hydrantUrl = hydrant.getUrl();
+
+    mediaPackageXml = IOUtils.toString(getClass().getResourceAsStream("/mediapackage.xml"), "UTF-8");
+    mediaPackage = MediaPackageBuilderFactory.newInstance().newMediaPackageBuilder()
+            .loadFromXml(new ByteArrayInputStream(mediaPackageXml.getBytes("UTF-8")));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (service != null)
+      service.deactivate(null);
+    if (hydrant != null)
+      hydrant.stop();
+    FileUtils.deleteQuietly(distributionRoot);
+  }
+
+  @Test
+  public void testProcessDistributeAndRetract() throws Exception {
+    Benchmark.Result result = benchmarkProcess("process(Distribute + Retract), 1 thread", 1);
+    Assert.assertEquals(0, result.getErrors());
+  }
+
+  @Test
+  public void testProcessWithPoolSizes() throws Exception {
+    for (int poolSize : POOL_SIZES) {
+      HttpConnectionManagerParams params = service.connectionManager.getParams();
+      params.setMaxTotalConnections(poolSize);
+      params.setDefaultMaxConnectionsPerHost(poolSize);
+      Benchmark.Result result = benchmarkProcess("process(Distribute + Retract), pool of " + poolSize, THREADS);
+      Assert.assertEquals(0, result.getErrors());
+    }
+  }
+
+  @Test
+  public void testMediaPackageParsing() throws Exception {
+    Benchmark.run("mediapackage.xml parsing", 1, Benchmark.scale(1000), Benchmark.scale(10000), new Benchmark.Operation() {
+      public void run(int index) throws Exception {
+        MediaPackageBuilderFactory.newInstance().newMediaPackageBuilder()
+                .loadFromXml(new ByteArrayInputStream(mediaPackageXml.getBytes("UTF-8")));
+      }
+    });
+  }
+
+  @Test
+  public void testMediaPackageSerialization() throws Exception {
+    Benchmark.run("mediapackage.xml serialization", 1, Benchmark.scale(1000), Benchmark.scale(10000),
+            new Benchmark.Operation() {
+              public void run(int index) throws Exception {
+                MediaPackageParser.getAsXml(mediaPackage);
+              }
+            });
+  }
+
+  @Test
+  public void testMultipartRequestConstruction() throws Exception {
+    final MediaPackageElement track = mediaPackage.getElementById("track-1");
+    final String url = hydrant.getUrl() + "/derivatives";
+    // The same request createDerivative() sends, written to nowhere
+    Benchmark.run("multipart request construction", 1, Benchmark.scale(1000), Benchmark.scale(10000),
+            new Benchmark.Operation() {
+              public void run(int index) throws Exception {
+                PostMethod post = new PostMethod(url);
+                Part[] parts = { new StringPart("stream_url", track.getURI().toString()),
+                        new StringPart("master", "hydrant:100"), };
+                MultipartRequestEntity entity = new MultipartRequestEntity(parts, post.getParams());
+                post.setRequestEntity(entity);
+                entity.writeRequest(new NullOutputStream());
+              }
+            });
+  }
+
+  /**
+   * Measures distributing a track of a new mediapackage and retracting it again, every run with a track of its own
+   * so that each one makes a request to hydrant.
+   */
+  private Benchmark.Result benchmarkProcess(String name, int threads) throws Exception {
+    int warmup = Benchmark.scale(50);
+    int runs = Benchmark.scale(500);
+    final Job[] distributeJobs = new Job[warmup + runs];
+    final Job[] retractJobs = new Job[warmup + runs];
+    MediaPackageElement track = mediaPackage.getElementById("track-1");
+    for (int i = 0; i < distributeJobs.length; i++) {
+      MediaPackageElement element = (MediaPackageElement) track.clone();
+      element.setURI(new URI("http://localhost/benchmark/" + name.hashCode() + "/" + i + ".mov"));
+      List<String> arguments = Arrays.asList("mp-" + i, "hydrant:100", MediaPackageElementParser.getAsXml(element));
+      distributeJobs[i] = createJob("Distribute", arguments);
+      retractJobs[i] = createJob("Retract", arguments);
+    }
+    return Benchmark.run(name, threads, warmup, runs, new Benchmark.Operation() {
+      public void run(int index) throws Exception {
+        service.process(distributeJobs[index]);
+        service.process(retractJobs[index]);
+      }
+    });
+  }
+
+  private Job createJob(String operation, List<String> arguments) {
+    Job job = EasyMock.createNiceMock(Job.class);
+    EasyMock.expect(job.getOperation()).andReturn(operation).anyTimes();
+    EasyMock.expect(job.getArguments()).andReturn(arguments).anyTimes();
+    EasyMock.replay(job);
+    return job;
+  }
+
+}
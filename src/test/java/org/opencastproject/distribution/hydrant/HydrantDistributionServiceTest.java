@@ -0,0 +1,570 @@
+/**
+ *  Copyright 2009, 2010 The Regents of the University of California
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+package org.opencastproject.distribution.hydrant;
+
+import org.opencastproject.distribution.api.DistributionException;
+import org.opencastproject.job.api.Job;
+import org.opencastproject.mediapackage.MediaPackage;
+import org.opencastproject.mediapackage.MediaPackageBuilderFactory;
+import org.opencastproject.mediapackage.MediaPackageElement;
+import org.opencastproject.mediapackage.MediaPackageElementParser;
+import org.opencastproject.mediapackage.MediaPackageException;
+import org.opencastproject.mediapackage.Track;
+import org.opencastproject.security.api.DefaultOrganization;
+import org.opencastproject.security.api.Organization;
+import org.opencastproject.security.api.OrganizationDirectoryService;
+import org.opencastproject.security.api.SecurityService;
+import org.opencastproject.security.api.User;
+import org.opencastproject.security.api.UserDirectoryService;
+import org.opencastproject.serviceregistry.api.ServiceRegistry;
+import org.opencastproject.serviceregistry.api.ServiceRegistryException;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.easymock.IMocksControl;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.ComponentContext;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class HydrantDistributionServiceTest {
+
+  private HydrantDistributionService service = null;
+  private File distributionRoot = null;
+  private IMocksControl control = null;
+  private ServiceRegistry serviceRegistry = null;
+  private SecurityService securityService = null;
+  private UserDirectoryService userDirectoryService = null;
+  private OrganizationDirectoryService organizationDirectoryService = null;
+
+  /** The derivatives created and deleted in hydrant, and the threads that made the requests */
+  private List<String> createdDerivatives = null;
+  private List<String> deletedDerivatives = null;
+  private List<String> requestThreads = null;
+
+  /** The mediapackage */
+  private MediaPackage mediaPackage = null;
+
+  /** The job passed to process(), the thread it ran on and the failure or payload to return instead of processing */
+  private Job processedJob = null;
+  private Thread processThread = null;
+  private Exception processFailure = null;
+  private String processPayload = null;
+
+  @Before
+  public void setUp() throws Exception {
+    distributionRoot = new File("./target/hydrant-test-" + System.currentTimeMillis());
+    control = EasyMock.createStrictControl();
+    serviceRegistry = control.createMock(ServiceRegistry.class);
+    securityService = control.createMock(SecurityService.class);
+    userDirectoryService = control.createMock(UserDirectoryService.class);
+    organizationDirectoryService = control.createMock(OrganizationDirectoryService.class);
+    createdDerivatives = Collections.synchronizedList(new ArrayList<String>());
+    deletedDerivatives = Collections.synchronizedList(new ArrayList<String>());
+    requestThreads = Collections.synchronizedList(new ArrayList<String>());
+
+    InputStream in = null;
+    try {
+      in = getClass().getResourceAsStream("/mediapackage.xml");
+      mediaPackage = MediaPackageBuilderFactory.newInstance().newMediaPackageBuilder().loadFromXml(in);
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+
+    service = new HydrantDistributionService() {
+      @Override
+      protected String process(Job job) throws Exception {
+        processedJob = job;
+        processThread = Thread.currentThread();
+        if (processFailure != null)
+          throw processFailure;
+        if (processPayload != null)
+          return processPayload;
+        return super.process(job);
+      }
+
+      @Override
+      protected String createDerivative(String masterPid, MediaPackageElement element) {
+        requestThreads.add(Thread.currentThread().getName());
+        synchronized (createdDerivatives) {
+          String derivativeId = "derivative:" + (createdDerivatives.size() + 1);
+          createdDerivatives.add(derivativeId);
+          return derivativeId;
+        }
+      }
+
+      @Override
+      protected void deleteDerivative(String derivativeId) {
+        requestThreads.add(Thread.currentThread().getName());
+        deletedDerivatives.add(derivativeId);
+      }
+    };
+    service.distributionDirectory = distributionRoot;
+    service.setServiceRegistry(serviceRegistry);
+    service.setSecurityService(securityService);
+    service.setUserDirectoryService(userDirectoryService);
+    service.setOrganizationDirectoryService(organizationDirectoryService);
+    service.activate(null);
+    service.hydrantUrl = "http://localhost/hydrant";
+    service.hydrantAdminUsername = "admin";
+    service.hydrantAdminPassword = "secret";
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    service.deactivate(null);
+    FileUtils.deleteQuietly(distributionRoot);
+  }
+
+  @Test
+  public void testConnectionPoolIsConfigured() throws Exception {
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("org.opencastproject.hydrant.url", "http://hydrant.example.org:3000/");
+    properties.put("org.opencastproject.hydrant.admin.username", "admin");
+    properties.put("org.opencastproject.hydrant.admin.password", "secret");
+    properties.put("org.opencastproject.hydrant.directory", distributionRoot.getAbsolutePath());
+    properties.put("org.opencastproject.hydrant.http.maxconnections", "7");
+    properties.put("org.opencastproject.hydrant.http.maxconnectionsperhost", "3");
+    properties.put("org.opencastproject.hydrant.http.connecttimeout", "1234");
+    properties.put("org.opencastproject.hydrant.http.sockettimeout", "not a number");
+    service.deactivate(null);
+    service.distributionDirectory = null;
+    service.activate(createComponentContext(properties));
+
+    HttpConnectionManagerParams params = service.connectionManager.getParams();
+    Assert.assertEquals(7, params.getMaxTotalConnections());
+    Assert.assertEquals(3, params.getDefaultMaxConnectionsPerHost());
+    Assert.assertEquals(1234, params.getConnectionTimeout());
+    Assert.assertEquals(HydrantDistributionService.DEFAULT_SOCKET_TIMEOUT, params.getSoTimeout());
+    Assert.assertEquals(distributionRoot.getAbsolutePath(), service.distributionDirectory.getPath());
+
+    // The credentials are only sent to the hydrant host
+    Assert.assertSame(service.connectionManager, service.httpClient.getHttpConnectionManager());
+    Assert.assertTrue(service.httpClient.getParams().isAuthenticationPreemptive());
+    Assert.assertNotNull(service.httpClient.getState().getCredentials(new AuthScope("hydrant.example.org", 3000)));
+    Assert.assertNull(service.httpClient.getState().getCredentials(new AuthScope("elsewhere.example.org", 3000)));
+
+    IdleConnectionTimeoutThread idleConnectionThread = service.idleConnectionThread;
+    Assert.assertTrue(idleConnectionThread.isAlive());
+    service.deactivate(null);
+    idleConnectionThread.join(10000);
+    Assert.assertFalse(idleConnectionThread.isAlive());
+    Assert.assertNull(service.httpClient);
+
+    // tearDown deactivates the service once more
+    service.activate(null);
+  }
+
+  @Test
+  public void testDistributionDirectoryIsRequired() throws Exception {
+    service.deactivate(null);
+    service.distributionDirectory = null;
+    try {
+      service.activate(createComponentContext(new HashMap<String, String>()));
+      Assert.fail("Activated without a distribution directory");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+
+    // Without a directory of its own, the service keeps its indexes in the Opencast storage directory
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("org.opencastproject.storage.dir", distributionRoot.getAbsolutePath());
+    service.activate(createComponentContext(properties));
+    Assert.assertEquals(new File(distributionRoot, "hydrant").getAbsolutePath(),
+            service.distributionDirectory.getPath());
+  }
+
+  @Test
+  public void testAcceptedJobRunsInJobSecurityContext() throws Exception {
+    Organization organization = new DefaultOrganization();
+    User user = new User("admin", organization.getId(), new String[] { "ROLE_ADMIN" });
+    Job parent = EasyMock.createNiceMock(Job.class);
+    Job job = createJob(organization.getId(), "admin");
+    processPayload = "payload";
+
+    // The job is set up on behalf of its creator before processing and torn down afterwards, in this order
+    EasyMock.expect(serviceRegistry.updateJob(job)).andReturn(job);
+    EasyMock.expect(serviceRegistry.getCurrentJob()).andReturn(parent);
+    EasyMock.expect(organizationDirectoryService.getOrganization(organization.getId())).andReturn(organization);
+    securityService.setOrganization(organization);
+    EasyMock.expect(userDirectoryService.loadUser("admin")).andReturn(user);
+    securityService.setUser(user);
+    serviceRegistry.setCurrentJob(parent);
+    EasyMock.expect(serviceRegistry.updateJob(job)).andReturn(job);
+    serviceRegistry.setCurrentJob(null);
+    securityService.setUser(null);
+    securityService.setOrganization(null);
+    control.replay();
+
+    service.acceptJob(job);
+    waitForJobs();
+
+    control.verify();
+    Assert.assertSame(job, processedJob);
+    Assert.assertEquals("hydrant-job-1", processThread.getName());
+    Assert.assertTrue(processThread.isDaemon());
+  }
+
+  @Test
+  public void testSecurityContextIsClearedWhenJobFails() throws Exception {
+    Organization organization = new DefaultOrganization();
+    User user = new User("admin", organization.getId(), new String[] { "ROLE_ADMIN" });
+    processFailure = new IllegalStateException("failing on purpose");
+    Job job = createJob(organization.getId(), "admin");
+
+    EasyMock.expect(serviceRegistry.updateJob(job)).andReturn(job);
+    EasyMock.expect(serviceRegistry.getCurrentJob()).andReturn(null);
+    EasyMock.expect(organizationDirectoryService.getOrganization(organization.getId())).andReturn(organization);
+    securityService.setOrganization(organization);
+    EasyMock.expect(userDirectoryService.loadUser("admin")).andReturn(user);
+    securityService.setUser(user);
+    EasyMock.expect(serviceRegistry.updateJob(job)).andReturn(job);
+    serviceRegistry.setCurrentJob(null);
+    securityService.setUser(null);
+    securityService.setOrganization(null);
+    control.replay();
+
+    service.acceptJob(job);
+    waitForJobs();
+
+    control.verify();
+    EasyMock.verify(job);
+  }
+
+  @Test
+  public void testDistributeAndRetract() throws Exception {
+    MediaPackageElement track = mediaPackage.getElementById("track-1");
+    MediaPackageElement distributed = service.distribute(null, "mp-1", "hydrant:100", track);
+    Assert.assertNotNull(distributed);
+    Assert.assertNull(distributed.getIdentifier());
+    Assert.assertEquals(Arrays.asList("derivative:1"), createdDerivatives);
+
+    // Hydrant only knows about tracks
+    Assert.assertNull(service.distribute(null, "mp-1", "hydrant:100", mediaPackage.getElementById("catalog-1")));
+    Assert.assertEquals(1, createdDerivatives.size());
+
+    Assert.assertSame(track, service.retract(null, "mp-1", "hydrant:100", track));
+    Assert.assertEquals(Arrays.asList("derivative:1"), deletedDerivatives);
+    Assert.assertNull(service.retract(null, "mp-1", "hydrant:100", track));
+    Assert.assertEquals(1, deletedDerivatives.size());
+  }
+
+  @Test
+  public void testDistributeBatch() throws Exception {
+    Capture<List<String>> arguments = new Capture<List<String>>();
+    Job job = EasyMock.createNiceMock(Job.class);
+    EasyMock.expect(serviceRegistry.createJob(EasyMock.eq(HydrantDistributionService.JOB_TYPE),
+            EasyMock.eq("DistributeBatch"), EasyMock.capture(arguments))).andReturn(job);
+    control.replay();
+
+    // One job for all elements, of which hydrant only takes the track
+    Assert.assertSame(job, service.distribute(mediaPackage, Arrays.asList("track-1", "catalog-1", "notes")));
+    control.verify();
+
+    String payload = service.process(createJob("DistributeBatch", arguments.getValue()));
+    List<? extends MediaPackageElement> distributed = MediaPackageElementParser.getArrayFromXml(payload);
+    Assert.assertEquals(1, distributed.size());
+    Assert.assertEquals(mediaPackage.getElementById("track-1").getURI(), distributed.get(0).getURI());
+    Assert.assertEquals(Arrays.asList("derivative:1"), createdDerivatives);
+
+    // The requests of a batch are made on the request executor
+    Assert.assertTrue(requestThreads.get(0).startsWith("hydrant-request-"));
+  }
+
+  @Test
+  public void testDistributeBatchRequiresElements() throws Exception {
+    control.replay();
+    try {
+      service.distribute(mediaPackage, new ArrayList<String>());
+      Assert.fail("Distributing an empty batch must fail");
+    } catch (MediaPackageException e) {
+      // expected
+    }
+    try {
+      service.distribute(mediaPackage, (List<String>) null);
+      Assert.fail("Distributing without element ids must fail");
+    } catch (MediaPackageException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testDistributeBatchFailsIfAnyElementFails() throws Exception {
+    Track track = (Track) mediaPackage.getElementById("track-1");
+    final Track failing = (Track) track.clone();
+    failing.setURI(new URI("http://localhost/failing.mov"));
+    HydrantDistributionService failingService = new HydrantDistributionService() {
+      @Override
+      protected String createDerivative(String masterPid, MediaPackageElement element) throws DistributionException {
+        if (element.getURI().equals(failing.getURI()))
+          throw new DistributionException("failing on purpose");
+        return "derivative:1";
+      }
+    };
+    failingService.distributionDirectory = distributionRoot;
+    failingService.activate(null);
+    try {
+      failingService.distribute(null, "mp-1", "hydrant:100", Arrays.<MediaPackageElement> asList(track, failing));
+      Assert.fail("A failing element must fail the batch");
+    } catch (DistributionException e) {
+      Assert.assertEquals("failing on purpose", e.getMessage());
+    } finally {
+      failingService.deactivate(null);
+    }
+  }
+
+  @Test
+  public void testCompactJobArguments() throws Exception {
+    List<String> arguments = service.getJobArguments(mediaPackage, Arrays.asList("track-1"));
+    Assert.assertEquals(3, arguments.size());
+    Assert.assertEquals("hydrant:100", arguments.get(0));
+    Assert.assertEquals("hydrant:100", arguments.get(1));
+    Assert.assertEquals(mediaPackage.getElementById("track-1").getURI(),
+            MediaPackageElementParser.getFromXml(arguments.get(2)).getURI());
+
+    String payload = service.process(createJob("Distribute", arguments));
+    Assert.assertNotNull(MediaPackageElementParser.getFromXml(payload));
+    Assert.assertEquals("derivative:1", service.derivativeIndex.get("hydrant:100", "track-1"));
+
+    payload = service.process(createJob("Retract", arguments));
+    Assert.assertEquals("track-1", MediaPackageElementParser.getFromXml(payload).getIdentifier());
+    Assert.assertEquals(Arrays.asList("derivative:1"), deletedDerivatives);
+  }
+
+  @Test
+  public void testLegacyJobArguments() throws Exception {
+    service.compactJobPayload = false;
+    List<String> arguments = service.getJobArguments(mediaPackage, Arrays.asList("track-1"));
+    Assert.assertEquals(2, arguments.size());
+    Assert.assertEquals("track-1", arguments.get(1));
+
+    String payload = service.process(createJob("Distribute", arguments));
+    Assert.assertNotNull(MediaPackageElementParser.getFromXml(payload));
+    Assert.assertEquals("derivative:1", service.derivativeIndex.get("hydrant:100", "track-1"));
+
+    // Jobs created by earlier versions pass no element ids to RetractAll
+    payload = service.process(createJob("RetractAll", Arrays.asList(arguments.get(0))));
+    Assert.assertEquals(1, MediaPackageElementParser.getArrayFromXml(payload).size());
+    Assert.assertEquals(Arrays.asList("derivative:1"), deletedDerivatives);
+  }
+
+  @Test
+  public void testMediaPackageCacheIsOnlyUsedWithLegacyPayloads() throws Exception {
+    Assert.assertNull(service.getMediaPackageCache());
+
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("org.opencastproject.hydrant.job.payload", "mediapackage");
+    service.deactivate(null);
+    service.activate(createComponentContext(properties));
+    Assert.assertFalse(service.compactJobPayload);
+    MediaPackageCache cache = service.getMediaPackageCache();
+    Assert.assertNotNull(cache);
+
+    List<String> arguments = service.getJobArguments(mediaPackage, Arrays.asList("track-1"));
+    service.process(createJob("Distribute", arguments));
+    service.process(createJob("Retract", arguments));
+    Assert.assertEquals(1, cache.getMisses());
+    Assert.assertEquals(1, cache.getHits());
+  }
+
+  @Test
+  public void testCompactJobsAreReadRegardlessOfConfiguredPayload() throws Exception {
+    List<String> arguments = service.getJobArguments(mediaPackage, Arrays.asList("track-1"));
+    service.compactJobPayload = false;
+    Assert.assertNotNull(service.process(createJob("Distribute", arguments)));
+    Assert.assertEquals(1, createdDerivatives.size());
+  }
+
+  @Test
+  public void testRetractAllCarriesTracksOnly() throws Exception {
+    Capture<List<String>> arguments = new Capture<List<String>>();
+    Job job = EasyMock.createNiceMock(Job.class);
+    EasyMock.expect(serviceRegistry.createJob(EasyMock.eq(HydrantDistributionService.JOB_TYPE),
+            EasyMock.eq("RetractAll"), EasyMock.capture(arguments))).andReturn(job);
+    control.replay();
+
+    service.retract(mediaPackage);
+    control.verify();
+    Assert.assertEquals(3, arguments.getValue().size());
+    Assert.assertEquals("track-1", MediaPackageElementParser.getFromXml(arguments.getValue().get(2)).getIdentifier());
+  }
+
+  @Test
+  public void testMalformedJobs() throws Exception {
+    List<String> arguments = service.getJobArguments(mediaPackage, Arrays.asList("track-1"));
+    assertProcessingFails(createJob("Publish", arguments));
+    assertProcessingFails(createJob("Distribute", arguments.subList(0, 2)));
+    assertProcessingFails(createJob("Distribute", Arrays.asList("hydrant:100")));
+
+    service.compactJobPayload = false;
+    arguments = service.getJobArguments(mediaPackage, Arrays.asList("track-1"));
+    assertProcessingFails(createJob("Distribute", Arrays.asList(arguments.get(0), "no-such-element")));
+    Assert.assertTrue(createdDerivatives.isEmpty());
+  }
+
+  @Test
+  public void testSharedDerivativeIsDeletedWithLastReference() throws Exception {
+    MediaPackageElement track = mediaPackage.getElementById("track-1");
+    service.distribute(null, "mp-1", "hydrant:100", track);
+    service.distribute(null, "mp-2", "hydrant:100", track);
+    service.distribute(null, "mp-2", "hydrant:100", track);
+    Assert.assertEquals(Arrays.asList("derivative:1"), createdDerivatives);
+
+    Assert.assertNotNull(service.retract(null, "mp-1", "hydrant:100", track));
+    Assert.assertTrue(deletedDerivatives.isEmpty());
+    Assert.assertNotNull(service.retract(null, "mp-2", "hydrant:100", track));
+    Assert.assertEquals(Arrays.asList("derivative:1"), deletedDerivatives);
+
+    // With the last reference gone, distributing again creates a new derivative
+    service.distribute(null, "mp-3", "hydrant:100", track);
+    Assert.assertEquals(Arrays.asList("derivative:1", "derivative:2"), createdDerivatives);
+  }
+
+  @Test
+  public void testRetractAllReleasesElementsNoLongerInMediaPackage() throws Exception {
+    MediaPackageElement track = mediaPackage.getElementById("track-1");
+    service.distribute(null, "mp-1", "hydrant:100", track);
+    service.distribute(null, "mp-2", "hydrant:100", track);
+
+    // The first mediapackage has lost the track in the meantime
+    List<MediaPackageElement> retracted = service.retract(null, "mp-1", "hydrant:100",
+            new ArrayList<MediaPackageElement>());
+    Assert.assertTrue(retracted.isEmpty());
+    Assert.assertTrue(deletedDerivatives.isEmpty());
+
+    retracted = service.retract(null, "mp-2", "hydrant:100", Arrays.asList(track));
+    Assert.assertEquals(1, retracted.size());
+    Assert.assertEquals(Arrays.asList("derivative:1"), deletedDerivatives);
+  }
+
+  @Test
+  public void testParseDerivativeIdFromLocationHeader() throws Exception {
+    Assert.assertEquals("derivative:7", service.parseDerivativeId(
+            createMethod("http://localhost/hydrant/derivatives/derivative:7.json"), "{\"id\": \"other\"}"));
+    Assert.assertEquals("derivative:8", service.parseDerivativeId(
+            createMethod("http://localhost/hydrant/derivatives/derivative:8/"), null));
+  }
+
+  @Test
+  public void testParseDerivativeIdFromBody() throws Exception {
+    Assert.assertEquals("derivative:1", service.parseDerivativeId(createMethod(null), "{\"pid\":\"derivative:1\"}"));
+    Assert.assertEquals("42", service.parseDerivativeId(createMethod(null), "{ \"title\": \"x\", \"id\" : 42 }"));
+    Assert.assertEquals("derivative:2", service.parseDerivativeId(createMethod(null), "  derivative:2\n"));
+    Assert.assertEquals("derivative:3", service.parseDerivativeId(createMethod(" "), "derivative:3"));
+  }
+
+  @Test
+  public void testParseDerivativeIdWithoutId() throws Exception {
+    Assert.assertNull(service.parseDerivativeId(createMethod(null), null));
+    Assert.assertNull(service.parseDerivativeId(createMethod(null), "   "));
+    Assert.assertNull(service.parseDerivativeId(createMethod(null), "<html><body>Created</body></html>"));
+    Assert.assertNull(service.parseDerivativeId(createMethod(null), "{\"status\": \"created\"}"));
+  }
+
+  /**
+   * Creates a component context mock whose bundle context returns the given properties.
+   */
+  private ComponentContext createComponentContext(Map<String, String> properties) {
+    BundleContext bundleContext = EasyMock.createNiceMock(BundleContext.class);
+    for (Map.Entry<String, String> property : properties.entrySet()) {
+      EasyMock.expect(bundleContext.getProperty(property.getKey())).andReturn(property.getValue()).anyTimes();
+    }
+    ComponentContext cc = EasyMock.createNiceMock(ComponentContext.class);
+    EasyMock.expect(cc.getBundleContext()).andReturn(bundleContext).anyTimes();
+    EasyMock.replay(bundleContext, cc);
+    return cc;
+  }
+
+  /**
+   * Creates a method mock that returns the given <code>Location</code> header.
+   */
+  private HttpMethod createMethod(String location) {
+    HttpMethod method = EasyMock.createNiceMock(HttpMethod.class);
+    EasyMock.expect(method.getResponseHeader("Location")).andReturn(
+            location != null ? new Header("Location", location) : null).anyTimes();
+    EasyMock.replay(method);
+    return method;
+  }
+
+  /**
+   * Asserts that processing the job fails with a service registry exception.
+   */
+  private void assertProcessingFails(Job job) throws Exception {
+    try {
+      service.process(job);
+      Assert.fail("Processing " + job.getOperation() + " " + job.getArguments() + " must fail");
+    } catch (ServiceRegistryException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Creates a job mock for the operation with the given arguments.
+   */
+  private Job createJob(String operation, List<String> arguments) {
+    Job job = EasyMock.createNiceMock(Job.class);
+    EasyMock.expect(job.getId()).andReturn(1L).anyTimes();
+    EasyMock.expect(job.getOperation()).andReturn(operation).anyTimes();
+    EasyMock.expect(job.getArguments()).andReturn(arguments).anyTimes();
+    EasyMock.replay(job);
+    return job;
+  }
+
+  /**
+   * Creates a job mock that expects to be set to running and then to fail or finish.
+   */
+  private Job createJob(String organization, String creator) {
+    Job job = EasyMock.createNiceMock(Job.class);
+    EasyMock.expect(job.getId()).andReturn(1L).anyTimes();
+    EasyMock.expect(job.getOrganization()).andReturn(organization).anyTimes();
+    EasyMock.expect(job.getCreator()).andReturn(creator).anyTimes();
+    job.setStatus(Job.Status.RUNNING);
+    if (processFailure != null)
+      job.setStatus(Job.Status.FAILED);
+    EasyMock.replay(job);
+    return job;
+  }
+
+  /**
+   * Waits until all accepted jobs have finished, including their cleanup.
+   */
+  private void waitForJobs() throws InterruptedException {
+    service.jobExecutor.shutdown();
+    if (!service.jobExecutor.awaitTermination(10, TimeUnit.SECONDS))
+      Assert.fail("Accepted job did not finish");
+  }
+
+}
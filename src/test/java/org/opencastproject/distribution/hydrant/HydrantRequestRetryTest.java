@@ -0,0 +1,217 @@
+/**
+ *  Copyright 2009, 2010 The Regents of the University of California
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+package org.opencastproject.distribution.hydrant;
+
+import org.opencastproject.distribution.api.DistributionException;
+import org.opencastproject.distribution.hydrant.CircuitBreaker.State;
+import org.opencastproject.mediapackage.MediaPackage;
+import org.opencastproject.mediapackage.MediaPackageBuilderFactory;
+import org.opencastproject.mediapackage.MediaPackageElement;
+
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Tests the retries and the circuit breaker of the requests to hydrant against a stub server.
+ */
+public class HydrantRequestRetryTest {
+
+  private StubHydrantServer hydrant = null;
+  private HydrantDistributionService service = null;
+  private File distributionRoot = null;
+  private MediaPackageElement track = null;
+
+  @Before
+  public void setUp() throws Exception {
+    hydrant = new StubHydrantServer();
+    distributionRoot = new File("./target/hydrant-retry-test-" + System.currentTimeMillis());
+    service = new HydrantDistributionService();
+    service.distributionDirectory = distributionRoot;
+    service.activate(null);
+    service.hydrantUrl = hydrant.getUrl();
+    service.maxRetries = 2;
+    service.retryDelay = 1;
+    service.retryMaxDelay = 10;
+
+    InputStream in = null;
+    try {
+      in = getClass().getResourceAsStream("/mediapackage.xml");
+      MediaPackage mediaPackage = MediaPackageBuilderFactory.newInstance().newMediaPackageBuilder().loadFromXml(in);
+      track = mediaPackage.getElementById("track-1");
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    service.deactivate(null);
+    hydrant.stop();
+    FileUtils.deleteQuietly(distributionRoot);
+  }
+
+  @Test
+  public void testCreateAndDeleteDerivative() throws Exception {
+    String derivativeId = service.createDerivative("hydrant:100", track);
+    Assert.assertEquals("derivative:1", derivativeId);
+    Assert.assertTrue(hydrant.getDerivatives().contains(derivativeId));
+
+    service.deleteDerivative(derivativeId);
+    Assert.assertTrue(hydrant.getDerivatives().isEmpty());
+
+    // Derivatives that are already gone count as deleted
+    service.deleteDerivative(derivativeId);
+    Assert.assertEquals(2, hydrant.getRequestCount("DELETE"));
+  }
+
+  @Test
+  public void testTemporaryFailuresAreRetried() throws Exception {
+    hydrant.enqueue(503, 0);
+    hydrant.enqueue(500, -1);
+    Assert.assertEquals("derivative:1", service.createDerivative("hydrant:100", track));
+    Assert.assertEquals(3, hydrant.getRequestCount("POST"));
+    // Only the 500 may have created a derivative, so it is looked up once before the last attempt
+    Assert.assertEquals(1, hydrant.getRequestCount("GET"));
+    Assert.assertEquals(State.CLOSED, service.getCircuitBreaker().getState());
+    Assert.assertEquals(0, service.getCircuitBreaker().getConsecutiveFailures());
+  }
+
+  @Test
+  public void testRetriesAreLimited() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      hydrant.enqueue(502, -1);
+    }
+    try {
+      service.createDerivative("hydrant:100", track);
+      Assert.fail("Creating the derivative must fail once the retries are used up");
+    } catch (DistributionException e) {
+      // expected
+    }
+    Assert.assertEquals(3, hydrant.getRequestCount("POST"));
+    Assert.assertEquals(2, hydrant.getRequestCount("GET"));
+    // The lookups in between found hydrant up and running
+    Assert.assertEquals(1, service.getCircuitBreaker().getConsecutiveFailures());
+  }
+
+  @Test
+  public void testRefusedRequestsAreResentRightAway() throws Exception {
+    hydrant.enqueue(429, 0);
+    hydrant.enqueue(503, 0);
+    Assert.assertEquals("derivative:1", service.createDerivative("hydrant:100", track));
+    Assert.assertEquals(3, hydrant.getRequestCount("POST"));
+    Assert.assertEquals(0, hydrant.getRequestCount("GET"));
+  }
+
+  @Test
+  public void testLostResponseIsLookedUp() throws Exception {
+    hydrant.enqueueAfterProcessing(502);
+    Assert.assertEquals("derivative:1", service.createDerivative("hydrant:100", track));
+    Assert.assertEquals(1, hydrant.getRequestCount("POST"));
+    Assert.assertEquals(1, hydrant.getRequestCount("GET"));
+    Assert.assertEquals(1, hydrant.getDerivatives().size());
+  }
+
+  @Test
+  public void testDroppedConnectionIsLookedUp() throws Exception {
+    hydrant.enqueueAfterProcessing(0);
+    Assert.assertEquals("derivative:1", service.createDerivative("hydrant:100", track));
+    Assert.assertEquals(1, hydrant.getRequestCount("POST"));
+    Assert.assertEquals(1, hydrant.getDerivatives().size());
+  }
+
+  @Test
+  public void testUnreadableResponseIsNotResent() throws Exception {
+    final String url = hydrant.getUrl() + "/derivatives";
+    try {
+      service.execute(new HydrantDistributionService.HydrantRequest<String>() {
+        public HttpMethod createMethod() {
+          return new PostMethod(url);
+        }
+
+        public String handleResponse(HttpMethod method, int status) throws IOException {
+          throw new IOException("Connection reset while reading the response");
+        }
+      });
+      Assert.fail("Failing to read the response must fail the request");
+    } catch (DistributionException e) {
+      // expected
+    }
+    Assert.assertEquals(1, hydrant.getRequestCount("POST"));
+  }
+
+  @Test
+  public void testClientErrorsAreNotRetried() throws Exception {
+    service.getCircuitBreaker().recordFailure();
+    hydrant.enqueue(400, -1);
+    try {
+      service.createDerivative("hydrant:100", track);
+      Assert.fail("Hydrant refusing the derivative must fail the request");
+    } catch (DistributionException e) {
+      // expected
+    }
+    Assert.assertEquals(1, hydrant.getRequestCount("POST"));
+    // Hydrant answered, so it is considered up
+    Assert.assertEquals(0, service.getCircuitBreaker().getConsecutiveFailures());
+  }
+
+  @Test
+  public void testOpenBreakerFailsFast() throws Exception {
+    service.circuitBreaker = new CircuitBreaker(2, 60000);
+    service.maxRetries = 0;
+    for (int i = 0; i < 2; i++) {
+      hydrant.enqueue(503, -1);
+      try {
+        service.createDerivative("hydrant:100", track);
+        Assert.fail("Creating the derivative must fail");
+      } catch (DistributionException e) {
+        // expected
+      }
+    }
+    Assert.assertTrue(service.getCircuitBreaker().isOpen());
+    Assert.assertFalse(service.isReadyToAcceptJobs("Distribute"));
+
+    try {
+      service.createDerivative("hydrant:100", track);
+      Assert.fail("Requests must fail while the breaker is open");
+    } catch (DistributionException e) {
+      // expected
+    }
+    Assert.assertEquals(2, hydrant.getRequestCount("POST"));
+  }
+
+  @Test
+  public void testConnectionFailuresAreRetried() throws Exception {
+    hydrant.stop();
+    try {
+      service.createDerivative("hydrant:100", track);
+      Assert.fail("Creating the derivative must fail while hydrant is down");
+    } catch (DistributionException e) {
+      // expected
+    }
+    Assert.assertEquals(3, service.getCircuitBreaker().getConsecutiveFailures());
+  }
+
+}
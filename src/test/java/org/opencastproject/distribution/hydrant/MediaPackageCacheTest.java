@@ -0,0 +1,62 @@
+/**
+ *  Copyright 2009, 2010 The Regents of the University of California
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+package org.opencastproject.distribution.hydrant;
+
+import org.opencastproject.mediapackage.MediaPackage;
+import org.opencastproject.mediapackage.MediaPackageException;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MediaPackageCacheTest {
+
+  private String xml = null;
+
+  @Before
+  public void setUp() throws Exception {
+    xml = IOUtils.toString(getClass().getResourceAsStream("/mediapackage.xml"), "UTF-8");
+  }
+
+  @Test
+  public void testParsedMediaPackageIsShared() throws Exception {
+    MediaPackageCache cache = new MediaPackageCache(10);
+    MediaPackage mediaPackage = cache.get(xml);
+    Assert.assertEquals("hydrant:100", mediaPackage.getIdentifier().compact());
+    Assert.assertSame(mediaPackage, cache.get(xml));
+    Assert.assertEquals(1, cache.getHits());
+    Assert.assertEquals(1, cache.getMisses());
+    Assert.assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() throws Exception {
+    MediaPackageCache cache = new MediaPackageCache(1);
+    String other = xml.replace("hydrant:100", "hydrant:200");
+    MediaPackage first = cache.get(xml);
+    Assert.assertEquals("hydrant:200", cache.get(other).getIdentifier().compact());
+    Assert.assertEquals(1, cache.size());
+    Assert.assertNotSame(first, cache.get(xml));
+    Assert.assertEquals(3, cache.getMisses());
+  }
+
+  @Test(expected = MediaPackageException.class)
+  public void testMalformedXml() throws Exception {
+    new MediaPackageCache(10).get("<mediapackage");
+  }
+
+}
@@ -0,0 +1,326 @@
+/**
+ *  Copyright 2009, 2010 The Regents of the University of California
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+package org.opencastproject.distribution.hydrant;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-process stand-in for hydrant's derivatives api, listening on a random local port.
+ * <p>
+ * <code>POST /derivatives</code> creates a derivative and answers with its location and identifier,
+ * <code>GET /derivatives?master={pid}&amp;stream_url={url}</code> finds it and <code>DELETE /derivatives/{id}</code>
+ * deletes it. Responses can be scripted ahead of time to simulate failures. For load tests, every response can be
+ * delayed, a share of them failed at random and their bodies padded to a size.
+ */
+class StubHydrantServer {
+
+  static {
+    // Otherwise the body of a response waits for the acknowledgement of its headers
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+  }
+
+  /** The http server */
+  private final HttpServer server;
+
+  /** The threads answering the requests */
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  /** The identifiers of the derivatives that exist */
+  private final Set<String> derivatives = Collections.synchronizedSet(new HashSet<String>());
+
+  /** The identifiers of the derivatives, by master pid and stream url */
+  private final ConcurrentMap<String, String> derivativesByStream = new ConcurrentHashMap<String, String>();
+
+  /** The source of derivative identifiers */
+  private final AtomicInteger nextDerivative = new AtomicInteger();
+
+  /** The number of requests received, by http method */
+  private final ConcurrentMap<String, AtomicInteger> requests = new ConcurrentHashMap<String, AtomicInteger>();
+
+  /**
+   * Scripted responses, which are sent instead of the regular ones until they are used up. Each consists of the
+   * status, the <code>Retry-After</code> header or <code>-1</code> and whether the request is carried out anyway.
+   */
+  private final Queue<int[]> scripted = new LinkedList<int[]>();
+
+  /** The time every response is delayed by, in milliseconds */
+  private volatile long latency = 0;
+
+  /** The share of requests answered with a server error */
+  private volatile double errorRate = 0;
+
+  /** The minimum size of response bodies in bytes */
+  private volatile int payloadSize = 0;
+
+  /** The source of the random failures */
+  private final Random random = new Random(0);
+
+  /**
+   * Starts a server on a random port of the loopback interface.
+   * 
+   * @throws IOException
+   *           if the server can't be started
+   */
+  StubHydrantServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/derivatives", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          handleRequest(exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /**
+   * Returns the base url of the server, which is what the service is configured with as hydrant's url.
+   */
+  String getUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  /**
+   * Stops the server.
+   */
+  void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /**
+   * Makes the server answer the next request that isn't a lookup with the given status, optionally asking for a retry
+   * after the given number of seconds.
+   * 
+   * @param status
+   *          the http status
+   * @param retryAfter
+   *          the value of the <code>Retry-After</code> header, or <code>-1</code> for none
+   */
+  void enqueue(int status, int retryAfter) {
+    synchronized (scripted) {
+      scripted.add(new int[] { status, retryAfter, 0 });
+    }
+  }
+
+  /**
+   * Makes the server carry out the next request that isn't a lookup, but answer it with the given status as if the
+   * regular response had been lost.
+   * 
+   * @param status
+   *          the http status, or <code>0</code> to close the connection without a response
+   */
+  void enqueueAfterProcessing(int status) {
+    synchronized (scripted) {
+      scripted.add(new int[] { status, -1, 1 });
+    }
+  }
+
+  /**
+   * Delays every response by the given time.
+   * 
+   * @param latency
+   *          the delay in milliseconds
+   */
+  void setLatency(long latency) {
+    this.latency = latency;
+  }
+
+  /**
+   * Makes the server answer the given share of requests with <code>503 Service Unavailable</code>.
+   * 
+   * @param errorRate
+   *          the share of failed requests, from 0 to 1
+   */
+  void setErrorRate(double errorRate) {
+    this.errorRate = errorRate;
+  }
+
+  /**
+   * Pads the bodies of the responses with whitespace to at least the given size.
+   * 
+   * @param payloadSize
+   *          the size in bytes
+   */
+  void setPayloadSize(int payloadSize) {
+    this.payloadSize = payloadSize;
+  }
+
+  /**
+   * Returns the number of requests received with the given http method.
+   */
+  int getRequestCount(String method) {
+    AtomicInteger count = requests.get(method);
+    return count != null ? count.get() : 0;
+  }
+
+  /**
+   * Returns the identifiers of the derivatives that currently exist.
+   */
+  Set<String> getDerivatives() {
+    synchronized (derivatives) {
+      return new HashSet<String>(derivatives);
+    }
+  }
+
+  /**
+   * Answers a request, either with a scripted response or as hydrant would.
+   */
+  protected void handleRequest(HttpExchange exchange) throws IOException {
+    String method = exchange.getRequestMethod();
+    AtomicInteger count = requests.putIfAbsent(method, new AtomicInteger(1));
+    if (count != null)
+      count.incrementAndGet();
+    String body = new String(IOUtils.toByteArray(exchange.getRequestBody()), "UTF-8");
+
+    if (latency > 0) {
+      try {
+        Thread.sleep(latency);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    // Scripted responses are never used up by lookups, which only happen in response to them
+    int[] response = null;
+    boolean lookup = "GET".equals(method);
+    synchronized (scripted) {
+      if (!lookup)
+        response = scripted.poll();
+      if (response == null && errorRate > 0 && random.nextDouble() < errorRate)
+        response = new int[] { 503, -1, 0 };
+    }
+    if (response == null) {
+      answer(exchange, method, body, true);
+    } else {
+      if (response[2] != 0)
+        answer(exchange, method, body, false);
+      if (response[0] == 0)
+        return;
+      if (response[1] >= 0)
+        exchange.getResponseHeaders().add("Retry-After", Integer.toString(response[1]));
+      exchange.sendResponseHeaders(response[0], -1);
+    }
+  }
+
+  /**
+   * Carries out a request as hydrant would.
+   * 
+   * @param respond
+   *          whether to answer the request or to drop the response
+   */
+  private void answer(HttpExchange exchange, String method, String body, boolean respond) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    String response = null;
+    int status = 405;
+    if ("POST".equals(method) && "/derivatives".equals(path)) {
+      String derivativeId = "derivative:" + nextDerivative.incrementAndGet();
+      derivatives.add(derivativeId);
+      derivativesByStream.put(getPart(body, "master") + " " + getPart(body, "stream_url"), derivativeId);
+      if (respond)
+        exchange.getResponseHeaders().add("Location", getUrl() + "/derivatives/" + derivativeId);
+      status = 201;
+      response = "{\"id\":\"" + derivativeId + "\"}";
+    } else if ("GET".equals(method) && "/derivatives".equals(path)) {
+      Map<String, String> query = getQuery(exchange.getRequestURI().getRawQuery());
+      String derivativeId = derivativesByStream.get(query.get("master") + " " + query.get("stream_url"));
+      if (derivativeId != null) {
+        status = 200;
+        response = "{\"id\":\"" + derivativeId + "\"}";
+      } else {
+        status = 404;
+      }
+    } else if ("DELETE".equals(method) && path.startsWith("/derivatives/")) {
+      String derivativeId = path.substring("/derivatives/".length());
+      derivativesByStream.values().remove(derivativeId);
+      status = derivatives.remove(derivativeId) ? 204 : 404;
+    }
+    if (!respond)
+      return;
+    if (response != null)
+      send(exchange, status, response);
+    else
+      exchange.sendResponseHeaders(status, -1);
+  }
+
+  /**
+   * Returns the value of a part of a <code>multipart/form-data</code> body.
+   */
+  private static String getPart(String body, String name) {
+    Pattern pattern = Pattern.compile("name=\"" + name + "\".*?\r\n\r\n(.*?)\r\n--", Pattern.DOTALL);
+    Matcher matcher = pattern.matcher(body);
+    return matcher.find() ? matcher.group(1) : null;
+  }
+
+  /**
+   * Decodes the parameters of a query string.
+   */
+  private static Map<String, String> getQuery(String query) throws IOException {
+    Map<String, String> parameters = new HashMap<String, String>();
+    if (query == null)
+      return parameters;
+    for (String parameter : query.split("&")) {
+      int separator = parameter.indexOf('=');
+      if (separator > 0)
+        parameters.put(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"),
+                URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+    }
+    return parameters;
+  }
+
+  /**
+   * Sends a response with the given body.
+   */
+  protected void send(HttpExchange exchange, int status, String body) throws IOException {
+    StringBuilder padded = new StringBuilder(body);
+    while (padded.length() < payloadSize)
+      padded.append(' ');
+    byte[] bytes = padded.toString().getBytes("UTF-8");
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+}
@@ -0,0 +1,169 @@
+package org.projectbamboo.util.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.projectbamboo.util.fedora.LatencyHistogram;
+
+/**
+ * <p>
+ *   A small harness for the benchmarks and load tests, which are plain
+ *   JUnit tests that only run with -Dbenchmark=true.  An operation is
+ *   run a number of times by a number of threads, first to warm up and
+ *   then measured; the throughput and the percentiles of the latency
+ *   are printed and returned.
+ * </p>
+ * <p>
+ *   The sizes of the runs are multiplied by the benchmark.scale system
+ *   property (1 by default), so that the same test serves as a quick
+ *   smoke test and as a long running load test.  Failures of the
+ *   operation are counted rather than thrown, as load tests may inject
+ *   them on purpose.
+ * </p>
+ */
+public final class Benchmark {
+
+    /**
+     * A measured operation.
+     */
+    public interface Operation {
+
+        /**
+         * Runs the operation once.
+         * @param index the number of the run, from 0 up, which is unique
+         * across all threads of the warm up and of the measurement
+         */
+        void run(int index) throws Exception;
+
+    }
+
+    /**
+     * The outcome of a measured run.
+     */
+    public static class Result {
+
+        private final String name;
+
+        private final long operations;
+
+        private final long errors;
+
+        private final long elapsedNanos;
+
+        private final LatencyHistogram latencies;
+
+        private final Exception firstError;
+
+        Result(String name, long operations, long errors, long elapsedNanos, LatencyHistogram latencies, Exception firstError) {
+            this.name = name;
+            this.operations = operations;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+            this.firstError = firstError;
+        }
+
+        public long getOperations() {
+            return operations;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * Gets the first failure of the operation, or null.
+         */
+        public Exception getFirstError() {
+            return firstError;
+        }
+
+        /**
+         * Gets the number of operations per second.
+         */
+        public double getThroughput() {
+            return elapsedNanos > 0 ? operations * 1e9 / elapsedNanos : 0;
+        }
+
+        /**
+         * Gets the latency of a single operation in microseconds.
+         */
+        public LatencyHistogram getLatencies() {
+            return latencies;
+        }
+
+        public String toString() {
+            return String.format(Locale.ENGLISH, "%-50s %10.1f ops/s  p50 %8d us  p99 %8d us  p99.9 %8d us  max %8d us  errors %d",
+                    name, getThroughput(), latencies.getPercentile(0.5), latencies.getPercentile(0.99),
+                    latencies.getPercentile(0.999), latencies.getMax(), errors);
+        }
+
+    }
+
+    private Benchmark() {
+    }
+
+    /**
+     * Determines whether benchmarks are to be run (-Dbenchmark=true).
+     */
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("benchmark");
+    }
+
+    /**
+     * Scales a number of operations by the benchmark.scale property.
+     */
+    public static int scale(int count) {
+        return count * Math.max(1, Integer.getInteger("benchmark.scale", 1));
+    }
+
+    /**
+     * Warms up and then measures an operation.
+     * @param threads the number of threads running the operation
+     * @param warmup the number of unmeasured runs
+     * @param runs the number of measured runs
+     */
+    public static Result run(String name, int threads, int warmup, int runs, Operation operation) throws InterruptedException {
+        measure(name, threads, 0, warmup, operation);
+        Result result = measure(name, threads, warmup, runs, operation);
+        System.out.println(result);
+        return result;
+    }
+
+    private static Result measure(String name, int threads, final int first, final int runs, final Operation operation) throws InterruptedException {
+        final AtomicInteger next = new AtomicInteger(first);
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicReference<Exception> firstError = new AtomicReference<Exception>();
+        final LatencyHistogram latencies = new LatencyHistogram();
+        List<Thread> workers = new ArrayList<Thread>(threads);
+        for (int t = 0; t < threads; t ++) {
+            workers.add(new Thread(new Runnable() {
+                public void run() {
+                    int index;
+                    while ((index = next.getAndIncrement()) < first + runs) {
+                        long start = System.nanoTime();
+                        try {
+                            operation.run(index);
+                        } catch (Exception ex) {
+                            errors.incrementAndGet();
+                            firstError.compareAndSet(null, ex);
+                        }
+                        latencies.record((System.nanoTime() - start) / 1000);
+                    }
+                }
+            }, "benchmark-" + t));
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return new Result(name, runs, errors.get(), System.nanoTime() - start, latencies, firstError.get());
+    }
+
+}
@@ -0,0 +1,139 @@
+package org.projectbamboo.util.fedora;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncFedoraClientTest {
+
+    private StubFedoraServer server;
+
+    private FedoraClient fc;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubFedoraServer();
+        server.addObject("test:1");
+        fc = new FedoraClient(server.getUrl(), false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fc.close();
+        server.stop();
+    }
+
+    @Test
+    public void testCallback() throws Exception {
+        AsyncFedoraClient async = new AsyncFedoraClient(fc, 2, 10, 2);
+        final AtomicReference<Object> outcome = new AtomicReference<Object>();
+        final CountDownLatch notified = new CountDownLatch(2);
+        AsyncFedoraClient.Callback<ObjectProfile> callback = new AsyncFedoraClient.Callback<ObjectProfile>() {
+            public void completed(ObjectProfile result) {
+                outcome.set(result);
+                notified.countDown();
+            }
+
+            public void failed(Exception cause) {
+                outcome.set(cause);
+                notified.countDown();
+            }
+        };
+        assertEquals("test:1", async.getObjectProfile("test:1", callback).get().getPid());
+        assertEquals("test:1", ((ObjectProfile) outcome.get()).getPid());
+        server.enqueue(500);
+        Future<ObjectProfile> failed = async.getObjectProfile("test:1", callback);
+        try {
+            failed.get();
+            fail("the failed request wasn't reported");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof FedoraException);
+        }
+        assertTrue(notified.await(10, TimeUnit.SECONDS));
+        assertTrue(outcome.get() instanceof FedoraException);
+        async.shutdown();
+        assertEquals(2, async.getAvailableRequestPermits());
+    }
+
+    @Test(timeout = 30000)
+    public void testSubmissionsWaitForAPermit() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        try {
+            // keeps the operations queued
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        blocked.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            final AsyncFedoraClient async = new AsyncFedoraClient(fc, executor, 2);
+            Future<ObjectProfile> first = async.getObjectProfile("test:1");
+            Future<ObjectProfile> second = async.getObjectProfile("test:1");
+            assertEquals(0, async.getAvailableRequestPermits());
+
+            final AtomicReference<Future<ObjectProfile>> third = new AtomicReference<Future<ObjectProfile>>();
+            Thread submitter = new Thread() {
+                public void run() {
+                    third.set(async.getObjectProfile("test:1"));
+                }
+            };
+            submitter.start();
+            submitter.join(200);
+            assertTrue(submitter.isAlive());
+
+            // cancelling an operation that hasn't started gives its permit to the waiting submission
+            first.cancel(false);
+            submitter.join(10000);
+            assertTrue(third.get() != null);
+
+            blocked.countDown();
+            assertEquals("test:1", second.get().getPid());
+            assertEquals("test:1", third.get().get().getPid());
+            assertEquals(2, async.getAvailableRequestPermits());
+            assertEquals(2, server.getRequestCount("GET", "/objects/test:1"));
+        } finally {
+            blocked.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testRejectedSubmissionReleasesItsPermit() throws Exception {
+        server.setLatency(500);
+        AsyncFedoraClient async = new AsyncFedoraClient(fc, 1, 1, 5);
+        try {
+            Future<ObjectProfile> running = async.getObjectProfile("test:1");
+            Future<ObjectProfile> queued = async.getObjectProfile("test:1");
+            try {
+                async.getObjectProfile("test:1");
+                fail("the submission wasn't rejected");
+            } catch (RejectedExecutionException ex) {
+                // expected
+            }
+            assertEquals(3, async.getAvailableRequestPermits());
+            running.get();
+            queued.get();
+            assertEquals(5, async.getAvailableRequestPermits());
+        } finally {
+            async.shutdown();
+        }
+    }
+
+}
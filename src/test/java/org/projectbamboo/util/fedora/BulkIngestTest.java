@@ -0,0 +1,158 @@
+package org.projectbamboo.util.fedora;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.projectbamboo.util.fedora.BulkIngestResult.ObjectResult;
+
+import com.sun.net.httpserver.HttpExchange;
+
+public class BulkIngestTest {
+
+    private static final String IS_MEMBER_OF = "info:fedora/fedora-system:def/relations-external#isMemberOf";
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    /**
+     * The pid of an object that the server refuses to create, if any.
+     */
+    private volatile String failingPid;
+
+    private StubFedoraServer server;
+
+    private FedoraClient fc;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubFedoraServer() {
+            protected void handleRequest(HttpExchange exchange) throws IOException {
+                int current = inFlight.incrementAndGet();
+                synchronized (maxInFlight) {
+                    maxInFlight.set(Math.max(maxInFlight.get(), current));
+                }
+                try {
+                    if (exchange.getRequestMethod().equals("POST") && exchange.getRequestURI().getPath().endsWith("/objects/" + failingPid)) {
+                        send(exchange, 500, "failing on purpose");
+                    } else {
+                        super.handleRequest(exchange);
+                    }
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            }
+        };
+        server.setLatency(10);
+        fc = new FedoraClient(server.getUrl(), false);
+        executor = Executors.newFixedThreadPool(8);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdown();
+        fc.close();
+        server.stop();
+    }
+
+    /**
+     * Creates a collection and the given number of members with a
+     * datastream each.
+     */
+    private List<ObjectSpec> createSpecs(int members) throws Exception {
+        List<ObjectSpec> specs = new ArrayList<ObjectSpec>();
+        ObjectSpec collection = new ObjectSpec("collection", "owner", "bulk");
+        collection.addDatastreamByReference("THUMBNAIL", "http://localhost/thumbnail.png", "E", "image/png");
+        specs.add(collection);
+        for (int i = 0; i < members; i ++) {
+            ObjectSpec member = new ObjectSpec("member " + i, "owner", "bulk");
+            byte[] content = ("content " + i).getBytes("UTF-8");
+            member.addDatastream("CONTENT", new ByteArrayInputStream(content), content.length, "M", "text/plain");
+            member.addRelationship(IS_MEMBER_OF, collection);
+            specs.add(member);
+        }
+        return specs;
+    }
+
+    @Test
+    public void testIngest() throws Exception {
+        List<ObjectSpec> specs = createSpecs(1);
+        specs.remove(1);
+        ObjectSpec member = new ObjectSpec("member", "owner", "bulk");
+        member.setPid("other:1");
+        member.addDatastream("CONTENT", new ByteArrayInputStream(new byte[100]), 100, "M", "application/octet-stream");
+        member.addRelationship(IS_MEMBER_OF, specs.get(0));
+        specs.add(member);
+
+        BulkIngestResult result = fc.ingest(specs, executor, 4);
+        assertEquals(2, result.getSucceeded());
+        assertEquals(0, result.getFailed());
+        assertEquals(100, result.getBytesUploaded());
+        // one pid was reserved, the other one was given
+        assertEquals(1, server.getRequestCount("POST", "/objects/nextPID"));
+        assertEquals("bulk:1", result.getObjectResults().get(0).getPid());
+
+        StubFedoraServer.StubObject collection = server.getObject("bulk:1");
+        assertEquals("collection", collection.label);
+        assertEquals("E", collection.datastreams.get("THUMBNAIL").controlGroup);
+        StubFedoraServer.StubObject other = server.getObject("other:1");
+        assertEquals(100, other.datastreams.get("CONTENT").content.length);
+        assertEquals(1, other.relationships.size());
+        assertEquals(IS_MEMBER_OF, other.relationships.get(0)[0]);
+        assertEquals("info:fedora/bulk:1", other.relationships.get(0)[1]);
+        // datastreams are added to new objects without listing them first
+        assertEquals(0, server.getRequestCount("GET", "/objects/other:1/datastreams"));
+    }
+
+    @Test
+    public void testFailuresOnlyAffectTheirObject() throws Exception {
+        failingPid = "bulk:3";
+        List<ObjectSpec> specs = createSpecs(4);
+        // the member with that pid gets no content, and nothing can be related to it
+        ObjectSpec dependent = new ObjectSpec("dependent", "owner", "bulk");
+        dependent.addRelationship(IS_MEMBER_OF, specs.get(2));
+        specs.add(dependent);
+
+        BulkIngestResult result = fc.ingest(specs, executor, 4);
+        assertEquals(4, result.getSucceeded());
+        assertEquals(2, result.getFailed());
+        ObjectResult failed = result.getObjectResults().get(2);
+        assertEquals("bulk:3", failed.getPid());
+        assertFalse(failed.isCreated());
+        assertTrue(failed.getFailure() instanceof RuntimeException);
+        assertNull(server.getObject("bulk:3"));
+        assertEquals(0, server.getRequestCount("POST", "/objects/bulk:3/datastreams"));
+
+        ObjectResult dependentResult = result.getObjectResults().get(5);
+        assertTrue(dependentResult.isCreated());
+        assertFalse(dependentResult.isSuccess());
+        assertEquals(0, dependentResult.getRelationshipsAdded());
+        for (int i : Arrays.asList(0, 1, 3, 4)) {
+            assertTrue(result.getObjectResults().get(i).isSuccess());
+        }
+    }
+
+    @Test
+    public void testRequestsInFlightAreBounded() throws Exception {
+        BulkIngestResult result = fc.ingest(createSpecs(20), executor, 2);
+        assertEquals(21, result.getSucceeded());
+        assertTrue(String.valueOf(maxInFlight.get()), maxInFlight.get() <= 2);
+    }
+
+}
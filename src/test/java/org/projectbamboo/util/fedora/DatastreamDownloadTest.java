@@ -0,0 +1,185 @@
+package org.projectbamboo.util.fedora;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.projectbamboo.util.fedora.FedoraClient.FedoraObject;
+
+import com.sun.net.httpserver.HttpExchange;
+
+public class DatastreamDownloadTest {
+
+    private static final int SIZE = 100000;
+
+    private byte[] content;
+
+    private StubFedoraServer server;
+
+    private FedoraClient fc;
+
+    private File file;
+
+    /**
+     * The Range headers of the content requests, or "" for none.
+     */
+    private final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * The number of content responses to cut off halfway.
+     */
+    private volatile int dropped;
+
+    @Before
+    public void setUp() throws Exception {
+        content = new byte[SIZE];
+        new Random(0).nextBytes(content);
+        server = new StubFedoraServer() {
+            protected void sendContent(HttpExchange exchange, byte[] bytes) throws IOException {
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                ranges.add(range != null ? range : "");
+                if (dropped > 0) {
+                    dropped --;
+                    // announce all of the requested content but drop the connection halfway
+                    int first = 0;
+                    int last = bytes.length - 1;
+                    if (range != null) {
+                        String[] bounds = range.substring("bytes=".length()).split("-");
+                        first = Integer.parseInt(bounds[0]);
+                        if (bounds.length > 1) {
+                            last = Integer.parseInt(bounds[1]);
+                        }
+                        exchange.getResponseHeaders().add("Content-Range", "bytes " + first + "-" + last + "/" + bytes.length);
+                    }
+                    exchange.sendResponseHeaders(range != null ? 206 : 200, last - first + 1);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(bytes, first, (last - first + 1) / 2);
+                    out.flush();
+                    exchange.close();
+                } else {
+                    super.sendContent(exchange, bytes);
+                }
+            }
+        };
+        server.addObject("test:1");
+        server.addDatastream("test:1", "CONTENT", content, "application/octet-stream");
+        fc = new FedoraClient(server.getUrl(), false);
+        file = File.createTempFile("datastream-download-", ".bin");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fc.close();
+        server.stop();
+        FileUtils.deleteQuietly(file);
+    }
+
+    private FedoraObject getObject() throws Exception {
+        return fc.getFedoraObject("test:1");
+    }
+
+    @Test
+    public void testDownload() throws Exception {
+        getObject().downloadDatastream("CONTENT", file);
+        assertArrayEquals(content, FileUtils.readFileToByteArray(file));
+        assertEquals(Arrays.asList(""), ranges);
+    }
+
+    @Test
+    public void testPartialFileIsResumed() throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content, 0, 30000);
+        } finally {
+            out.close();
+        }
+        getObject().downloadDatastream("CONTENT", file);
+        assertArrayEquals(content, FileUtils.readFileToByteArray(file));
+        assertEquals(Arrays.asList("bytes=30000-"), ranges);
+    }
+
+    @Test
+    public void testCompleteFileIsNotFetchedAgain() throws Exception {
+        FileUtils.writeByteArrayToFile(file, content);
+        getObject().downloadDatastream("CONTENT", file);
+        assertArrayEquals(content, FileUtils.readFileToByteArray(file));
+        assertEquals(Collections.emptyList(), ranges);
+    }
+
+    @Test
+    public void testDroppedConnectionIsResumed() throws Exception {
+        dropped = 1;
+        getObject().downloadDatastream("CONTENT", file);
+        assertArrayEquals(content, FileUtils.readFileToByteArray(file));
+        assertEquals(2, ranges.size());
+        assertEquals("", ranges.get(0));
+        assertEquals("bytes=" + (SIZE / 2) + "-", ranges.get(1));
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            getObject().downloadDatastream("CONTENT", file, executor, 30000);
+        } finally {
+            executor.shutdown();
+        }
+        assertArrayEquals(content, FileUtils.readFileToByteArray(file));
+        assertEquals(4, ranges.size());
+        assertTrue(ranges.contains("bytes=90000-99999"));
+    }
+
+    @Test
+    public void testDroppedSegmentIsRetried() throws Exception {
+        dropped = 1;
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            getObject().downloadDatastream("CONTENT", file, executor, 30000);
+        } finally {
+            executor.shutdown();
+        }
+        assertArrayEquals(content, FileUtils.readFileToByteArray(file));
+        assertEquals(Arrays.asList("bytes=0-29999", "bytes=0-29999", "bytes=30000-59999", "bytes=60000-89999", "bytes=90000-99999"), ranges);
+    }
+
+    @Test
+    public void testChecksumMismatchDeletesFile() throws Exception {
+        server.getObject("test:1").datastreams.get("CONTENT").checksum = "00000000000000000000000000000000";
+        try {
+            getObject().downloadDatastream("CONTENT", file);
+            fail("the checksum mismatch wasn't reported");
+        } catch (FedoraException ex) {
+            // expected
+        }
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testDisabledChecksumIsNotVerified() throws Exception {
+        server.getObject("test:1").datastreams.get("CONTENT").checksum = "none";
+        getObject().downloadDatastream("CONTENT", file);
+        assertArrayEquals(content, FileUtils.readFileToByteArray(file));
+        assertNull(getObject().getDatastreamProfile("CONTENT").getChecksum());
+    }
+
+}
@@ -0,0 +1,104 @@
+package org.projectbamboo.util.fedora;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+import org.projectbamboo.util.fedora.DatastreamProfile.DatastreamProperty;
+import org.w3c.dom.Document;
+
+public class DatastreamProfileTest {
+
+    /**
+     * The property elements shared by both layouts.
+     */
+    private static final String PROPERTIES =
+            "<dsLabel>Dublin Core</dsLabel>"
+            + "<dsVersionID>DC.1</dsVersionID>"
+            + "<dsCreateDate>2010-10-01T19:55:00.808Z</dsCreateDate>"
+            + "<dsState>A</dsState>"
+            + "<dsMIME>text/xml</dsMIME>"
+            + "<dsFormatURI></dsFormatURI>"
+            + "<dsControlGroup>X</dsControlGroup>"
+            + "<dsSize>341</dsSize>"
+            + "<dsVersionable>true</dsVersionable>"
+            + "<dsInfoType></dsInfoType>"
+            + "<dsLocation>demo:1+DC+DC.1</dsLocation>"
+            + "<dsLocationType></dsLocationType>"
+            + "<dsChecksumType>MD5</dsChecksumType>"
+            + "<dsChecksum>0123456789abcdef0123456789abcdef</dsChecksum>";
+
+    /**
+     * A profile as returned by Fedora 3.2, without a namespace.
+     */
+    private static final String PROFILE_3_2 =
+            "<datastreamProfile pid=\"demo:1\" dsID=\"DC\">" + PROPERTIES + "</datastreamProfile>";
+
+    /**
+     * A profile as returned by Fedora 3.4, in the management namespace.
+     */
+    private static final String PROFILE_3_4 =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<datastreamProfile xmlns=\"http://www.fedora.info/definitions/1/0/management/\""
+            + " pid=\"demo:1\" dsID=\"DC\">" + PROPERTIES + "</datastreamProfile>";
+
+    private static DatastreamProfile parse(String xml) throws Exception {
+        return DatastreamProfile.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+
+    private static DatastreamProfile parseDom(String xml, boolean namespaceAware) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(namespaceAware);
+        Document document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        return new DatastreamProfile(null, document.getDocumentElement());
+    }
+
+    private static void assertProfile(DatastreamProfile profile) throws Exception {
+        assertEquals("Dublin Core", profile.getProperty(DatastreamProperty.DS_LABEL));
+        assertEquals("DC.1", profile.getProperty(DatastreamProperty.DS_VERSION_ID));
+        assertEquals("text/xml", profile.getProperty(DatastreamProperty.DS_MIME));
+        assertEquals("X", profile.getProperty(DatastreamProperty.DS_CONTROL_GROUP));
+        assertEquals("", profile.getProperty(DatastreamProperty.DS_FORMAT_URI));
+        assertEquals("demo:1+DC+DC.1", profile.getProperty(DatastreamProperty.DS_LOCATION));
+        assertEquals(341, profile.getSize());
+        assertEquals(FedoraDateFormat.parse("2010-10-01T19:55:00.808Z"), profile.getCreateDate());
+        assertEquals("MD5", profile.getChecksumType());
+        assertEquals("0123456789abcdef0123456789abcdef", profile.getChecksum());
+    }
+
+    @Test
+    public void testBothLayouts() throws Exception {
+        assertProfile(parse(PROFILE_3_2));
+        assertProfile(parse(PROFILE_3_4));
+    }
+
+    @Test
+    public void testParsedElements() throws Exception {
+        assertProfile(parseDom(PROFILE_3_2, false));
+        assertProfile(parseDom(PROFILE_3_4, true));
+    }
+
+    @Test
+    public void testMissingValues() throws Exception {
+        DatastreamProfile profile = parse("<datastreamProfile><dsSize>unknown</dsSize><dsCreateDate>today</dsCreateDate></datastreamProfile>");
+        assertEquals("", profile.getProperty(DatastreamProperty.DS_LABEL));
+        assertEquals(-1, profile.getSize());
+        assertNull(profile.getCreateDate());
+        assertNull(profile.getChecksum());
+        assertNull(profile.getChecksumType());
+        assertEquals(-1, parse("<datastreamProfile/>").getSize());
+    }
+
+    @Test
+    public void testDisabledChecksum() throws Exception {
+        DatastreamProfile profile = parse("<datastreamProfile><dsChecksumType>DISABLED</dsChecksumType><dsChecksum>none</dsChecksum></datastreamProfile>");
+        assertEquals("DISABLED", profile.getProperty(DatastreamProperty.DS_CHECKSUM_TYPE));
+        assertNull(profile.getChecksumType());
+        assertNull(profile.getChecksum());
+    }
+
+}
@@ -0,0 +1,27 @@
+package org.projectbamboo.util.fedora;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class DigestsTest {
+
+    @Test
+    public void testToHex() {
+        assertEquals("", Digests.toHex(new byte[0]));
+        assertEquals("00017f80ff", Digests.toHex(new byte[] { 0, 1, 127, -128, -1 }));
+    }
+
+    @Test
+    public void testDigest() {
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", Digests.digest("MD5", ""));
+        assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", Digests.digest("SHA-1", "abc"));
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", Digests.digest("SHA-256", "abc"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownAlgorithm() {
+        Digests.digest("NO-SUCH-DIGEST", "abc");
+    }
+
+}
@@ -0,0 +1,116 @@
+package org.projectbamboo.util.fedora;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.projectbamboo.util.benchmark.Benchmark;
+import org.projectbamboo.util.fedora.FedoraClient.FedoraObject;
+
+/**
+ * <p>
+ *   Drives many threads of FedoraClient calls against the in-process
+ *   fedora stand-in and reports the throughput and latency percentiles
+ *   of the calls and of every REST operation.  Only runs with
+ *   -Dbenchmark=true.
+ * </p>
+ * <p>
+ *   The stand-in is configured with the system properties
+ *   benchmark.latency (milliseconds, 5 by default), benchmark.errorrate
+ *   (0.01) and benchmark.payload (bytes per response and datastream,
+ *   1024); benchmark.scale multiplies the number of calls.
+ * </p>
+ */
+public class FedoraClientLoadTest {
+
+    private static final int THREADS = 32;
+
+    private static final int OBJECTS = 100;
+
+    private StubFedoraServer server;
+
+    private FedoraClient fc;
+
+    private byte[] content;
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue(Benchmark.isEnabled());
+        server = new StubFedoraServer();
+        server.setLatency(Integer.getInteger("benchmark.latency", 5));
+        server.setErrorRate(Double.parseDouble(System.getProperty("benchmark.errorrate", "0.01")));
+        server.setPayloadSize(Integer.getInteger("benchmark.payload", 1024));
+        content = new byte[Integer.getInteger("benchmark.payload", 1024)];
+        for (int i = 0; i < OBJECTS; i ++) {
+            server.addObject("load:" + i, "info:fedora/load:model");
+            server.addDatastream("load:" + i, "DC", content, "text/xml");
+        }
+        ConnectionPoolSettings settings = new ConnectionPoolSettings();
+        settings.setMaxConnectionsPerHost(THREADS);
+        settings.setMaxTotalConnections(THREADS);
+        fc = new FedoraClient(null, null, server.getUrl(), false, settings);
+        // no call waits for the pool, so a leaked connection fails calls
+        // instead of blocking the run
+        fc.client.getParams().setConnectionManagerTimeout(1000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (fc != null) {
+            fc.close();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testReads() throws Exception {
+        int runs = Benchmark.scale(5000);
+        Benchmark.Result result = Benchmark.run("FedoraClient reads, " + THREADS + " threads", THREADS, 0, runs, new Benchmark.Operation() {
+            public void run(int index) throws Exception {
+                FedoraObject fo = fc.getFedoraObject("load:" + (index % OBJECTS));
+                switch (index % 3) {
+                case 0:
+                    fo.listDatastreams();
+                    break;
+                case 1:
+                    fo.getContentModelURIs();
+                    break;
+                default:
+                    InputStream in = fo.getDatastream("DC");
+                    try {
+                        while (in.read() != -1) {
+                            // read the whole content
+                        }
+                    } finally {
+                        in.close();
+                    }
+                }
+            }
+        });
+        System.out.println(fc.getStatistics().toJson());
+        assertEquals(runs, result.getOperations());
+    }
+
+    @Test
+    public void testWrites() throws Exception {
+        int runs = Benchmark.scale(1000);
+        Benchmark.Result result = Benchmark.run("FedoraClient create, add datastream, purge", THREADS, 0, runs, new Benchmark.Operation() {
+            public void run(int index) throws Exception {
+                String pid = fc.createObject(null, "load " + index, "load", "load");
+                FedoraObject fo = fc.getFedoraObject(pid, true);
+                fo.addOrReplaceDatastream("CONTENT", new ByteArrayInputStream(content), content.length, "M", "application/octet-stream");
+                fo.purge();
+            }
+        });
+        System.out.println(fc.getStatistics().toJson());
+        assertEquals(runs, result.getOperations());
+    }
+
+}
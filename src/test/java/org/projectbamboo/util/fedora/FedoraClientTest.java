@@ -0,0 +1,302 @@
+package org.projectbamboo.util.fedora;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.projectbamboo.util.fedora.FedoraClient.FedoraObject;
+
+import com.sun.net.httpserver.HttpExchange;
+
+public class FedoraClientTest {
+
+    private static final String MODEL = "info:fedora/test:model";
+
+    private StubFedoraServer server;
+
+    private FedoraClient fc;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubFedoraServer();
+        fc = new FedoraClient(server.getUrl(), false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fc.close();
+        server.stop();
+    }
+
+    @Test
+    public void testContentModelsAreRecordedInStatistics() throws Exception {
+        server.addObject("test:1", MODEL, "info:fedora/fedora-system:FedoraObject-3.0");
+        FedoraObject fo = fc.getFedoraObject("test:1");
+        assertEquals(Arrays.asList(MODEL, "info:fedora/fedora-system:FedoraObject-3.0"), fo.getContentModelURIs());
+        assertEquals(1, server.getRequestCount("GET", "/get/test:1/RELS-EXT"));
+        assertEquals(1, fc.getStatistics().getOperation("getContentModelURIs").getCount());
+        assertEquals(0, fc.getStatistics().getOperation("getContentModelURIs").getInFlight());
+    }
+
+    @Test
+    public void testRelsExtWithoutDescriptionHasNoContentModels() throws Exception {
+        server.addObject("test:1");
+        assertEquals(Collections.<String>emptyList(), fc.getFedoraObject("test:1").getContentModelURIs());
+    }
+
+    @Test
+    public void testContentModelFailureIsRecorded() throws Exception {
+        server.addObject("test:1", MODEL);
+        FedoraObject fo = fc.getFedoraObject("test:1");
+        server.enqueue(500);
+        try {
+            fo.getContentModelURIs();
+            fail("the failed request wasn't reported");
+        } catch (FedoraException ex) {
+            assertTrue(ex.getMessage().contains("RELS-EXT"));
+        }
+        assertEquals(1, fc.getStatistics().getOperation("getContentModelURIs").getErrorCount());
+        // the connection was released, so the next request gets one
+        assertEquals(Collections.singletonList(MODEL), fo.getContentModelURIs());
+    }
+
+    @Test
+    public void testIndexProfilesAreRevalidatedWithCache() throws Exception {
+        server.addObject("test:1", MODEL).label = "Current";
+        server.addObject("test:2", MODEL).label = "Current";
+        Date modified = server.getObject("test:1").lastModDate;
+        server.addTuple("child", "info:fedora/test:1", "label", "Current", "modified", FedoraDateFormat.format(modified));
+        // the resource index hasn't caught up with the latest change of test:2 yet
+        server.addTuple("child", "info:fedora/test:2", "label", "Outdated", "modified", FedoraDateFormat.format(modified.getTime() - 60000));
+        ObjectCache cache = new ObjectCache(10, 60000);
+        fc.setObjectCache(cache);
+
+        List<FedoraObject> objects = fc.getRelatedObjectsWithProfiles(null, "info:fedora/fedora-system:def/relations-external#isMemberOf", "collection:1");
+        assertEquals(2, objects.size());
+        assertEquals(0, cache.size());
+        assertEquals("Current", objects.get(0).getObjectProfile().getLabel());
+        assertEquals("Current", objects.get(1).getObjectProfile().getLabel());
+        assertEquals(2, cache.getRevalidations());
+        assertEquals(1, server.getRequestCount("GET", "/objects/test:1"));
+        assertEquals(1, server.getRequestCount("GET", "/objects/test:2"));
+
+        // both profiles are now cached as fetched from fedora
+        assertEquals("Current", fc.getFedoraObject("test:2").getObjectProfile().getLabel());
+        assertEquals(1, server.getRequestCount("GET", "/objects/test:2"));
+    }
+
+    @Test(timeout = 30000)
+    public void testFailedProfileCancelsTheOthers() throws Exception {
+        server.stop();
+        server = new StubFedoraServer() {
+            protected void handleRequest(HttpExchange exchange) throws IOException {
+                if (exchange.getRequestURI().getPath().endsWith("/objects/test:1")) {
+                    send(exchange, 500, "failing on purpose");
+                } else {
+                    super.handleRequest(exchange);
+                }
+            }
+        };
+        fc.close();
+        fc = new FedoraClient(server.getUrl(), false);
+        for (int i = 1; i <= 5; i ++) {
+            server.addObject("test:" + i);
+            server.addTuple("child", "info:fedora/test:" + i);
+        }
+        server.setLatency(200);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            fc.getRelatedObjects(null, "info:fedora/fedora-system:def/relations-external#isMemberOf", "collection:1", executor);
+            fail("the failed request wasn't reported");
+        } catch (FedoraException ex) {
+            // expected
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        // the failure of test:1 isn't recorded; the request running at that time completes, the rest are cancelled
+        assertTrue(server.getRequests().toString(), server.getRequestCount("GET", "/objects/") <= 1);
+    }
+
+    @Test
+    public void testUploadedStreamsAreClosed() throws Exception {
+        server.addObject("test:1");
+        FedoraObject fo = fc.getFedoraObject("test:1");
+        ClosingStream in = new ClosingStream("content");
+        fo.addOrReplaceDatastream("CONTENT", in, "M", "text/plain");
+        assertTrue(in.closed);
+        assertEquals("content", new String(server.getObject("test:1").datastreams.get("CONTENT").content, "UTF-8"));
+
+        in = new ClosingStream("replaced");
+        server.enqueue(500);
+        try {
+            fo.addOrReplaceDatastream("CONTENT", in, 8, "M", "text/plain");
+            fail("the failed request wasn't reported");
+        } catch (FedoraException ex) {
+            // expected
+        }
+        assertTrue(in.closed);
+    }
+
+    private static class ClosingStream extends ByteArrayInputStream {
+
+        private boolean closed;
+
+        ClosingStream(String content) throws IOException {
+            super(content.getBytes("UTF-8"));
+        }
+
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+
+    }
+
+    @Test
+    public void testRelatedPidsAreQueriedInBatches() throws Exception {
+        String predicate = "info:fedora/fedora-system:def/relations-external#isMemberOf";
+        List<String> subjects = new ArrayList<String>();
+        for (int i = 0; i < 150; i ++) {
+            subjects.add("test:" + i);
+            if (i < 149) {
+                server.addTuple("s", "info:fedora/test:" + i, "o", "info:fedora/collection:" + (i % 2));
+            }
+        }
+        server.addTuple("s", "info:fedora/other:1", "o", "info:fedora/collection:2");
+        subjects.add("test:0");
+
+        Map<String, List<String>> bySubject = fc.getRelatedPidsBySubject(subjects, predicate);
+        assertEquals(2, server.getQueries().size());
+        assertEquals(FedoraClient.RISEARCH_BATCH_SIZE, server.getQueries().get(0).split("<mulgara:is>").length - 1);
+        assertEquals(150, bySubject.size());
+        assertEquals(Collections.singletonList("collection:1"), bySubject.get("test:99"));
+        assertEquals(Collections.singletonList("collection:0"), bySubject.get("test:100"));
+        assertEquals(Collections.<String>emptyList(), bySubject.get("test:149"));
+
+        Map<String, List<String>> byObject = fc.getRelatedPidsByObject(Arrays.asList("collection:0", "collection:2"), predicate);
+        assertEquals(3, server.getQueries().size());
+        assertEquals(75, byObject.get("collection:0").size());
+        assertEquals(Collections.singletonList("other:1"), byObject.get("collection:2"));
+    }
+
+    @Test
+    public void testOnlyClosableClientsEvictIdleConnections() throws Exception {
+        int evictors = countEvictorThreads();
+        FedoraClient legacy = new FedoraClient("user", "secret", server.getUrl(), false);
+        assertEquals(evictors, countEvictorThreads());
+        legacy.close();
+
+        FedoraClient configured = new FedoraClient(null, null, server.getUrl(), false, new ConnectionPoolSettings());
+        assertEquals(evictors + 1, countEvictorThreads());
+        configured.close();
+    }
+
+    private static int countEvictorThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("fedora-idle-connection-evictor") && thread.isAlive()) {
+                count ++;
+            }
+        }
+        return count;
+    }
+
+    @Test(timeout = 30000)
+    public void testConnectionsAreReleasedOnSuccessAndFailure() throws Exception {
+        ConnectionPoolSettings settings = new ConnectionPoolSettings();
+        settings.setMaxConnectionsPerHost(1);
+        settings.setMaxTotalConnections(1);
+        settings.setIdleTimeout(0);
+        FedoraClient single = new FedoraClient(null, null, server.getUrl(), false, settings);
+        // a leaked connection makes the next request fail instead of waiting forever
+        single.client.getParams().setConnectionManagerTimeout(5000);
+        try {
+            String pid = single.createObject("test:1", "label", "owner", null);
+            server.enqueue(500);
+            assertFails(single, "createObject");
+            FedoraObject fo = single.getFedoraObject(pid);
+
+            fo.addOrReplaceDatastreamByReference("REF", "http://localhost/ref", "E", null);
+            server.enqueue(500);
+            try {
+                fo.addOrReplaceDatastreamByReference("REF", "http://localhost/ref", "E", null);
+                fail("the failed request wasn't reported");
+            } catch (FedoraException ex) {
+                // expected
+            }
+
+            server.enqueue(404);
+            try {
+                fo.getDatastream("REF");
+                fail("the failed request wasn't reported");
+            } catch (RuntimeException ex) {
+                // expected
+            }
+            InputStream in = fo.getDatastream("REF");
+            in.close();
+
+            fo.addRelationship("test:2", "info:fedora/fedora-system:def/relations-external#isMemberOf", pid);
+            server.enqueue(500);
+            assertFails(single, "addRelationship");
+            fo.removeRelationship(pid, "info:fedora/fedora-system:def/relations-external#isMemberOf", "test:2");
+            server.enqueue(500);
+            assertFails(single, "removeRelationship");
+
+            fo.purgeDatastream("REF");
+            server.enqueue(500);
+            assertFails(single, "purgeDatastream");
+
+            server.enqueue(500);
+            assertFails(single, "purge");
+            fo.purge();
+            assertEquals(null, server.getObject(pid));
+        } finally {
+            single.close();
+        }
+    }
+
+    /**
+     * Runs an operation that the server has been told to fail, and
+     * checks that the failure was reported.
+     */
+    private void assertFails(FedoraClient client, String operation) throws Exception {
+        FedoraObject fo = client.getFedoraObject("test:1", true);
+        try {
+            if (operation.equals("createObject")) {
+                client.createObject("test:1", null, null, null);
+            } else if (operation.equals("addRelationship")) {
+                fo.addRelationship("test:2", "info:fedora/fedora-system:def/relations-external#isMemberOf", "test:1");
+            } else if (operation.equals("removeRelationship")) {
+                fo.removeRelationship("test:1", "info:fedora/fedora-system:def/relations-external#isMemberOf", "test:2");
+            } else if (operation.equals("purgeDatastream")) {
+                fo.purgeDatastream("REF");
+            } else {
+                fo.purge();
+            }
+            fail(operation + " didn't report the failed request");
+        } catch (FedoraException ex) {
+            // expected
+        } catch (RuntimeException ex) {
+            // createObject reports failures unchecked
+        }
+        assertEquals(1, client.getStatistics().getOperation(operation).getErrorCount());
+    }
+
+}
@@ -0,0 +1,113 @@
+package org.projectbamboo.util.fedora;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.projectbamboo.util.benchmark.Benchmark;
+
+/**
+ * <p>
+ *   Compares FedoraDateFormat with the SimpleDateFormat it replaced,
+ *   both shared under a lock (the only safe way to share one) and with
+ *   one per thread.  Every measured run parses or formats a thousand
+ *   dates.  Only runs with -Dbenchmark=true.
+ * </p>
+ */
+public class FedoraDateFormatBenchmark {
+
+    private static final int DATES_PER_RUN = 1000;
+
+    private static final int[] THREADS = { 1, 4 };
+
+    private final String[] dates = new String[DATES_PER_RUN];
+
+    private final long[] times = new long[DATES_PER_RUN];
+
+    private final SimpleDateFormat shared = createSimpleDateFormat();
+
+    private final ThreadLocal<SimpleDateFormat> perThread = new ThreadLocal<SimpleDateFormat>() {
+        protected SimpleDateFormat initialValue() {
+            return createSimpleDateFormat();
+        }
+    };
+
+    private static SimpleDateFormat createSimpleDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(Benchmark.isEnabled());
+        for (int i = 0; i < DATES_PER_RUN; i ++) {
+            times[i] = 1285962900808L + i * 7919993L;
+            dates[i] = FedoraDateFormat.format(times[i]);
+        }
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        for (int threads : THREADS) {
+            Benchmark.run("parse x1000, FedoraDateFormat, " + threads + " threads", threads, Benchmark.scale(500), Benchmark.scale(5000), new Benchmark.Operation() {
+                public void run(int index) throws Exception {
+                    for (String date : dates) {
+                        FedoraDateFormat.parse(date);
+                    }
+                }
+            });
+            Benchmark.run("parse x1000, shared SimpleDateFormat, " + threads + " threads", threads, Benchmark.scale(50), Benchmark.scale(500), new Benchmark.Operation() {
+                public void run(int index) throws Exception {
+                    for (String date : dates) {
+                        synchronized (shared) {
+                            shared.parse(date);
+                        }
+                    }
+                }
+            });
+            Benchmark.run("parse x1000, SimpleDateFormat per thread, " + threads + " threads", threads, Benchmark.scale(50), Benchmark.scale(500), new Benchmark.Operation() {
+                public void run(int index) throws Exception {
+                    SimpleDateFormat format = perThread.get();
+                    for (String date : dates) {
+                        format.parse(date);
+                    }
+                }
+            });
+        }
+    }
+
+    @Test
+    public void testFormat() throws Exception {
+        for (int threads : THREADS) {
+            Benchmark.run("format x1000, FedoraDateFormat, " + threads + " threads", threads, Benchmark.scale(500), Benchmark.scale(5000), new Benchmark.Operation() {
+                public void run(int index) throws Exception {
+                    for (long time : times) {
+                        FedoraDateFormat.format(new Date(time));
+                    }
+                }
+            });
+            Benchmark.run("format x1000, shared SimpleDateFormat, " + threads + " threads", threads, Benchmark.scale(50), Benchmark.scale(500), new Benchmark.Operation() {
+                public void run(int index) throws Exception {
+                    for (long time : times) {
+                        synchronized (shared) {
+                            shared.format(new Date(time));
+                        }
+                    }
+                }
+            });
+            Benchmark.run("format x1000, SimpleDateFormat per thread, " + threads + " threads", threads, Benchmark.scale(50), Benchmark.scale(500), new Benchmark.Operation() {
+                public void run(int index) throws Exception {
+                    SimpleDateFormat format = perThread.get();
+                    for (long time : times) {
+                        format.format(new Date(time));
+                    }
+                }
+            });
+        }
+    }
+
+}
@@ -0,0 +1,144 @@
+package org.projectbamboo.util.fedora;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class FedoraDateFormatTest {
+
+    /**
+     * The range compared with SimpleDateFormat, which switches to the
+     * julian calendar before 1582: 1600-01-01 to 9999-12-31.
+     */
+    private static final long MIN_TIME = -11676096000000L;
+
+    private static final long MAX_TIME = 253402300799999L;
+
+    private static SimpleDateFormat createSimpleDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        format.setLenient(false);
+        return format;
+    }
+
+    @Test
+    public void testKnownDates() throws Exception {
+        assertEquals("1970-01-01T00:00:00.000Z", FedoraDateFormat.format(0));
+        assertEquals("2010-10-01T19:55:00.808Z", FedoraDateFormat.format(1285962900808L));
+        assertEquals(1285962900808L, FedoraDateFormat.parseMillis("2010-10-01T19:55:00.808Z"));
+        assertEquals("1969-12-31T23:59:59.999Z", FedoraDateFormat.format(-1));
+        assertEquals("2012-02-29T12:00:00.000Z", FedoraDateFormat.format(FedoraDateFormat.parseMillis("2012-02-29T12:00:00Z")));
+        assertEquals("2000-02-29T00:00:00.000Z", FedoraDateFormat.format(FedoraDateFormat.parseMillis("2000-02-29T00:00:00Z")));
+        assertEquals(new Date(1285962900808L), FedoraClient.parseFedoraDate("2010-10-01T19:55:00.808Z"));
+    }
+
+    @Test
+    public void testMatchesSimpleDateFormat() throws Exception {
+        SimpleDateFormat format = createSimpleDateFormat();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i ++) {
+            long time = MIN_TIME + (long) (random.nextDouble() * (MAX_TIME - MIN_TIME));
+            String expected = format.format(new Date(time));
+            assertEquals(expected, FedoraDateFormat.format(time));
+            assertEquals(format.parse(expected).getTime(), FedoraDateFormat.parseMillis(expected));
+        }
+    }
+
+    @Test
+    public void testConcurrentUse() throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t ++) {
+            final long seed = t;
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    // every thread checks against a SimpleDateFormat of its own
+                    SimpleDateFormat format = createSimpleDateFormat();
+                    Random random = new Random(seed);
+                    try {
+                        for (int i = 0; i < 20000 && failure.get() == null; i ++) {
+                            long time = MIN_TIME + (long) (random.nextDouble() * (MAX_TIME - MIN_TIME));
+                            String expected = format.format(new Date(time));
+                            assertEquals(expected, FedoraDateFormat.format(new Date(time)));
+                            assertEquals(time, FedoraDateFormat.parse(expected).getTime());
+                        }
+                    } catch (Throwable ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(String.valueOf(failure.get()), failure.get());
+    }
+
+    @Test
+    public void testFractionalSeconds() throws Exception {
+        long second = FedoraDateFormat.parseMillis("2010-10-01T19:55:00.000Z");
+        assertEquals(second, FedoraDateFormat.parseMillis("2010-10-01T19:55:00Z"));
+        assertEquals(second + 800, FedoraDateFormat.parseMillis("2010-10-01T19:55:00.8Z"));
+        assertEquals(second + 80, FedoraDateFormat.parseMillis("2010-10-01T19:55:00.08Z"));
+        assertEquals(second + 8, FedoraDateFormat.parseMillis("2010-10-01T19:55:00.008Z"));
+        assertEquals(second + 808, FedoraDateFormat.parseMillis("2010-10-01T19:55:00.808Z"));
+    }
+
+    @Test
+    public void testMalformedDates() {
+        String[] malformed = {
+            null,
+            "",
+            "2010-10-01",
+            "2010-10-01T19:55:00",
+            "2010-10-01T19:55:00.808",
+            "2010-10-01T19:55:00.Z",
+            "2010-10-01T19:55:00.8080Z",
+            "2010-10-01T19:55:00.808Z ",
+            "2010-10-01T19:55:00.808z",
+            "2010-10-01 19:55:00.808Z",
+            "2010/10/01T19:55:00.808Z",
+            "2010-1O-01T19:55:00.808Z",
+            "-010-10-01T19:55:00.808Z",
+            "2010-10-01T19:55:00.808+01:00",
+            "2010-00-01T19:55:00.808Z",
+            "2010-13-01T19:55:00.808Z",
+            "2010-10-00T19:55:00.808Z",
+            "2010-10-32T19:55:00.808Z",
+            "2010-02-29T19:55:00.808Z",
+            "1900-02-29T19:55:00.808Z",
+            "2010-04-31T19:55:00.808Z",
+            "2010-10-01T24:00:00.000Z",
+            "2010-10-01T19:60:00.000Z",
+            "2010-10-01T19:55:60.000Z",
+        };
+        for (String value : malformed) {
+            try {
+                FedoraDateFormat.parse(value);
+                fail("\"" + value + "\" was parsed");
+            } catch (ParseException ex) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testYearsBeyondFormat() {
+        FedoraDateFormat.format(MAX_TIME + 1);
+    }
+
+}
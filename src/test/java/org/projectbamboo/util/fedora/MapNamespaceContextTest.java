@@ -0,0 +1,86 @@
+package org.projectbamboo.util.fedora;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MapNamespaceContextTest {
+
+    private static List<String> toList(Iterator<String> it) {
+        List<String> list = new ArrayList<String>();
+        while (it.hasNext()) {
+            list.add(it.next());
+        }
+        return list;
+    }
+
+    @Test
+    public void testLookups() {
+        MapNamespaceContext nsc = new MapNamespaceContext();
+        nsc.setNamespace("dc", "http://purl.org/dc/elements/1.1/");
+        nsc.setNamespace("dcel", "http://purl.org/dc/elements/1.1/");
+        nsc.setNamespace("oai_dc", "http://www.openarchives.org/OAI/2.0/oai_dc/", "http://www.openarchives.org/OAI/2.0/oai_dc.xsd");
+        assertEquals("http://purl.org/dc/elements/1.1/", nsc.getNamespaceURI("dcel"));
+        assertEquals("dc", nsc.getPrefix("http://purl.org/dc/elements/1.1/"));
+        assertEquals(Arrays.asList("dc", "dcel"), toList(nsc.getPrefixes("http://purl.org/dc/elements/1.1/")));
+        assertEquals("http://www.openarchives.org/OAI/2.0/oai_dc.xsd", nsc.getSchemaLocation("http://www.openarchives.org/OAI/2.0/oai_dc/"));
+        assertNull(nsc.getNamespaceURI("unknown"));
+        assertNull(nsc.getPrefix("urn:unknown"));
+        assertFalse(nsc.getPrefixes("urn:unknown").hasNext());
+        assertNull(nsc.getSchemaLocation("http://purl.org/dc/elements/1.1/"));
+    }
+
+    @Test
+    public void testRemapping() {
+        MapNamespaceContext nsc = new MapNamespaceContext();
+        nsc.setNamespace("a", "urn:one");
+        nsc.setNamespace("b", "urn:one");
+        nsc.setNamespace("a", "urn:two");
+        assertEquals("urn:two", nsc.getNamespaceURI("a"));
+        assertEquals(Arrays.asList("b"), toList(nsc.getPrefixes("urn:one")));
+        assertEquals("a", nsc.getPrefix("urn:two"));
+        nsc.setNamespace("b", "urn:two");
+        assertNull(nsc.getPrefix("urn:one"));
+        assertEquals(Arrays.asList("a", "b"), toList(nsc.getPrefixes("urn:two")));
+    }
+
+    @Test
+    public void testNullSchemaLocation() {
+        MapNamespaceContext nsc = new MapNamespaceContext();
+        nsc.setNamespace("a", "urn:one", null);
+        assertEquals("a", nsc.getPrefix("urn:one"));
+        assertNull(nsc.getSchemaLocation("urn:one"));
+    }
+
+    @Test
+    public void testNullArguments() {
+        final MapNamespaceContext nsc = new MapNamespaceContext();
+        Runnable[] calls = {
+            new Runnable() { public void run() { nsc.setNamespace(null, "urn:one"); } },
+            new Runnable() { public void run() { nsc.setNamespace("a", null); } },
+            new Runnable() { public void run() { nsc.setNamespace("a", null, "urn:location"); } },
+            new Runnable() { public void run() { nsc.getNamespaceURI(null); } },
+            new Runnable() { public void run() { nsc.getPrefix(null); } },
+            new Runnable() { public void run() { nsc.getPrefixes(null); } },
+            new Runnable() { public void run() { nsc.getSchemaLocation(null); } },
+        };
+        for (int i = 0; i < calls.length; i ++) {
+            try {
+                calls[i].run();
+                fail("call " + i + " accepted null");
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+        assertNull(nsc.getNamespaceURI("a"));
+    }
+
+}
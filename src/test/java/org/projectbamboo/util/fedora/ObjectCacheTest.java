@@ -0,0 +1,117 @@
+package org.projectbamboo.util.fedora;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.projectbamboo.util.fedora.FedoraClient.FedoraObject;
+
+public class ObjectCacheTest {
+
+    private StubFedoraServer server;
+
+    private FedoraClient fc;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubFedoraServer();
+        server.addObject("test:1", "info:fedora/test:model");
+        server.addDatastream("test:1", "DC", "<dc/>".getBytes("UTF-8"), "text/xml");
+        fc = new FedoraClient(server.getUrl(), false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fc.close();
+        server.stop();
+    }
+
+    private int countDatastreamListings() {
+        return server.getRequestCount("GET", "/objects/test:1/datastreams?");
+    }
+
+    @Test
+    public void testFreshValuesAreShared() throws Exception {
+        ObjectCache cache = new ObjectCache(10, 60000);
+        fc.setObjectCache(cache);
+        ObjectProfile profile = fc.getFedoraObject("test:1").getObjectProfile();
+        assertSame(profile, fc.getFedoraObject("test:1").getObjectProfile());
+        assertEquals(Arrays.asList("DC"), fc.getFedoraObject("test:1").listDatastreams());
+        assertEquals(Arrays.asList("DC"), fc.getFedoraObject("test:1").listDatastreams());
+        assertEquals(1, server.getRequestCount("GET", "/objects/test:1?"));
+        assertEquals(1, countDatastreamListings());
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.getMisses());
+        // every handle but the first also found the profile it checks the object with
+        assertEquals(6, cache.getHits());
+    }
+
+    @Test
+    public void testExpiredValuesAreRevalidated() throws Exception {
+        ObjectCache cache = new ObjectCache(10, 0);
+        fc.setObjectCache(cache);
+        FedoraObject fo = fc.getFedoraObject("test:1");
+        assertEquals(Arrays.asList("DC"), fo.listDatastreams());
+        // unmodified objects keep their datastream list
+        assertEquals(Arrays.asList("DC"), fo.listDatastreams());
+        assertEquals(1, countDatastreamListings());
+        assertEquals(3, server.getRequestCount("GET", "/objects/test:1?"));
+        assertEquals(2, cache.getRevalidations());
+
+        // a change made by another client is picked up once the values expire
+        StubFedoraServer.StubObject object = server.getObject("test:1");
+        server.addDatastream("test:1", "OTHER", new byte[1], "application/octet-stream");
+        object.lastModDate = new Date(object.lastModDate.getTime() + 2000);
+        assertEquals(Arrays.asList("DC", "OTHER"), fo.listDatastreams());
+        assertEquals(2, countDatastreamListings());
+    }
+
+    @Test
+    public void testChangesThroughTheClientUpdateTheCache() throws Exception {
+        ObjectCache cache = new ObjectCache(10, 60000);
+        fc.setObjectCache(cache);
+        FedoraObject fo = fc.getFedoraObject("test:1");
+        assertEquals(Arrays.asList("DC"), fo.listDatastreams());
+        fo.addOrReplaceDatastream("CONTENT", new ByteArrayInputStream(new byte[10]), 10, "M", "application/octet-stream");
+        assertEquals(Arrays.asList("DC", "CONTENT"), fo.listDatastreams());
+        fo.purgeDatastream("CONTENT");
+        assertEquals(Arrays.asList("DC"), fc.getFedoraObject("test:1").listDatastreams());
+        assertEquals(1, countDatastreamListings());
+        // the profile was dropped, as the modification date changed
+        assertEquals(server.getObject("test:1").lastModDate, fo.getObjectProfile().getLastModDate());
+    }
+
+    @Test
+    public void testValuesFetchedBeforeAChangeAreNotStored() {
+        ObjectCache cache = new ObjectCache(10, 60000);
+        ObjectCache.CachedObject entry = cache.getEntry("test:1");
+        long version = entry.getVersion();
+        entry.datastreamChanged("DC", true);
+        entry.setProfile(new ObjectProfile("test:1", "", "", null, null, null, "A"), version, false);
+        entry.setDatastreams(Collections.singletonList("DC"), version);
+        assertNull(entry.getProfile());
+        assertNull(entry.getDatastreams());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedObjectsAreEvicted() {
+        ObjectCache cache = new ObjectCache(2, 60000);
+        ObjectCache.CachedObject first = cache.getEntry("test:1");
+        cache.getEntry("test:2");
+        assertSame(first, cache.getEntry("test:1"));
+        cache.getEntry("test:3");
+        assertEquals(2, cache.size());
+        assertSame(first, cache.getEntry("test:1"));
+        cache.invalidate("test:1");
+        assertEquals(1, cache.size());
+    }
+
+}
@@ -0,0 +1,97 @@
+package org.projectbamboo.util.fedora;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class ObjectProfileTest {
+
+    /**
+     * A profile as returned by Fedora 3.2, without a namespace.
+     */
+    private static final String PROFILE_3_2 =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<objectProfile pid=\"demo:1\">"
+            + "<objLabel>A label</objLabel>"
+            + "<objOwnerId>fedoraAdmin</objOwnerId>"
+            + "<objModels>"
+            + "<model>info:fedora/fedora-system:FedoraObject-3.0</model>"
+            + "<model>info:fedora/demo:model</model>"
+            + "</objModels>"
+            + "<objCreateDate>2010-10-01T19:55:00.808Z</objCreateDate>"
+            + "<objLastModDate>2010-10-02T08:00:00Z</objLastModDate>"
+            + "<objDissIndexViewURL>http://localhost/fedora/get/demo:1/viewMethodIndex</objDissIndexViewURL>"
+            + "<objItemIndexViewURL>http://localhost/fedora/get/demo:1/viewItemIndex</objItemIndexViewURL>"
+            + "<objState>A</objState>"
+            + "</objectProfile>";
+
+    /**
+     * A profile as returned by Fedora 3.4, in the access namespace.
+     */
+    private static final String PROFILE_3_4 =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<objectProfile xmlns=\"http://www.fedora.info/definitions/1/0/access/\""
+            + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" pid=\"demo:1\""
+            + " xsi:schemaLocation=\"http://www.fedora.info/definitions/1/0/access/ http://www.fedora.info/definitions/1/0/objectProfile.xsd\">"
+            + "<objLabel>A label</objLabel>"
+            + "<objOwnerId>fedoraAdmin</objOwnerId>"
+            + "<objModels>"
+            + "<model>info:fedora/fedora-system:FedoraObject-3.0</model>"
+            + "<model>info:fedora/demo:model</model>"
+            + "</objModels>"
+            + "<objCreateDate>2010-10-01T19:55:00.808Z</objCreateDate>"
+            + "<objLastModDate>2010-10-02T08:00:00Z</objLastModDate>"
+            + "<objState>A</objState>"
+            + "</objectProfile>";
+
+    private static ObjectProfile parse(String xml) throws Exception {
+        return ObjectProfile.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void testBothLayouts() throws Exception {
+        for (String xml : new String[] { PROFILE_3_2, PROFILE_3_4 }) {
+            ObjectProfile profile = parse(xml);
+            assertEquals("demo:1", profile.getPid());
+            assertEquals("A label", profile.getLabel());
+            assertEquals("fedoraAdmin", profile.getOwnerId());
+            assertEquals(Arrays.asList("info:fedora/fedora-system:FedoraObject-3.0", "info:fedora/demo:model"), profile.getModels());
+            assertEquals(FedoraDateFormat.parse("2010-10-01T19:55:00.808Z"), profile.getCreateDate());
+            assertEquals(FedoraDateFormat.parse("2010-10-02T08:00:00.000Z"), profile.getLastModDate());
+            assertEquals("A", profile.getState());
+        }
+    }
+
+    @Test
+    public void testMissingValues() throws Exception {
+        ObjectProfile profile = parse("<objectProfile><objCreateDate>yesterday</objCreateDate></objectProfile>");
+        assertNull(profile.getPid());
+        assertEquals("", profile.getLabel());
+        assertEquals("", profile.getOwnerId());
+        assertEquals(Collections.emptyList(), profile.getModels());
+        assertNull(profile.getCreateDate());
+        assertNull(profile.getLastModDate());
+        assertEquals("", profile.getState());
+    }
+
+    @Test
+    public void testImmutable() throws Exception {
+        ObjectProfile profile = parse(PROFILE_3_4);
+        profile.getCreateDate().setTime(0);
+        assertEquals(FedoraDateFormat.parse("2010-10-01T19:55:00.808Z"), profile.getCreateDate());
+        try {
+            profile.getModels().clear();
+            fail("the models could be modified");
+        } catch (UnsupportedOperationException ex) {
+            // expected
+        }
+        assertEquals(2, profile.getModels().size());
+    }
+
+}
@@ -0,0 +1,130 @@
+package org.projectbamboo.util.fedora;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PidAllocatorTest {
+
+    private StubFedoraServer server;
+
+    private FedoraClient fc;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubFedoraServer();
+        fc = new FedoraClient(server.getUrl(), false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fc.close();
+        server.stop();
+    }
+
+    private int countReservations() {
+        return server.getRequestCount("POST", "/objects/nextPID");
+    }
+
+    private void awaitReservations(int count) throws InterruptedException {
+        for (int i = 0; i < 1000 && countReservations() < count; i ++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, countReservations());
+    }
+
+    private static int countAllocatorThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("fedora-pid-allocator") && thread.isAlive()) {
+                count ++;
+            }
+        }
+        return count;
+    }
+
+    @Test(timeout = 30000)
+    public void testBlocksAreRefilledInTheBackground() throws Exception {
+        PidAllocator allocator = new PidAllocator(fc, 5, 2);
+        List<String> pids = new ArrayList<String>();
+        for (int i = 0; i < 3; i ++) {
+            pids.add(allocator.nextPid("test"));
+        }
+        assertEquals(1, countReservations());
+        // the pid leaving two in the block reserves the next block
+        pids.add(allocator.nextPid("test"));
+        awaitReservations(2);
+        for (int i = 0; i < 4; i ++) {
+            pids.add(allocator.nextPid("test"));
+        }
+        assertEquals(2, countReservations());
+        // the same pid of the next block reserves the one after it
+        pids.add(allocator.nextPid("test"));
+        awaitReservations(3);
+        assertEquals(Arrays.asList("test:1", "test:2", "test:3", "test:4", "test:5", "test:6", "test:7", "test:8", "test:9"), pids);
+        allocator.close();
+    }
+
+    @Test
+    public void testNamespacesHaveBlocksOfTheirOwn() throws Exception {
+        PidAllocator allocator = new PidAllocator(fc, 10, 0);
+        assertEquals("a:1", allocator.nextPid("a"));
+        // the stand-in numbers the pids of all namespaces in one sequence
+        assertEquals("b:11", allocator.nextPid("b"));
+        assertEquals("a:2", allocator.nextPid("a"));
+        assertEquals(2, countReservations());
+        allocator.close();
+    }
+
+    @Test
+    public void testCreatedObjectsUseAllocatedPids() throws Exception {
+        fc.setPidAllocator(new PidAllocator(fc, 10, 2));
+        assertEquals("test:1", fc.createObject(null, "first", "owner", "test"));
+        assertEquals("test:2", fc.createObject(null, "second", "owner", "test"));
+        assertNotNull(server.getObject("test:2"));
+        assertEquals(1, countReservations());
+    }
+
+    @Test
+    public void testCloseStopsTheAllocatorThread() throws Exception {
+        int threads = countAllocatorThreads();
+        PidAllocator allocator = new PidAllocator(fc, 2, 1);
+        // the second pid makes the allocator reserve the next block
+        allocator.nextPid("test");
+        allocator.nextPid("test");
+        awaitReservations(2);
+        assertEquals(threads + 1, countAllocatorThreads());
+        fc.setPidAllocator(allocator);
+        fc.close();
+        for (int i = 0; i < 100 && countAllocatorThreads() > threads; i ++) {
+            Thread.sleep(10);
+        }
+        assertEquals(threads, countAllocatorThreads());
+    }
+
+    @Test
+    public void testClosedAllocatorReservesBlocksWhenNeeded() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            PidAllocator allocator = new PidAllocator(fc, 2, 1, executor);
+            allocator.close();
+            assertFalse(executor.isShutdown());
+            executor.shutdown();
+            assertEquals(Arrays.asList("test:1", "test:2", "test:3"), Arrays.asList(allocator.nextPid("test"), allocator.nextPid("test"), allocator.nextPid("test")));
+            assertEquals(2, countReservations());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
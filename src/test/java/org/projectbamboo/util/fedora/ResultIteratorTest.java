@@ -0,0 +1,117 @@
+package org.projectbamboo.util.fedora;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.httpclient.HttpMethod;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResultIteratorTest {
+
+    private static final String PREDICATE = "info:fedora/fedora-system:def/relations-external#isMemberOf";
+
+    private StubFedoraServer server;
+
+    private FedoraClient fc;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubFedoraServer();
+        fc = new FedoraClient(server.getUrl(), false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fc.close();
+        server.stop();
+    }
+
+    private void addMembers(int count) {
+        for (int i = 0; i < count; i ++) {
+            server.addTuple("child", "info:fedora/member:" + i);
+        }
+    }
+
+    private static List<String> toList(ResultIterator it) {
+        List<String> values = new ArrayList<String>();
+        while (it.hasNext()) {
+            values.add(it.next());
+        }
+        return values;
+    }
+
+    @Test
+    public void testPaging() throws Exception {
+        addMembers(25);
+        List<String> pids = toList(fc.iterateRelatedPids(null, PREDICATE, "collection:1", 10));
+        assertEquals(25, pids.size());
+        assertEquals("member:0", pids.get(0));
+        assertEquals("member:24", pids.get(24));
+        List<String> queries = server.getQueries();
+        assertEquals(3, queries.size());
+        assertTrue(queries.get(0), queries.get(0).endsWith(" limit 10 offset 0"));
+        assertTrue(queries.get(2), queries.get(2).endsWith(" limit 10 offset 20"));
+    }
+
+    @Test
+    public void testFullLastPage() throws Exception {
+        addMembers(20);
+        assertEquals(20, toList(fc.iterateRelatedPids(null, PREDICATE, "collection:1", 10)).size());
+        // only an empty page tells that there are no more results
+        assertEquals(3, server.getQueries().size());
+    }
+
+    @Test
+    public void testWindow() throws Exception {
+        addMembers(25);
+        List<String> pids = toList(fc.iterateRelatedPids(null, PREDICATE, "collection:1", 5, 10));
+        assertEquals(10, pids.size());
+        assertEquals("member:5", pids.get(0));
+        assertEquals(1, server.getQueries().size());
+    }
+
+    @Test
+    public void testCloseBeforeEndAborts() throws Exception {
+        final HttpMethod method = EasyMock.createMock(HttpMethod.class);
+        EasyMock.expect(method.getResponseBodyAsStream()).andReturn(new ByteArrayInputStream("<r><child uri=\"info:fedora/a:1\"/><child uri=\"info:fedora/a:2\"/></r>".getBytes("UTF-8")));
+        method.abort();
+        method.releaseConnection();
+        EasyMock.replay(method);
+        ResultIterator it = new ResultIterator(new ResultIterator.PageSource() {
+            public HttpMethod openPage(int page) throws IOException, FedoraException {
+                return method;
+            }
+        }, "child", "uri", "info:fedora/", 0);
+        assertEquals("a:1", it.next());
+        it.close();
+        assertFalse(it.hasNext());
+        EasyMock.verify(method);
+    }
+
+    @Test
+    public void testExhaustedIsReleased() throws Exception {
+        final HttpMethod method = EasyMock.createMock(HttpMethod.class);
+        EasyMock.expect(method.getResponseBodyAsStream()).andReturn(new ByteArrayInputStream("<r><child uri=\"info:fedora/a:1\"/></r>".getBytes("UTF-8")));
+        method.releaseConnection();
+        EasyMock.replay(method);
+        ResultIterator it = new ResultIterator(new ResultIterator.PageSource() {
+            public HttpMethod openPage(int page) throws IOException, FedoraException {
+                return method;
+            }
+        }, "child", "uri", "info:fedora/", 0);
+        assertEquals("a:1", it.next());
+        assertFalse(it.hasNext());
+        it.close();
+        EasyMock.verify(method);
+    }
+
+}
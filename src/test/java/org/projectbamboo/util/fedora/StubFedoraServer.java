@@ -0,0 +1,690 @@
+package org.projectbamboo.util.fedora;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <p>
+ *   An in-process stand-in for the parts of fedora's REST api that
+ *   FedoraClient uses, listening on a random local port and keeping
+ *   its objects in memory.
+ * </p>
+ * <p>
+ *   Objects have a profile, datastreams and relationships; their
+ *   RELS-EXT is generated from their content models and relationships.
+ *   risearch answers with the tuples set by the test, honouring the
+ *   "limit" and "offset" of a query and the pids of a "mulgara:is"
+ *   batch query.  Responses can be scripted ahead of time to simulate
+ *   failures.
+ * </p>
+ * <p>
+ *   For load tests, every response can be delayed, a share of them
+ *   failed at random and their XML bodies padded to a given size.
+ * </p>
+ */
+class StubFedoraServer {
+
+    static final String CONTEXT = "/fedora";
+
+    private static final String MODEL_NS = "info:fedora/fedora-system:def/model#";
+
+    private static final Pattern LIMIT = Pattern.compile("\\slimit (\\d+)");
+
+    private static final Pattern OFFSET = Pattern.compile("\\soffset (\\d+)");
+
+    private static final Pattern BATCH_PID = Pattern.compile("<mulgara:is> <(info:fedora/[^>]+)>");
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    static {
+        // otherwise the body waits for the acknowledgement of the headers
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    /**
+     * An object held by the server.
+     */
+    static class StubObject {
+
+        final String pid;
+
+        String label = "";
+
+        String ownerId = "";
+
+        String state = "A";
+
+        final List<String> models = new ArrayList<String>();
+
+        final Date createDate = new Date();
+
+        Date lastModDate = createDate;
+
+        final Map<String, StubDatastream> datastreams = new LinkedHashMap<String, StubDatastream>();
+
+        /**
+         * Relationships of the object as {predicate, object URI} pairs.
+         */
+        final List<String[]> relationships = new ArrayList<String[]>();
+
+        StubObject(String pid) {
+            this.pid = pid;
+        }
+
+    }
+
+    /**
+     * A datastream held by the server.
+     */
+    static class StubDatastream {
+
+        String mimeType;
+
+        String controlGroup;
+
+        String location;
+
+        byte[] content = new byte[0];
+
+        String checksum;
+
+    }
+
+    private final HttpServer server;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "stub-fedora");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Map<String, StubObject> objects = new HashMap<String, StubObject>();
+
+    private final List<Map<String, String>> tuples = new ArrayList<Map<String, String>>();
+
+    private final List<String> requests = new ArrayList<String>();
+
+    private final List<String> queries = new ArrayList<String>();
+
+    private final Queue<Integer> scripted = new LinkedList<Integer>();
+
+    private int nextPid;
+
+    private volatile long latency;
+
+    private volatile double errorRate;
+
+    private volatile int payloadSize;
+
+    private final Random random = new Random(0);
+
+    /**
+     * Starts a server on a random port of the loopback interface.
+     */
+    StubFedoraServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext(CONTEXT, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleRequest(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Gets the base URL of the server, which is what a FedoraClient is
+     * created with.
+     */
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + CONTEXT;
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Adds an object, replacing any existing object with the same pid.
+     */
+    synchronized StubObject addObject(String pid, String... models) {
+        StubObject object = new StubObject(pid);
+        for (String model : models) {
+            object.models.add(model);
+        }
+        objects.put(pid, object);
+        return object;
+    }
+
+    synchronized StubObject getObject(String pid) {
+        return objects.get(pid);
+    }
+
+    /**
+     * Adds a datastream with the given content to an existing object.
+     */
+    synchronized StubDatastream addDatastream(String pid, String dsId, byte[] content, String mimeType) {
+        StubDatastream ds = new StubDatastream();
+        ds.controlGroup = "M";
+        ds.mimeType = mimeType;
+        ds.content = content;
+        ds.checksum = Digests.toHex(digest("MD5", content));
+        objects.get(pid).datastreams.put(dsId, ds);
+        return ds;
+    }
+
+    /**
+     * Adds a tuple to the results of every risearch query.  The values
+     * are given as alternating variable names and values.
+     */
+    synchronized void addTuple(String... namesAndValues) {
+        Map<String, String> tuple = new LinkedHashMap<String, String>();
+        for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+            tuple.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        tuples.add(tuple);
+    }
+
+    /**
+     * Makes the server answer the next request with the given status
+     * and no body.
+     */
+    synchronized void enqueue(int status) {
+        scripted.add(status);
+    }
+
+    /**
+     * Delays every response by the given number of milliseconds.
+     */
+    void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Makes the server answer the given share (from 0 to 1) of the
+     * requests with "500 Internal Server Error".
+     */
+    void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Pads the XML bodies of the responses with whitespace to at least
+     * the given number of bytes.
+     */
+    void setPayloadSize(int payloadSize) {
+        this.payloadSize = payloadSize;
+    }
+
+    /**
+     * Gets every request received so far as "METHOD /path?query".
+     */
+    synchronized List<String> getRequests() {
+        return new ArrayList<String>(requests);
+    }
+
+    /**
+     * Gets the number of requests of the given method whose path
+     * (without the context) starts with the given prefix.
+     */
+    synchronized int getRequestCount(String method, String pathPrefix) {
+        int count = 0;
+        for (String request : requests) {
+            if (request.startsWith(method + " " + CONTEXT + pathPrefix)) {
+                count ++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets the risearch queries received so far.
+     */
+    synchronized List<String> getQueries() {
+        return new ArrayList<String>(queries);
+    }
+
+    /**
+     * Answers a request, either with a scripted response or as fedora
+     * would.
+     */
+    protected void handleRequest(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getRawPath().substring(CONTEXT.length());
+        String rawQuery = exchange.getRequestURI().getRawQuery();
+        byte[] body = readFully(exchange.getRequestBody());
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Integer status;
+        synchronized (this) {
+            requests.add(method + " " + CONTEXT + path + (rawQuery != null ? "?" + rawQuery : ""));
+            status = scripted.poll();
+            if (status == null && errorRate > 0 && random.nextDouble() < errorRate) {
+                status = 500;
+            }
+        }
+        if (status != null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        Map<String, String> params = parseParams(rawQuery);
+        String[] segments = path.substring(1).split("/");
+        for (int i = 0; i < segments.length; i ++) {
+            segments[i] = URLDecoder.decode(segments[i], "UTF-8");
+        }
+        if (segments[0].equals("risearch")) {
+            if (method.equals("POST")) {
+                params.putAll(parseParams(new String(body, "UTF-8")));
+            }
+            risearch(exchange, params.get("query"));
+        } else if (segments[0].equals("get") && segments.length == 3 && segments[2].equals("RELS-EXT")) {
+            getRelsExt(exchange, segments[1]);
+        } else if (segments[0].equals("objects") && segments.length == 2 && segments[1].equals("nextPID")) {
+            nextPids(exchange, params);
+        } else if (segments[0].equals("objects") && segments.length == 2) {
+            handleObject(exchange, method, segments[1], params);
+        } else if (segments[0].equals("objects") && segments.length >= 3 && segments[2].equals("datastreams")) {
+            handleDatastream(exchange, method, segments, params, body);
+        } else if (segments[0].equals("objects") && segments.length >= 3 && segments[2].equals("relationships")) {
+            handleRelationship(exchange, method, segments[1], params);
+        } else {
+            exchange.sendResponseHeaders(404, -1);
+        }
+    }
+
+    private void handleObject(HttpExchange exchange, String method, String pid, Map<String, String> params) throws IOException {
+        String xml = null;
+        int status = 200;
+        synchronized (this) {
+            StubObject object = objects.get(pid);
+            if (method.equals("POST")) {
+                if (object != null) {
+                    status = 500;
+                } else {
+                    if (pid.equals("new")) {
+                        pid = (params.containsKey("namespace") ? params.get("namespace") : "changeme") + ":" + (++ nextPid);
+                    }
+                    object = addObject(pid);
+                    if (params.containsKey("label")) {
+                        object.label = params.get("label");
+                    }
+                    if (params.containsKey("ownerId")) {
+                        object.ownerId = params.get("ownerId");
+                    }
+                    status = 201;
+                    xml = pid;
+                }
+            } else if (object == null) {
+                status = 404;
+            } else if (method.equals("DELETE")) {
+                objects.remove(pid);
+            } else if (method.equals("GET")) {
+                String since = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+                if (since != null && !isModifiedSince(object, since)) {
+                    status = 304;
+                } else {
+                    xml = objectProfile(object);
+                }
+            } else {
+                status = 405;
+            }
+        }
+        send(exchange, status, xml);
+    }
+
+    private void handleDatastream(HttpExchange exchange, String method, String[] segments, Map<String, String> params, byte[] body) throws IOException {
+        String pid = segments[1];
+        String dsId = segments.length > 3 ? segments[3] : null;
+        String xml = null;
+        int status = 200;
+        byte[] content = null;
+        synchronized (this) {
+            StubObject object = objects.get(pid);
+            StubDatastream ds = object != null && dsId != null ? object.datastreams.get(dsId) : null;
+            if (object == null) {
+                status = 404;
+            } else if (dsId == null) {
+                xml = datastreamList(object);
+            } else if (method.equals("POST") || method.equals("PUT")) {
+                if (method.equals("POST") == (ds != null)) {
+                    // fedora refuses to add an existing or modify a missing datastream
+                    status = method.equals("POST") ? 500 : 404;
+                } else {
+                    ds = new StubDatastream();
+                    ds.controlGroup = params.get("controlGroup");
+                    ds.mimeType = params.get("mimeType");
+                    ds.location = params.get("dsLocation");
+                    if (ds.location == null) {
+                        ds.content = readMultipartContent(exchange, body);
+                    }
+                    ds.checksum = Digests.toHex(digest("MD5", ds.content));
+                    object.datastreams.put(dsId, ds);
+                    object.lastModDate = new Date();
+                    status = method.equals("POST") ? 201 : 200;
+                }
+            } else if (ds == null) {
+                status = 404;
+            } else if (method.equals("DELETE")) {
+                object.datastreams.remove(dsId);
+                object.lastModDate = new Date();
+            } else if (segments.length > 4 && segments[4].equals("content")) {
+                content = ds.content;
+            } else {
+                xml = datastreamProfile(pid, dsId, ds);
+            }
+        }
+        if (content != null) {
+            sendContent(exchange, content);
+        } else {
+            send(exchange, status, xml);
+        }
+    }
+
+    private void handleRelationship(HttpExchange exchange, String method, String pid, Map<String, String> params) throws IOException {
+        int status = 200;
+        synchronized (this) {
+            StubObject object = objects.get(pid);
+            String predicate = params.get("predicate");
+            String objectUri = params.get("object");
+            if (object == null) {
+                status = 404;
+            } else if (method.equals("POST")) {
+                object.relationships.add(new String[] { predicate, objectUri });
+                object.lastModDate = new Date();
+            } else if (method.equals("DELETE")) {
+                for (int i = 0; i < object.relationships.size(); i ++) {
+                    String[] rel = object.relationships.get(i);
+                    if (rel[0].equals(predicate) && rel[1].equals(objectUri)) {
+                        object.relationships.remove(i);
+                        break;
+                    }
+                }
+                object.lastModDate = new Date();
+            } else {
+                status = 405;
+            }
+        }
+        send(exchange, status, status == 200 && method.equals("POST") ? "true" : null);
+    }
+
+    private void getRelsExt(HttpExchange exchange, String pid) throws IOException {
+        StringBuilder xml = new StringBuilder();
+        synchronized (this) {
+            StubObject object = objects.get(pid);
+            if (object == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            xml.append("<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\" xmlns:fedora-model=\"" + MODEL_NS + "\">");
+            if (!object.models.isEmpty() || !object.relationships.isEmpty()) {
+                xml.append("<rdf:Description rdf:about=\"info:fedora/" + pid + "\">");
+                for (String model : object.models) {
+                    xml.append("<fedora-model:hasModel rdf:resource=\"" + model + "\"/>");
+                }
+                for (String[] rel : object.relationships) {
+                    int split = Math.max(rel[0].lastIndexOf('#'), rel[0].lastIndexOf('/')) + 1;
+                    xml.append("<rel:" + rel[0].substring(split) + " xmlns:rel=\"" + rel[0].substring(0, split) + "\" rdf:resource=\"" + rel[1] + "\"/>");
+                }
+                xml.append("</rdf:Description>");
+            }
+            xml.append("</rdf:RDF>");
+        }
+        send(exchange, 200, xml.toString());
+    }
+
+    private void nextPids(HttpExchange exchange, Map<String, String> params) throws IOException {
+        int count = Integer.parseInt(params.get("numPIDs"));
+        String namespace = params.containsKey("namespace") ? params.get("namespace") : "changeme";
+        StringBuilder xml = new StringBuilder("<pidList xmlns=\"http://www.fedora.info/definitions/1/0/management/\">");
+        synchronized (this) {
+            for (int i = 0; i < count; i ++) {
+                xml.append("<pid>" + namespace + ":" + (++ nextPid) + "</pid>");
+            }
+        }
+        xml.append("</pidList>");
+        send(exchange, 200, xml.toString());
+    }
+
+    private void risearch(HttpExchange exchange, String query) throws IOException {
+        List<Map<String, String>> results = new ArrayList<Map<String, String>>();
+        synchronized (this) {
+            queries.add(query);
+            Set<String> batch = new HashSet<String>();
+            Matcher matcher = BATCH_PID.matcher(query);
+            while (matcher.find()) {
+                batch.add(matcher.group(1));
+            }
+            for (Map<String, String> tuple : tuples) {
+                if (batch.isEmpty() || batch.contains(tuple.get("s")) || batch.contains(tuple.get("o"))) {
+                    results.add(tuple);
+                }
+            }
+        }
+        int offset = match(OFFSET, query, 0);
+        int limit = match(LIMIT, query, Integer.MAX_VALUE);
+        results = results.subList(Math.min(offset, results.size()), (int) Math.min((long) offset + limit, results.size()));
+        StringBuilder xml = new StringBuilder("<sparql xmlns=\"http://www.w3.org/2001/sw/DataAccess/rf1/result\"><results>");
+        for (Map<String, String> tuple : results) {
+            xml.append("<result>");
+            for (Map.Entry<String, String> binding : tuple.entrySet()) {
+                if (binding.getValue().startsWith("info:fedora/")) {
+                    xml.append("<" + binding.getKey() + " uri=\"" + binding.getValue() + "\"/>");
+                } else {
+                    xml.append("<" + binding.getKey() + ">" + binding.getValue() + "</" + binding.getKey() + ">");
+                }
+            }
+            xml.append("</result>");
+        }
+        xml.append("</results></sparql>");
+        send(exchange, 200, xml.toString());
+    }
+
+    private static int match(Pattern pattern, String query, int defaultValue) {
+        Matcher matcher = pattern.matcher(query);
+        return matcher.find() ? Integer.parseInt(matcher.group(1)) : defaultValue;
+    }
+
+    private static boolean isModifiedSince(StubObject object, String since) {
+        try {
+            // HTTP dates have a resolution of one second
+            return object.lastModDate.getTime() / 1000 > DateUtil.parseDate(since).getTime() / 1000;
+        } catch (DateParseException ex) {
+            return true;
+        }
+    }
+
+    private static String objectProfile(StubObject object) {
+        StringBuilder xml = new StringBuilder("<objectProfile xmlns=\"http://www.fedora.info/definitions/1/0/access/\" pid=\"" + object.pid + "\">");
+        xml.append("<objLabel>" + object.label + "</objLabel>");
+        xml.append("<objOwnerId>" + object.ownerId + "</objOwnerId>");
+        xml.append("<objModels>");
+        for (String model : object.models) {
+            xml.append("<model>" + model + "</model>");
+        }
+        xml.append("</objModels>");
+        xml.append("<objCreateDate>" + FedoraDateFormat.format(object.createDate) + "</objCreateDate>");
+        xml.append("<objLastModDate>" + FedoraDateFormat.format(object.lastModDate) + "</objLastModDate>");
+        xml.append("<objState>" + object.state + "</objState>");
+        xml.append("</objectProfile>");
+        return xml.toString();
+    }
+
+    private static String datastreamList(StubObject object) {
+        StringBuilder xml = new StringBuilder("<objectDatastreams xmlns=\"http://www.fedora.info/definitions/1/0/access/\" pid=\"" + object.pid + "\">");
+        for (Map.Entry<String, StubDatastream> entry : object.datastreams.entrySet()) {
+            xml.append("<datastream dsid=\"" + entry.getKey() + "\" label=\"\" mimeType=\"" + entry.getValue().mimeType + "\"/>");
+        }
+        xml.append("</objectDatastreams>");
+        return xml.toString();
+    }
+
+    private static String datastreamProfile(String pid, String dsId, StubDatastream ds) {
+        return "<datastreamProfile xmlns=\"http://www.fedora.info/definitions/1/0/management/\" pid=\"" + pid + "\" dsID=\"" + dsId + "\">"
+                + "<dsLabel></dsLabel>"
+                + "<dsControlGroup>" + ds.controlGroup + "</dsControlGroup>"
+                + "<dsMIME>" + ds.mimeType + "</dsMIME>"
+                + "<dsSize>" + ds.content.length + "</dsSize>"
+                + "<dsLocation>" + (ds.location != null ? ds.location : pid + "+" + dsId + "+" + dsId + ".0") + "</dsLocation>"
+                + "<dsChecksumType>MD5</dsChecksumType>"
+                + "<dsChecksum>" + ds.checksum + "</dsChecksum>"
+                + "</datastreamProfile>";
+    }
+
+    /**
+     * Sends the content of a datastream, or the part of it requested
+     * with a Range header.
+     */
+    protected void sendContent(HttpExchange exchange, byte[] content) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        int first = 0;
+        int last = content.length - 1;
+        int status = 200;
+        if (range != null) {
+            Matcher matcher = RANGE.matcher(range);
+            if (matcher.matches()) {
+                first = Integer.parseInt(matcher.group(1));
+                if (matcher.group(2).length() > 0) {
+                    last = Math.min(last, Integer.parseInt(matcher.group(2)));
+                }
+                if (first >= content.length) {
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                exchange.getResponseHeaders().add("Content-Range", "bytes " + first + "-" + last + "/" + content.length);
+                status = 206;
+            }
+        }
+        exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+        int length = last - first + 1;
+        exchange.sendResponseHeaders(status, length > 0 ? length : -1);
+        OutputStream out = exchange.getResponseBody();
+        out.write(content, first, Math.max(0, length));
+        out.close();
+    }
+
+    /**
+     * Sends a response with the given text body, or none if it is null.
+     */
+    protected void send(HttpExchange exchange, int status, String body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        if (body.startsWith("<") && body.length() < payloadSize) {
+            StringBuilder padded = new StringBuilder(body);
+            while (padded.length() < payloadSize) {
+                padded.append(' ');
+            }
+            body = padded.toString();
+        }
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().add("Content-Type", body.startsWith("<") ? "text/xml" : "text/plain");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    /**
+     * Extracts the content of the first part of a multipart request.
+     */
+    private static byte[] readMultipartContent(HttpExchange exchange, byte[] body) throws UnsupportedEncodingException {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType == null || !contentType.contains("boundary=")) {
+            return body;
+        }
+        byte[] delimiter = ("\r\n--" + contentType.substring(contentType.indexOf("boundary=") + "boundary=".length())).getBytes("ISO-8859-1");
+        int start = indexOf(body, "\r\n\r\n".getBytes("ISO-8859-1"), 0) + 4;
+        int end = indexOf(body, delimiter, start);
+        byte[] content = new byte[end - start];
+        System.arraycopy(body, start, content, 0, content.length);
+        return content;
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= bytes.length - pattern.length; i ++) {
+            for (int j = 0; j < pattern.length; j ++) {
+                if (bytes[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static Map<String, String> parseParams(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                int split = param.indexOf('=');
+                if (split > 0) {
+                    params.put(URLDecoder.decode(param.substring(0, split), "UTF-8"), URLDecoder.decode(param.substring(split + 1), "UTF-8"));
+                }
+            }
+        }
+        return params;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] digest(String algorithm, byte[] content) {
+        try {
+            return MessageDigest.getInstance(algorithm).digest(content);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+
+}